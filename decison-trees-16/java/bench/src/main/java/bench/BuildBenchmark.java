@@ -0,0 +1,60 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Growing a whole tree with build(), from data that is already parsed.
+ *
+ * `bins` 0 is the exact build over presorted rows; anything else is the
+ * histogram build over a BinnedDataset with that many bins (binning the data
+ * is done in the setup, not timed).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildBenchmark {
+    @Param({"iris", "sms", "synth-100000x10x3"})
+    public String dataset;
+
+    @Param({"0", "64"})
+    public int bins;
+
+    @Param({"1"})
+    public int threads;
+
+    Object tree;
+    Object data;
+
+    @Setup
+    public void setup() throws Throwable {
+        tree = Tree.newTree();
+        Tree.setNumThreads(tree, threads);
+        data = Tree.parseColumnarDataFile(tree, Datasets.trainFile(dataset));
+        if (bins > 0) {
+            data = Tree.binnedDataset(tree, data, bins);
+        }
+    }
+
+    @Benchmark
+    public Object build() throws Throwable {
+        if (bins > 0) {
+            return Tree.buildBinned(tree, data);
+        }
+        return Tree.build(tree, data);
+    }
+}
@@ -0,0 +1,92 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The same tree walked by FlatTree's loop and run as bytecode compiled by
+ * BytecodeTree, a row at a time and as a batch of columns. The tree is
+ * grown to at most `leaves` leaves so that it is small enough to compile
+ * on every dataset. Times are per pass over the testing file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompiledTreeBenchmark {
+    @Param({"iris", "sms", "synth-100000x10x3"})
+    public String dataset;
+
+    @Param({"16", "256"})
+    public int leaves;
+
+    Object flatTree;
+    Object compiled;
+    double[][] rows;      // rows[row][feature]
+    double[][] columns;   // columns[feature][row]
+    int numRows;
+    int[] predictions;
+
+    @Setup
+    public void setup() throws Throwable {
+        Object tree = Tree.newTree();
+        Tree.setMaxLeaves(tree, leaves);
+        Tree.train(tree, Tree.parseColumnarDataFile(tree, Datasets.trainFile(dataset)));
+        flatTree = Tree.flatTree(tree);
+        compiled = Tree.compileBytecode(flatTree);
+        if (compiled == null) {
+            throw new IllegalStateException(dataset +" with "+ leaves +" leaves is too big to compile");
+        }
+
+        Object test = Tree.parseColumnarDataFile(tree, Datasets.testFile(dataset));
+        columns = Tree.columns(test);
+        numRows = Tree.numRows(test);
+        rows = new double[numRows][columns.length];
+        for (int f = 0; f < columns.length; f++) {
+            for (int row = 0; row < numRows; row++) {
+                rows[row][f] = columns[f][row];
+            }
+        }
+        predictions = new int[numRows];
+    }
+
+    @Benchmark
+    public void flatRows(Blackhole blackhole) throws Throwable {
+        for (double[] row : rows) {
+            blackhole.consume(Tree.flatPredict(flatTree, row));
+        }
+    }
+
+    @Benchmark
+    public void compiledRows(Blackhole blackhole) throws Throwable {
+        for (double[] row : rows) {
+            blackhole.consume(Tree.compiledPredict(compiled, row));
+        }
+    }
+
+    @Benchmark
+    public int[] flatBatch() throws Throwable {
+        Tree.flatPredictBatch(flatTree, columns, numRows, predictions);
+        return predictions;
+    }
+
+    @Benchmark
+    public int[] compiledBatch() throws Throwable {
+        Tree.compiledPredictBatch(compiled, columns, numRows, predictions);
+        return predictions;
+    }
+}
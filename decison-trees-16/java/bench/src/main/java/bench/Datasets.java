@@ -0,0 +1,132 @@
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * The data files the benchmarks run on, by name:
+ *
+ *      iris                 data-dt/iris (train on iris-train, predict iris-dev)
+ *      sms                  data-dt/sms  (train on train, predict dev)
+ *      synth-RxFxC          R random rows of F features and C classes,
+ *                           written to temporary files, e.g. synth-100000x10x3
+ *
+ * The bundled files are looked up in the directory given by the `dt.data`
+ * system property, by default ../../data-dt (which is right when running from
+ * java/bench).
+ */
+public final class Datasets {
+    private Datasets() {
+    }
+
+    /**
+     * @return The training file of the named dataset.
+     */
+    public static String trainFile(String name) throws IOException {
+        switch (name) {
+        case "iris":
+            return bundled("iris/iris-train.csv");
+        case "sms":
+            return bundled("sms/train.csv");
+        default:
+            return synthetic(name, 1);
+        }
+    }
+
+    /**
+     * @return The file to predict for the named dataset (for synthetic data,
+     *         more rows from the same distribution as the training file).
+     */
+    public static String testFile(String name) throws IOException {
+        switch (name) {
+        case "iris":
+            return bundled("iris/iris-dev.csv");
+        case "sms":
+            return bundled("sms/dev.csv");
+        default:
+            return synthetic(name, 2);
+        }
+    }
+
+    static String bundled(String file) throws IOException {
+        Path path = Paths.get(System.getProperty("dt.data", "../../data-dt"), file);
+        if (!Files.isReadable(path)) {
+            throw new IOException("can't read "+ path.toAbsolutePath()
+                                  +"; set -Ddt.data to the data-dt directory");
+        }
+        return path.toString();
+    }
+
+    /**
+     * Writes a synth-RxFxC dataset to a temporary file.
+     *
+     * Features are uniform in [0, 1) with 4 decimals (so there are ties, as
+     * in real data). Each class has a random weight vector and a row's label
+     * is the class with the highest score, with 10% of labels then replaced
+     * at random, so trees have real structure but don't separate perfectly.
+     * The class weights only depend on the shape, so the training and testing
+     * files (different `seed`s) come from the same distribution.
+     */
+    static String synthetic(String name, long seed) throws IOException {
+        String[] shape = name.startsWith("synth-") ? name.substring(6).split("x") : new String[0];
+        if (shape.length != 3) {
+            throw new IllegalArgumentException("unknown dataset "+ name
+                +"; expected iris, sms or synth-<rows>x<features>x<classes>");
+        }
+        int numRows = Integer.parseInt(shape[0]);
+        int numFeatures = Integer.parseInt(shape[1]);
+        int numClasses = Integer.parseInt(shape[2]);
+
+        Random shapeRandom = new Random(numFeatures * 31L + numClasses);
+        double[][] weights = new double[numClasses][numFeatures];
+        for (double[] w : weights) {
+            for (int f = 0; f < numFeatures; f++) {
+                w[f] = shapeRandom.nextGaussian();
+            }
+        }
+
+        File file = File.createTempFile(name +"-", ".csv");
+        file.deleteOnExit();
+        Random random = new Random(seed);
+        double[] x = new double[numFeatures];
+        try (BufferedWriter out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            for (int f = 0; f < numFeatures; f++) {
+                out.write("f"+ f +",");
+            }
+            out.write("label\n");
+
+            StringBuilder line = new StringBuilder();
+            for (int row = 0; row < numRows; row++) {
+                line.setLength(0);
+                for (int f = 0; f < numFeatures; f++) {
+                    x[f] = random.nextInt(10000) / 10000.0;
+                    line.append(x[f]).append(',');
+                }
+                int label = 0;
+                double bestScore = Double.NEGATIVE_INFINITY;
+                for (int k = 0; k < numClasses; k++) {
+                    double score = 0;
+                    for (int f = 0; f < numFeatures; f++) {
+                        score += weights[k][f] * x[f];
+                    }
+                    if (score > bestScore) {
+                        bestScore = score;
+                        label = k;
+                    }
+                }
+                if (random.nextDouble() < 0.1) {
+                    label = random.nextInt(numClasses);
+                }
+                line.append('c').append(label).append('\n');
+                out.append(line);
+            }
+        }
+        return file.getPath();
+    }
+}
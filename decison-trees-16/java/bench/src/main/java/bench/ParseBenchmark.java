@@ -0,0 +1,49 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading a training file: the original parseDataFile() (a list of
+ * Observations) against parseColumnarDataFile(), which -train uses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({"iris", "sms", "synth-100000x10x3"})
+    public String dataset;
+
+    Object tree;
+    String filename;
+
+    @Setup
+    public void setup() throws Throwable {
+        tree = Tree.newTree();
+        filename = Datasets.trainFile(dataset);
+    }
+
+    @Benchmark
+    public Object parseDataFile() throws Throwable {
+        return Tree.parseDataFile(tree, filename);
+    }
+
+    @Benchmark
+    public Object parseColumnarDataFile() throws Throwable {
+        return Tree.parseColumnarDataFile(tree, filename);
+    }
+}
@@ -0,0 +1,78 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Predicting every row of the dataset's testing file with a tree trained on
+ * its training file: one Observation at a time, one double[] row at a time,
+ * and the whole file as a batch of columns. Times are per pass over the file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PredictBenchmark {
+    @Param({"iris", "sms", "synth-100000x10x3"})
+    public String dataset;
+
+    Object tree;
+    ArrayList<?> observations;
+    double[][] rows;      // rows[row][feature]
+    double[][] columns;   // columns[feature][row]
+    int[] predictions;
+
+    @Setup
+    public void setup() throws Throwable {
+        tree = Tree.newTree();
+        Tree.train(tree, Tree.parseColumnarDataFile(tree, Datasets.trainFile(dataset)));
+
+        String testFile = Datasets.testFile(dataset);
+        observations = Tree.observations(Tree.parseDataFile(tree, testFile));
+        Object test = Tree.parseColumnarDataFile(tree, testFile);
+        columns = Tree.columns(test);
+        int numRows = Tree.numRows(test);
+        rows = new double[numRows][columns.length];
+        for (int f = 0; f < columns.length; f++) {
+            for (int row = 0; row < numRows; row++) {
+                rows[row][f] = columns[f][row];
+            }
+        }
+        predictions = new int[numRows];
+    }
+
+    @Benchmark
+    public void predictObservations(Blackhole blackhole) throws Throwable {
+        for (Object observation : observations) {
+            blackhole.consume(Tree.predict(tree, observation));
+        }
+    }
+
+    @Benchmark
+    public void predictRows(Blackhole blackhole) throws Throwable {
+        for (double[] row : rows) {
+            blackhole.consume(Tree.predict(tree, row));
+        }
+    }
+
+    @Benchmark
+    public int[] predictBatch() throws Throwable {
+        Tree.predictBatch(tree, columns, predictions);
+        return predictions;
+    }
+}
@@ -0,0 +1,93 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The pieces of one split at the root: searching a feature for its best
+ * threshold, splitting the rows on it and scoring the split. Each is timed
+ * on the list of Observations and on the columnar dataset.
+ *
+ * The feature and threshold are the ones the trained tree's root uses, so the
+ * split is a realistic one rather than an arbitrary column.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SplitBenchmark {
+    @Param({"iris", "sms", "synth-100000x10x3"})
+    public String dataset;
+
+    Object tree;
+    ArrayList<?> observations;
+    Object data;
+    int[] rows;
+    int feature;
+    double threshold;
+    Object splitData;
+    Object rowSplit;
+
+    @Setup
+    public void setup() throws Throwable {
+        tree = Tree.newTree();
+        String filename = Datasets.trainFile(dataset);
+        observations = Tree.observations(Tree.parseDataFile(tree, filename));
+        data = Tree.parseColumnarDataFile(tree, filename);
+        rows = new int[Tree.numRows(data)];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = i;
+        }
+
+        Tree.train(tree, data);
+        feature = Math.max(0, Tree.rootFeature(tree));
+        threshold = Tree.rootFeature(tree) >= 0 ? Tree.rootThreshold(tree)
+                                                : Tree.findBestThresholdColumnar(tree, data, 0);
+        splitData = Tree.makeSplit(tree, observations, threshold, feature);
+        rowSplit = Tree.makeSplitColumnar(tree, data, rows, threshold, feature);
+    }
+
+    @Benchmark
+    public double findBestThreshold() throws Throwable {
+        return Tree.findBestThreshold(tree, observations, feature);
+    }
+
+    @Benchmark
+    public double findBestThresholdColumnar() throws Throwable {
+        return Tree.findBestThresholdColumnar(tree, data, feature);
+    }
+
+    @Benchmark
+    public Object makeSplit() throws Throwable {
+        return Tree.makeSplit(tree, observations, threshold, feature);
+    }
+
+    @Benchmark
+    public Object makeSplitColumnar() throws Throwable {
+        return Tree.makeSplitColumnar(tree, data, rows, threshold, feature);
+    }
+
+    @Benchmark
+    public double evaluate() throws Throwable {
+        return Tree.evaluate(tree, Tree.leftSplit(splitData), Tree.rightSplit(splitData));
+    }
+
+    @Benchmark
+    public double evaluateColumnar() throws Throwable {
+        return Tree.evaluateColumnar(tree, data, Tree.leftRows(rowSplit), Tree.rightRows(rowSplit));
+    }
+}
@@ -0,0 +1,319 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+
+/**
+ * Calls into DecisionTree from the benchmarks.
+ *
+ * DecisionTree and its inner classes are in the default package, which
+ * can't be imported from a named package, and JMH won't run benchmarks that
+ * are in the default package. So every method the benchmarks use is looked
+ * up once here as a MethodHandle, with the tree's own types erased to Object.
+ * The handles are static final, so the JIT treats them as constants and
+ * inlines the target like a direct call; the benchmarks measure the tree,
+ * not reflection.
+ */
+public final class Tree {
+    static final Class<?> DECISION_TREE = load("DecisionTree");
+    static final Class<?> DATASET = load("DecisionTree$Dataset");
+    static final Class<?> COLUMNAR_DATASET = load("DecisionTree$ColumnarDataset");
+    static final Class<?> BINNED_DATASET = load("DecisionTree$BinnedDataset");
+    static final Class<?> OBSERVATION = load("DecisionTree$Observation");
+    static final Class<?> SPLIT_DATA = load("DecisionTree$SplitData");
+    static final Class<?> ROW_SPLIT = load("DecisionTree$RowSplit");
+    static final Class<?> FLAT_TREE = load("FlatTree");
+    static final Class<?> PREDICTOR = load("BytecodeTree$Predictor");
+
+    static final MethodHandle NEW_TREE =
+        constructor(DECISION_TREE);
+    static final MethodHandle NEW_BINNED_DATASET =
+        constructor(BINNED_DATASET, DECISION_TREE, COLUMNAR_DATASET, int.class);
+
+    static final MethodHandle PARSE_DATA_FILE =
+        method("parseDataFile", DATASET, String.class, boolean.class);
+    static final MethodHandle PARSE_COLUMNAR_DATA_FILE =
+        method("parseColumnarDataFile", COLUMNAR_DATASET, String.class, boolean.class);
+    static final MethodHandle TRAIN =
+        method("train", void.class, COLUMNAR_DATASET);
+    static final MethodHandle BUILD =
+        method("build", load("DecisionTree$Node"), COLUMNAR_DATASET);
+    static final MethodHandle BUILD_BINNED =
+        method("build", load("DecisionTree$Node"), BINNED_DATASET);
+    static final MethodHandle FIND_BEST_THRESHOLD =
+        method("findBestThreshold", double.class, ArrayList.class, int.class);
+    static final MethodHandle FIND_BEST_THRESHOLD_COLUMNAR =
+        method("findBestThreshold", double.class, COLUMNAR_DATASET, int.class);
+    static final MethodHandle MAKE_SPLIT =
+        method("makeSplit", SPLIT_DATA, ArrayList.class, double.class, int.class);
+    static final MethodHandle MAKE_SPLIT_COLUMNAR =
+        method("makeSplit", ROW_SPLIT, COLUMNAR_DATASET, int[].class, double.class, int.class);
+    static final MethodHandle EVALUATE =
+        method("evaluate", double.class, ArrayList.class, ArrayList.class);
+    static final MethodHandle EVALUATE_COLUMNAR =
+        method("evaluate", double.class, COLUMNAR_DATASET, int[].class, int[].class);
+    static final MethodHandle PREDICT =
+        method("predict", String.class, OBSERVATION);
+    static final MethodHandle PREDICT_ROW =
+        method("predict", String.class, double[].class);
+    static final MethodHandle PREDICT_BATCH =
+        method("predictBatch", void.class, double[][].class, int[].class);
+
+    static final MethodHandle FLAT_PREDICT =
+        virtual(FLAT_TREE, "predict", int.class, double[].class);
+    static final MethodHandle FLAT_PREDICT_BATCH =
+        virtual(FLAT_TREE, "predictBatch", void.class, double[][].class, int.class, int[].class);
+    static final MethodHandle COMPILE_BYTECODE =
+        staticMethod(load("BytecodeTree"), "compile", PREDICTOR, FLAT_TREE);
+    static final MethodHandle COMPILED_PREDICT =
+        virtual(PREDICTOR, "predict", int.class, double[].class);
+    static final MethodHandle COMPILED_PREDICT_BATCH =
+        virtual(PREDICTOR, "predictBatch", void.class, double[][].class, int.class, int[].class);
+
+    static final MethodHandle SET_NUM_THREADS = setter(DECISION_TREE, "numThreads", int.class);
+    static final MethodHandle SET_MAX_LEAVES = setter(DECISION_TREE, "maxLeaves", int.class);
+    static final MethodHandle OBSERVATIONS = getter(DATASET, "observations", ArrayList.class);
+    static final MethodHandle COLUMNS = getter(COLUMNAR_DATASET, "columns", double[][].class);
+    static final MethodHandle NUM_ROWS = getter(COLUMNAR_DATASET, "numRows", int.class);
+    static final MethodHandle LEFT_SPLIT = getter(SPLIT_DATA, "leftSplit", ArrayList.class);
+    static final MethodHandle RIGHT_SPLIT = getter(SPLIT_DATA, "rightSplit", ArrayList.class);
+    static final MethodHandle LEFT_ROWS = getter(ROW_SPLIT, "leftRows", int[].class);
+    static final MethodHandle RIGHT_ROWS = getter(ROW_SPLIT, "rightRows", int[].class);
+    static final MethodHandle FLAT_TREE_OF = getter(DECISION_TREE, "flatTree", FLAT_TREE);
+    static final MethodHandle NODE_FEATURES = getter(FLAT_TREE, "feature", int[].class);
+    static final MethodHandle NODE_THRESHOLDS = getter(FLAT_TREE, "threshold", double[].class);
+
+    private Tree() {
+    }
+
+    public static Object newTree() throws Throwable {
+        return (Object) NEW_TREE.invokeExact();
+    }
+
+    public static void setNumThreads(Object tree, int numThreads) throws Throwable {
+        SET_NUM_THREADS.invokeExact(tree, numThreads);
+    }
+
+    public static void setMaxLeaves(Object tree, int maxLeaves) throws Throwable {
+        SET_MAX_LEAVES.invokeExact(tree, maxLeaves);
+    }
+
+    /** @return A DecisionTree.Dataset. */
+    public static Object parseDataFile(Object tree, String filename) throws Throwable {
+        return (Object) PARSE_DATA_FILE.invokeExact(tree, (Object) filename, true);
+    }
+
+    /** @return A DecisionTree.ColumnarDataset. */
+    public static Object parseColumnarDataFile(Object tree, String filename) throws Throwable {
+        return (Object) PARSE_COLUMNAR_DATA_FILE.invokeExact(tree, (Object) filename, true);
+    }
+
+    /** @return A DecisionTree.BinnedDataset. */
+    public static Object binnedDataset(Object tree, Object data, int maxBins) throws Throwable {
+        return (Object) NEW_BINNED_DATASET.invokeExact(tree, data, maxBins);
+    }
+
+    public static void train(Object tree, Object data) throws Throwable {
+        TRAIN.invokeExact(tree, data);
+    }
+
+    /** @return The root DecisionTree.Node. */
+    public static Object build(Object tree, Object data) throws Throwable {
+        return (Object) BUILD.invokeExact(tree, data);
+    }
+
+    /** @return The root DecisionTree.Node. */
+    public static Object buildBinned(Object tree, Object binned) throws Throwable {
+        return (Object) BUILD_BINNED.invokeExact(tree, binned);
+    }
+
+    public static double findBestThreshold(Object tree, ArrayList<?> observations,
+                                           int featureIndex) throws Throwable {
+        return (double) FIND_BEST_THRESHOLD.invokeExact(tree, (Object) observations, featureIndex);
+    }
+
+    public static double findBestThresholdColumnar(Object tree, Object data,
+                                                   int featureIndex) throws Throwable {
+        return (double) FIND_BEST_THRESHOLD_COLUMNAR.invokeExact(tree, data, featureIndex);
+    }
+
+    /** @return A DecisionTree.SplitData. */
+    public static Object makeSplit(Object tree, ArrayList<?> observations,
+                                   double threshold, int featureIndex) throws Throwable {
+        return (Object) MAKE_SPLIT.invokeExact(tree, (Object) observations, threshold, featureIndex);
+    }
+
+    /** @return A DecisionTree.RowSplit. */
+    public static Object makeSplitColumnar(Object tree, Object data, int[] rows,
+                                           double threshold, int featureIndex) throws Throwable {
+        return (Object) MAKE_SPLIT_COLUMNAR.invokeExact(tree, data, (Object) rows, threshold, featureIndex);
+    }
+
+    public static double evaluate(Object tree, ArrayList<?> split1, ArrayList<?> split2)
+        throws Throwable {
+        return (double) EVALUATE.invokeExact(tree, (Object) split1, (Object) split2);
+    }
+
+    public static double evaluateColumnar(Object tree, Object data, int[] split1, int[] split2)
+        throws Throwable {
+        return (double) EVALUATE_COLUMNAR.invokeExact(tree, data, (Object) split1, (Object) split2);
+    }
+
+    public static String predict(Object tree, Object observation) throws Throwable {
+        return (String) (Object) PREDICT.invokeExact(tree, observation);
+    }
+
+    public static String predict(Object tree, double[] features) throws Throwable {
+        return (String) (Object) PREDICT_ROW.invokeExact(tree, (Object) features);
+    }
+
+    public static void predictBatch(Object tree, double[][] columns, int[] out) throws Throwable {
+        PREDICT_BATCH.invokeExact(tree, (Object) columns, (Object) out);
+    }
+
+    public static ArrayList<?> observations(Object dataset) throws Throwable {
+        return (ArrayList<?>) (Object) OBSERVATIONS.invokeExact(dataset);
+    }
+
+    public static double[][] columns(Object data) throws Throwable {
+        return (double[][]) (Object) COLUMNS.invokeExact(data);
+    }
+
+    public static int numRows(Object data) throws Throwable {
+        return (int) NUM_ROWS.invokeExact(data);
+    }
+
+    public static ArrayList<?> leftSplit(Object splitData) throws Throwable {
+        return (ArrayList<?>) (Object) LEFT_SPLIT.invokeExact(splitData);
+    }
+
+    public static ArrayList<?> rightSplit(Object splitData) throws Throwable {
+        return (ArrayList<?>) (Object) RIGHT_SPLIT.invokeExact(splitData);
+    }
+
+    public static int[] leftRows(Object rowSplit) throws Throwable {
+        return (int[]) (Object) LEFT_ROWS.invokeExact(rowSplit);
+    }
+
+    public static int[] rightRows(Object rowSplit) throws Throwable {
+        return (int[]) (Object) RIGHT_ROWS.invokeExact(rowSplit);
+    }
+
+    /** @return The feature the trained tree's root splits on, or -1 if it's a leaf. */
+    public static int rootFeature(Object tree) throws Throwable {
+        Object flat = (Object) FLAT_TREE_OF.invokeExact(tree);
+        return ((int[]) (Object) NODE_FEATURES.invokeExact(flat))[0];
+    }
+
+    /** @return The threshold of the trained tree's root split. */
+    public static double rootThreshold(Object tree) throws Throwable {
+        Object flat = (Object) FLAT_TREE_OF.invokeExact(tree);
+        return ((double[]) (Object) NODE_THRESHOLDS.invokeExact(flat))[0];
+    }
+
+    /** @return The trained tree's FlatTree. */
+    public static Object flatTree(Object tree) throws Throwable {
+        return (Object) FLAT_TREE_OF.invokeExact(tree);
+    }
+
+    public static int flatPredict(Object flatTree, double[] features) throws Throwable {
+        return (int) FLAT_PREDICT.invokeExact(flatTree, (Object) features);
+    }
+
+    public static void flatPredictBatch(Object flatTree, double[][] columns, int numRows,
+                                        int[] out) throws Throwable {
+        FLAT_PREDICT_BATCH.invokeExact(flatTree, (Object) columns, numRows, (Object) out);
+    }
+
+    /** @return The FlatTree compiled by BytecodeTree, or null if it's too big. */
+    public static Object compileBytecode(Object flatTree) throws Throwable {
+        return (Object) COMPILE_BYTECODE.invokeExact(flatTree);
+    }
+
+    public static int compiledPredict(Object compiled, double[] features) throws Throwable {
+        return (int) COMPILED_PREDICT.invokeExact(compiled, (Object) features);
+    }
+
+    public static void compiledPredictBatch(Object compiled, double[][] columns, int numRows,
+                                            int[] out) throws Throwable {
+        COMPILED_PREDICT_BATCH.invokeExact(compiled, (Object) columns, numRows, (Object) out);
+    }
+
+    static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * A lookup with the access of `owner` itself, for the package-private
+     * fields. (Everything here is in the unnamed module, which is open.)
+     */
+    static MethodHandles.Lookup lookupIn(Class<?> owner) throws IllegalAccessException {
+        return MethodHandles.privateLookupIn(owner, MethodHandles.lookup());
+    }
+
+    static MethodHandle constructor(Class<?> owner, Class<?>... params) {
+        try {
+            MethodHandle handle = MethodHandles.publicLookup()
+                .findConstructor(owner, MethodType.methodType(void.class, params));
+            return handle.asType(handle.type().erase());
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    static MethodHandle method(String name, Class<?> returnType, Class<?>... params) {
+        try {
+            MethodHandle handle = MethodHandles.publicLookup()
+                .findVirtual(DECISION_TREE, name, MethodType.methodType(returnType, params));
+            return handle.asType(handle.type().erase());
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    static MethodHandle virtual(Class<?> owner, String name, Class<?> returnType,
+                                Class<?>... params) {
+        try {
+            MethodHandle handle = MethodHandles.publicLookup()
+                .findVirtual(owner, name, MethodType.methodType(returnType, params));
+            return handle.asType(handle.type().erase());
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    static MethodHandle staticMethod(Class<?> owner, String name, Class<?> returnType,
+                                     Class<?>... params) {
+        try {
+            MethodHandle handle = MethodHandles.publicLookup()
+                .findStatic(owner, name, MethodType.methodType(returnType, params));
+            return handle.asType(handle.type().erase());
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    static MethodHandle getter(Class<?> owner, String name, Class<?> type) {
+        try {
+            MethodHandle handle = lookupIn(owner).findGetter(owner, name, type);
+            return handle.asType(handle.type().erase());
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    static MethodHandle setter(Class<?> owner, String name, Class<?> type) {
+        try {
+            MethodHandle handle = lookupIn(owner).findSetter(owner, name, type);
+            return handle.asType(handle.type().erase());
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,519 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * Compiles a FlatTree into a class of its own, whose methods are the tree
+ * written out as nested branches,
+ *
+ *      int predict(double[] x) {
+ *          if (x[3] <= 0.8) return 0;
+ *          if (x[2] <= 4.95) { ... } else { ... }
+ *      }
+ *
+ * with every feature index, threshold and label id a constant. There are no
+ * node arrays left to read and no loop: the JIT sees the whole tree as one
+ * method of compares and jumps, and can inline it into the caller.
+ *
+ * Java 17 has no class-file API, so the class is written out byte by byte
+ * below (constant pool, two methods and their stack map frames) and defined
+ * as a hidden class. It is unloaded once its Predictor is garbage.
+ */
+public class BytecodeTree {
+    /**
+     * The most bytecode a generated method may have. HotSpot never
+     * JIT-compiles a method bigger than 8000 bytes (DontCompileHugeMethods),
+     * and a tree left to the bytecode interpreter would be far slower than
+     * FlatTree's loop, so bigger trees are not compiled.
+     */
+    static final int MAX_CODE_BYTES = 8000;
+
+    static final String CLASS_NAME = "GeneratedTree";
+    static final String PREDICTOR = "BytecodeTree$Predictor";
+
+    /**
+     * What a compiled tree implements; the same as FlatTree.predict() and
+     * FlatTree.predictBatch().
+     */
+    public interface Predictor {
+        /**
+         * @param x The feature values of the row, in training column order.
+         * @return The label id predicted for the row.
+         */
+        int predict(double[] x);
+
+        /**
+         * @param columns The feature values, columns[feature][row].
+         * @param numRows The number of rows to predict.
+         * @param out     Filled with the label id predicted for each row.
+         */
+        void predictBatch(double[][] columns, int numRows, int[] out);
+    }
+
+    /**
+     * Compiles a classification tree.
+     *
+     * @param tree A tree with numLabels > 1 (not a boosting round).
+     * @return The compiled tree, or null if it is too big to be worth
+     *         compiling (see MAX_CODE_BYTES) or splits on categories.
+     */
+    public static Predictor compile(FlatTree tree) {
+        if (tree.categories != null) {
+            return null;
+        }
+        byte[] classFile = new BytecodeTree(tree).writeClass();
+        if (classFile == null) {
+            return null;
+        }
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+            return (Predictor) lookup.lookupClass().getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("couldn't load the compiled tree", e);
+        }
+    }
+
+    FlatTree tree;
+    ConstantPool pool = new ConstantPool();
+
+    BytecodeTree(FlatTree tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * @return The class file, or null if a method would be too big.
+     */
+    byte[] writeClass() {
+        int thisClass = pool.classRef(CLASS_NAME);
+        int superClass = pool.classRef("java/lang/Object");
+        int predictor = pool.classRef(PREDICTOR);
+
+        Method init = constructor();
+        Method predict = predictMethod();
+        Method predictBatch = predictBatchMethod();
+        if (predict == null || predictBatch == null) {
+            return null;
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);          // minor version
+            out.writeShort(52);         // major version: Java 8's format is enough
+            pool.write(out);
+            out.writeShort(0x0001 | 0x0010 | 0x0020);   // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(predictor);
+            out.writeShort(0);          // no fields
+            out.writeShort(3);
+            init.write(out);
+            predict.write(out);
+            predictBatch.write(out);
+            out.writeShort(0);          // no class attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);   // can't happen writing to memory
+        }
+    }
+
+    /**
+     * public GeneratedTree() { super(); }
+     */
+    Method constructor() {
+        Code code = new Code();
+        code.u1(ALOAD_0);
+        code.u1(INVOKESPECIAL);
+        code.u2(pool.methodRef("java/lang/Object", "<init>", "()V"));
+        code.u1(RETURN);
+        return new Method("<init>", "()V", code, 1, 1, null);
+    }
+
+    /**
+     * public int predict(double[] x): the tree, returning from each leaf.
+     * Locals: 0 this, 1 x.
+     */
+    Method predictMethod() {
+        Code code = new Code();
+        TreeSet<Integer> targets = new TreeSet<Integer>();
+        if (!emitNode(code, 0, false, targets, null) || code.size() > MAX_CODE_BYTES) {
+            return null;
+        }
+        byte[] frames = stackMapFrames(targets, -1);
+        return new Method("predict", "([D)I", code, 4, 2, frames);
+    }
+
+    /**
+     * public void predictBatch(double[][] columns, int numRows, int[] out):
+     * a loop over the rows around the tree, each leaf storing its label and
+     * jumping to the end of the loop. Locals: 0 this, 1 columns, 2 numRows,
+     * 3 out, 4 row.
+     */
+    Method predictBatchMethod() {
+        Code code = new Code();
+        TreeSet<Integer> targets = new TreeSet<Integer>();
+        ArrayList<Integer> toNext = new ArrayList<Integer>();
+
+        code.u1(ICONST_0);
+        code.u1(ISTORE);
+        code.u1(4);
+        int loop = code.size();
+        targets.add(loop);
+        code.u1(ILOAD);
+        code.u1(4);
+        code.u1(ILOAD_2);
+        int toEnd = code.branch(IF_ICMPGE);
+
+        if (!emitNode(code, 0, true, targets, toNext)) {
+            return null;
+        }
+
+        int next = code.size();
+        targets.add(next);
+        for (int jump : toNext) {
+            code.patch(jump, next);
+        }
+        code.u1(IINC);
+        code.u1(4);
+        code.u1(1);
+        code.patch(code.branch(GOTO), loop);
+
+        int end = code.size();
+        targets.add(end);
+        code.patch(toEnd, end);
+        code.u1(RETURN);
+
+        if (code.size() > MAX_CODE_BYTES) {
+            return null;
+        }
+        byte[] frames = stackMapFrames(targets, loop);
+        return new Method("predictBatch", "([[DI[I)V", code, 4, 5, frames);
+    }
+
+    /**
+     * Writes the code of a subtree: for an internal node, its test, then its
+     * left subtree, then its right subtree (where the test jumps to when the
+     * feature is > threshold, or NaN).
+     *
+     * @param batch   Whether this is predictBatch() (read columns[f][row] and
+     *                store the label) rather than predict() (read x[f] and
+     *                return the label).
+     * @param targets Collects the offset of every jump target.
+     * @param toNext  Collects, for predictBatch(), the jumps to the end of
+     *                the loop body.
+     * @return False if the code got too big.
+     */
+    boolean emitNode(Code code, int node, boolean batch, TreeSet<Integer> targets,
+                     ArrayList<Integer> toNext) {
+        if (code.size() > MAX_CODE_BYTES) {
+            return false;
+        }
+
+        int f = tree.feature[node];
+        if (f < 0) {
+            if (batch) {
+                code.u1(ALOAD_3);
+                code.u1(ILOAD);
+                code.u1(4);
+                pushInt(code, tree.leafLabel[node]);
+                code.u1(IASTORE);
+                toNext.add(code.branch(GOTO));
+            } else {
+                pushInt(code, tree.leafLabel[node]);
+                code.u1(IRETURN);
+            }
+            return true;
+        }
+
+        code.u1(ALOAD_1);
+        pushInt(code, f);
+        if (batch) {
+            code.u1(AALOAD);
+            code.u1(ILOAD);
+            code.u1(4);
+        }
+        code.u1(DALOAD);
+        code.u1(LDC2_W);
+        code.u2(pool.doubleConst(tree.threshold[node]));
+        // dcmpg gives 1 for NaN, so NaN goes right, as x[f] <= t is false;
+        // dcmpl gives -1, for nodes sending missing values left.
+        boolean missingLeft = tree.missingLeft != null && tree.missingLeft[node];
+        code.u1(missingLeft ? DCMPL : DCMPG);
+        int toRight = code.branch(IFGT);
+
+        if (!emitNode(code, tree.left[node], batch, targets, toNext)) {
+            return false;
+        }
+        int right = code.size();
+        targets.add(right);
+        code.patch(toRight, right);
+        return emitNode(code, tree.right[node], batch, targets, toNext);
+    }
+
+    void pushInt(Code code, int value) {
+        if (value >= -1 && value <= 5) {
+            code.u1(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.u1(BIPUSH);
+            code.u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.u1(SIPUSH);
+            code.u2(value);
+        } else {
+            code.u1(LDC_W);
+            code.u2(pool.intConst(value));
+        }
+    }
+
+    /**
+     * The StackMapTable of a method whose jump targets all have an empty
+     * stack and the method's arguments as locals, plus (from offset
+     * `appendInt` on, if not -1) one int local: the row of predictBatch().
+     */
+    byte[] stackMapFrames(TreeSet<Integer> targets, int appendInt) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(targets.size());
+            int last = -1;
+            for (int offset : targets) {
+                int delta = offset - last - 1;
+                if (offset == appendInt) {
+                    out.writeByte(252);         // append_frame, 1 local
+                    out.writeShort(delta);
+                    out.writeByte(1);           // Integer
+                } else if (delta < 64) {
+                    out.writeByte(delta);       // same_frame
+                } else {
+                    out.writeByte(251);         // same_frame_extended
+                    out.writeShort(delta);
+                }
+                last = offset;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A method's bytecode, with 16-bit jumps patched in once their targets
+     * are known.
+     */
+    static class Code {
+        byte[] bytes = new byte[256];
+        int size;
+
+        int size() {
+            return size;
+        }
+
+        void u1(int value) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, size * 2);
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        /**
+         * Writes a jump instruction with its offset left blank.
+         *
+         * @return Where the instruction starts, for patch().
+         */
+        int branch(int opcode) {
+            int at = size;
+            u1(opcode);
+            u2(0);
+            return at;
+        }
+
+        void patch(int branch, int target) {
+            int offset = target - branch;
+            bytes[branch + 1] = (byte) (offset >> 8);
+            bytes[branch + 2] = (byte) offset;
+        }
+    }
+
+    /**
+     * A method ready to be written, with its Code attribute.
+     */
+    class Method {
+        int name;
+        int descriptor;
+        Code code;
+        int maxStack;
+        int maxLocals;
+        byte[] stackMap;    // null if it has no jumps
+
+        Method(String name, String descriptor, Code code, int maxStack, int maxLocals,
+               byte[] stackMap) {
+            this.name = pool.utf8(name);
+            this.descriptor = pool.utf8(descriptor);
+            this.code = code;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+            this.stackMap = stackMap;
+            pool.utf8("Code");
+            if (stackMap != null) {
+                pool.utf8("StackMapTable");
+            }
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeShort(0x0001);     // public
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+
+            int stackMapLength = stackMap == null ? 0 : 6 + stackMap.length;
+            out.writeShort(pool.utf8("Code"));
+            out.writeInt(12 + code.size + stackMapLength);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.size);
+            out.write(code.bytes, 0, code.size);
+            out.writeShort(0);          // no exception handlers
+            if (stackMap == null) {
+                out.writeShort(0);
+            } else {
+                out.writeShort(1);
+                out.writeShort(pool.utf8("StackMapTable"));
+                out.writeInt(stackMap.length);
+                out.write(stackMap);
+            }
+        }
+    }
+
+    /**
+     * The constant pool, each distinct entry added once.
+     */
+    static class ConstantPool {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream entries = new DataOutputStream(bytes);
+        HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+        int count = 1;      // entries are numbered from 1
+
+        int utf8(String value) {
+            String key = "utf8 "+ value;
+            Integer index = indexes.get(key);
+            if (index == null) {
+                index = add(key, 1);
+                try {
+                    entries.writeByte(1);
+                    entries.writeUTF(value);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return index;
+        }
+
+        int classRef(String name) {
+            return ref(7, "class "+ name, utf8(name), -1);
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            int nameAndType = ref(12, "nameAndType "+ name + descriptor, utf8(name), utf8(descriptor));
+            return ref(10, "method "+ owner +"."+ name + descriptor, classRef(owner), nameAndType);
+        }
+
+        int intConst(int value) {
+            String key = "int "+ value;
+            Integer index = indexes.get(key);
+            if (index == null) {
+                index = add(key, 1);
+                try {
+                    entries.writeByte(3);
+                    entries.writeInt(value);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return index;
+        }
+
+        int doubleConst(double value) {
+            // By bits, so that 0.0 and -0.0 stay different constants.
+            long bits = Double.doubleToRawLongBits(value);
+            String key = "double "+ bits;
+            Integer index = indexes.get(key);
+            if (index == null) {
+                index = add(key, 2);    // a double takes two slots
+                try {
+                    entries.writeByte(6);
+                    entries.writeLong(bits);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return index;
+        }
+
+        /** An entry made of one or two u2 indexes (second = -1 for one). */
+        int ref(int tag, String key, int first, int second) {
+            Integer index = indexes.get(key);
+            if (index == null) {
+                index = add(key, 1);
+                try {
+                    entries.writeByte(tag);
+                    entries.writeShort(first);
+                    if (second >= 0) {
+                        entries.writeShort(second);
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return index;
+        }
+
+        int add(String key, int slots) {
+            int index = count;
+            indexes.put(key, index);
+            count += slots;
+            return index;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeShort(count);
+            bytes.writeTo(out);
+        }
+    }
+
+    // The opcodes used.
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int ILOAD = 0x15;
+    static final int ILOAD_2 = 0x1c;
+    static final int ALOAD_0 = 0x2a;
+    static final int ALOAD_1 = 0x2b;
+    static final int ALOAD_3 = 0x2d;
+    static final int DALOAD = 0x31;
+    static final int AALOAD = 0x32;
+    static final int ISTORE = 0x36;
+    static final int IASTORE = 0x4f;
+    static final int IINC = 0x84;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFGT = 0x9d;
+    static final int IF_ICMPGE = 0xa2;
+    static final int GOTO = 0xa7;
+    static final int IRETURN = 0xac;
+    static final int RETURN = 0xb1;
+    static final int INVOKESPECIAL = 0xb7;
+}
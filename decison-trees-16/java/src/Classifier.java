@@ -0,0 +1,86 @@
+import java.util.ArrayList;
+
+/**
+ * A trained model that -predict can run: a single DecisionTree or an
+ * ensemble of trees.
+ */
+public interface Classifier {
+
+    /**
+     * @return The label of each label id the model predicts.
+     */
+    ArrayList<String> labelNames();
+
+    /**
+     * @return The category names of each feature the model was trained on (a
+     *         null entry for a numeric feature), so prediction data can be
+     *         coded the same way; null if every feature is numeric.
+     */
+    default ArrayList<ArrayList<String>> categories() {
+        return null;
+    }
+
+    /**
+     * Predicts the first `numRows` rows of a block of rows stored column by
+     * column.
+     *
+     * @param columns The feature values, columns[feature][row].
+     * @param numRows The number of rows to predict.
+     * @param out     Filled with the label id predicted for each row.
+     */
+    void predictBatch(double[][] columns, int numRows, int[] out);
+
+    /**
+     * Estimates the probability of each label for one row.
+     *
+     * @param x         The feature values of the row, in training column order.
+     * @param smoothing Laplace smoothing: the count added to every label of
+     *                  a leaf before dividing (0 for none; see
+     *                  FlatTree.addProba()). Boosted models, whose leaves
+     *                  hold scores rather than counts, ignore it.
+     * @param out       Filled with the probability of each label id; at
+     *                  least labelNames().size() long.
+     */
+    void predictProba(double[] x, double smoothing, double[] out);
+
+    /**
+     * Estimates the probability of each label for the first `numRows` rows
+     * of a block, with nothing allocated per call. The label with the
+     * highest probability (the smallest id on ties) is the one
+     * predictBatch() predicts.
+     *
+     * @param columns   The feature values, columns[feature][row].
+     * @param numRows   The number of rows.
+     * @param smoothing As for predictProba().
+     * @param out       Filled with the probabilities, out[row * numLabels + k]
+     *                  for label id k; at least numRows * numLabels long.
+     */
+    void predictProbaBatch(double[][] columns, int numRows, double smoothing, double[] out);
+
+    /**
+     * Picks the most probable labels of one row.
+     *
+     * @param proba  Label probabilities, as from predictProbaBatch().
+     * @param offset The index of label 0 of the row in `proba`.
+     * @param numLabels The number of labels.
+     * @param top    Filled with the label ids in order of falling probability
+     *               (the smaller id first on ties); its length is the number
+     *               of labels to pick, at most numLabels.
+     */
+    static void topLabels(double[] proba, int offset, int numLabels, int[] top) {
+        // An insertion sort of the k best so far: k is small.
+        int found = 0;
+        for (int k = 0; k < numLabels; k++) {
+            double p = proba[offset + k];
+            if (found == top.length && p <= proba[offset + top[found - 1]]) {
+                continue;
+            }
+            int i = found < top.length ? found++ : found - 1;
+            while (i > 0 && p > proba[offset + top[i - 1]]) {
+                top[i] = top[i - 1];
+                i--;
+            }
+            top[i] = k;
+        }
+    }
+}
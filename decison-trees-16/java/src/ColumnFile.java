@@ -0,0 +1,326 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A labeled data file converted once into columns on disk, so that a tree can
+ * be trained on more rows than fit on the heap (-train ... -ooc).
+ *
+ * Every column is memory-mapped and read a block of rows at a time: only the
+ * pages being read are in memory, and the operating system brings them in and
+ * drops them again as needed. The file is little-endian:
+ *
+ * <pre>
+ *   "DTCF"                      magic
+ *   int version                 FORMAT_VERSION
+ *   int numRows, int numFeatures
+ *   int numColumns, then per column:  int length, UTF-8 bytes
+ *   int numLabels,  then per label:   int length, UTF-8 bytes
+ *   (padding to a multiple of 8 bytes)
+ *   per feature:  double[numRows] values
+ *   int[numRows] label ids
+ * </pre>
+ */
+public class ColumnFile implements Closeable {
+    static final byte[] MAGIC = {'D', 'T', 'C', 'F'};
+    static final int FORMAT_VERSION = 1;
+    // Rows are read and written this many at a time.
+    public static final int BLOCK_ROWS = 1 << 16;
+    // A mapping can't be larger than 2GB, so a column is mapped in segments
+    // of this many rows. It is a multiple of BLOCK_ROWS, so a block read from
+    // a multiple of BLOCK_ROWS never straddles two segments.
+    static final int SEGMENT_ROWS = 1 << 27;
+
+    public ArrayList<String> columnNames;   // the header of the data file
+    public ArrayList<String> labelNames;    // the label of each label id
+    public int numRows;
+    public int numFeatures;
+
+    Path path;
+    FileChannel channel;
+    DoubleBuffer[][] columns;   // [feature][segment]
+    IntBuffer[] labels;         // [segment]
+
+    /**
+     * Memory-maps a column file.
+     *
+     * @param filename The name of a file made by convert().
+     * @throws IOException If the file can't be read or isn't a column file.
+     */
+    public ColumnFile(String filename) throws IOException {
+        path = Paths.get(filename).toAbsolutePath();
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                              Math.min(channel.size(), Integer.MAX_VALUE));
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[MAGIC.length];
+        if (header.remaining() >= 16) {
+            header.get(magic);
+        }
+        if (header.remaining() < 16 || !Arrays.equals(magic, MAGIC)) {
+            channel.close();
+            throw new IOException(filename +" is not a column file");
+        }
+        int version = header.getInt();
+        if (version != FORMAT_VERSION) {
+            channel.close();
+            throw new IOException(filename +" has unsupported column file version "+ version);
+        }
+        numRows = header.getInt();
+        numFeatures = header.getInt();
+        columnNames = ModelFile.getStrings(header);
+        labelNames = ModelFile.getStrings(header);
+        long dataStart = ModelFile.align(header.position());
+
+        int numSegments = (numRows + SEGMENT_ROWS - 1) / SEGMENT_ROWS;
+        columns = new DoubleBuffer[numFeatures][numSegments];
+        labels = new IntBuffer[numSegments];
+        for (int s = 0; s < numSegments; s++) {
+            int rows = Math.min(SEGMENT_ROWS, numRows - s * SEGMENT_ROWS);
+            for (int f = 0; f < numFeatures; f++) {
+                long start = dataStart + 8L * numRows * f + 8L * s * SEGMENT_ROWS;
+                columns[f][s] = map(start, 8L * rows).asDoubleBuffer();
+            }
+            long start = dataStart + 8L * numRows * numFeatures + 4L * s * SEGMENT_ROWS;
+            labels[s] = map(start, 4L * rows).asIntBuffer();
+        }
+    }
+
+    MappedByteBuffer map(long start, long size) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * Copies the values of one feature for rows [from, from + count).
+     *
+     * @param from  A multiple of BLOCK_ROWS.
+     * @param count At most BLOCK_ROWS.
+     */
+    public void readColumn(int featureIndex, int from, double[] values, int count) {
+        columns[featureIndex][from / SEGMENT_ROWS].get(from % SEGMENT_ROWS, values, 0, count);
+    }
+
+    /**
+     * Copies the label ids of rows [from, from + count), like readColumn().
+     */
+    public void readLabels(int from, int[] ids, int count) {
+        labels[from / SEGMENT_ROWS].get(from % SEGMENT_ROWS, ids, 0, count);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return True if `filename` starts like a column file.
+     */
+    public static boolean isColumnFile(String filename) throws IOException {
+        try (FileChannel file = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            while (magic.hasRemaining() && file.read(magic) >= 0) {
+            }
+            return Arrays.equals(magic.array(), MAGIC);
+        }
+    }
+
+    /**
+     * Finds the column file of a data file: the file itself if it already is
+     * one, else `dataFilename`.cols, converting the data file into it first
+     * unless it is newer than the data file.
+     *
+     * @return The name of the column file.
+     * @throws IOException
+     */
+    public static String forDataFile(String dataFilename) throws IOException {
+        if (isColumnFile(dataFilename)) {
+            return dataFilename;
+        }
+        String filename = dataFilename +".cols";
+        Path columnPath = Paths.get(filename);
+        if (!Files.exists(columnPath) || Files.getLastModifiedTime(columnPath)
+                .compareTo(Files.getLastModifiedTime(Paths.get(dataFilename))) < 0) {
+            convert(dataFilename, filename);
+        }
+        return filename;
+    }
+
+    /**
+     * Converts a labeled data file into a column file, reading it once.
+     *
+     * Each column is first written to a temporary file of its own next to
+     * `filename`, since the number of rows (and so where the columns start)
+     * is only known at the end; the temporary files are then copied into the
+     * column file one after the other.
+     *
+     * @param dataFilename A comma separated data file with a header and the
+     *                     label in the final column.
+     * @param filename     The column file to write, replacing it if it exists.
+     * @throws IOException
+     */
+    public static void convert(String dataFilename, String filename) throws IOException {
+        Path target = Paths.get(filename).toAbsolutePath();
+        try (CsvColumnReader reader = new CsvColumnReader(dataFilename, true)) {
+            // Neither handles missing values (nor categories, which need readAll()).
+            reader.allowMissing = false;
+            int numFeatures = reader.numFeatures;
+            // one temporary file per feature, then one for the labels
+            Path[] parts = new Path[numFeatures + 1];
+            FileChannel[] partChannels = new FileChannel[numFeatures + 1];
+            try {
+                for (int p = 0; p < parts.length; p++) {
+                    parts[p] = Files.createTempFile(target.getParent(), "column", ".tmp");
+                    partChannels[p] = FileChannel.open(parts[p], StandardOpenOption.READ,
+                                                       StandardOpenOption.WRITE);
+                }
+
+                double[][] block = new double[numFeatures][BLOCK_ROWS];
+                int[] blockLabels = new int[BLOCK_ROWS];
+                ByteBuffer bytes = ByteBuffer.allocateDirect(8 * BLOCK_ROWS).order(ByteOrder.LITTLE_ENDIAN);
+                long numRows = 0;
+                int count;
+                while ((count = reader.readChunk(block, blockLabels, 0, BLOCK_ROWS)) > 0) {
+                    for (int f = 0; f < numFeatures; f++) {
+                        bytes.clear();
+                        bytes.asDoubleBuffer().put(block[f], 0, count);
+                        bytes.limit(8 * count);
+                        writeFully(partChannels[f], bytes);
+                    }
+                    bytes.clear();
+                    bytes.asIntBuffer().put(blockLabels, 0, count);
+                    bytes.limit(4 * count);
+                    writeFully(partChannels[numFeatures], bytes);
+                    numRows += count;
+                }
+                if (numRows > Integer.MAX_VALUE) {
+                    throw new IOException(dataFilename +" has more than "+ Integer.MAX_VALUE +" rows");
+                }
+
+                // Written under a temporary name, so that a conversion that
+                // fails never leaves a column file behind.
+                Path written = Paths.get(target +".tmp");
+                try (FileChannel out = FileChannel.open(written, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    writeFully(out, header((int) numRows, numFeatures, reader.columnNames, reader.labelNames));
+                    for (FileChannel part : partChannels) {
+                        long size = part.size();
+                        for (long done = 0; done < size; ) {
+                            done += part.transferTo(done, size - done, out);
+                        }
+                    }
+                } catch (IOException e) {
+                    Files.deleteIfExists(written);
+                    throw e;
+                }
+                Files.move(written, target, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                for (int p = 0; p < parts.length; p++) {
+                    if (partChannels[p] != null) {
+                        partChannels[p].close();
+                    }
+                    if (parts[p] != null) {
+                        Files.deleteIfExists(parts[p]);
+                    }
+                }
+            }
+        }
+    }
+
+    static ByteBuffer header(int numRows, int numFeatures, ArrayList<String> columnNames,
+                             ArrayList<String> labelNames) {
+        ArrayList<byte[]> strings = new ArrayList<byte[]>();
+        for (String name : columnNames) {
+            strings.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+        for (String name : labelNames) {
+            strings.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+        long size = MAGIC.length + 4 + 4 + 4 + 4 + 4;
+        for (byte[] string : strings) {
+            size += 4 + string.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) ModelFile.align(size));
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putInt(numRows);
+        buffer.putInt(numFeatures);
+        buffer.putInt(columnNames.size());
+        for (int i = 0; i < columnNames.size(); i++) {
+            ModelFile.putString(buffer, strings.get(i));
+        }
+        buffer.putInt(labelNames.size());
+        for (int i = 0; i < labelNames.size(); i++) {
+            ModelFile.putString(buffer, strings.get(columnNames.size() + i));
+        }
+        ModelFile.pad(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+     * One int per row of a column file, in a memory-mapped scratch file that
+     * is deleted when closed. All 0 to start with.
+     */
+    public static class RowInts implements Closeable {
+        FileChannel channel;
+        IntBuffer[] segments;
+
+        /**
+         * @param data The column file whose rows these are; the scratch file
+         *             goes next to it.
+         */
+        public RowInts(ColumnFile data) throws IOException {
+            Path path = Files.createTempFile(data.path.getParent(), "rows", ".tmp");
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                       StandardOpenOption.DELETE_ON_CLOSE);
+            int numSegments = (data.numRows + SEGMENT_ROWS - 1) / SEGMENT_ROWS;
+            segments = new IntBuffer[numSegments];
+            for (int s = 0; s < numSegments; s++) {
+                int rows = Math.min(SEGMENT_ROWS, data.numRows - s * SEGMENT_ROWS);
+                // Mapping past the end of the file grows it (with zeros).
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE,
+                                                      4L * s * SEGMENT_ROWS, 4L * rows);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                segments[s] = buffer.asIntBuffer();
+            }
+        }
+
+        /** Copies the values of rows [from, from + count), like readColumn(). */
+        public void get(int from, int[] values, int count) {
+            segments[from / SEGMENT_ROWS].get(from % SEGMENT_ROWS, values, 0, count);
+        }
+
+        /** Stores the values of rows [from, from + count). */
+        public void put(int from, int[] values, int count) {
+            segments[from / SEGMENT_ROWS].put(from % SEGMENT_ROWS, values, 0, count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,361 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.SplittableRandom;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * k-fold cross-validation of single trees over a grid of settings, for
+ * tuning them in one process instead of one -train per setting.
+ *
+ * The expensive preparation is done once and shared, read-only, by every
+ * fold and setting: the rows are sorted by each feature once (for the
+ * settings without bins) and the features are binned once per number of bins
+ * (for those with). A fold is just the ids of its rows; a tree takes its
+ * training rows out of the shared sorted rows or builds on the shared bins,
+ * and the held-out rows are copied into columns once per fold for scoring.
+ * The bins are cut on every row, held-out ones included; only feature values
+ * are used for that, never labels.
+ *
+ * Each (setting, fold) pair is a task, and the tasks run in parallel on
+ * `numThreads` threads, one tree per thread. The folds are stratified (each
+ * holds about the same share of each label) and come from `seed`, so the
+ * numbers don't depend on the number of threads.
+ */
+public class CrossValidation {
+    // The number of folds.
+    int numFolds = 5;
+    // The number of tasks run at a time.
+    int numThreads = 1;
+    // Deals the rows into folds and picks the settings of a random search.
+    long seed = 1;
+    // If > 0 and fewer than the grid holds, try this many settings drawn at
+    // random from the grid instead of all of them.
+    int numSamples = 0;
+
+    // The grid: every combination of these values is a setting.
+    String[] criteria = {"infogain"};
+    int[] bins = {0};
+    int[] depths = {0};
+    int[] minSplits = {2};
+    int[] minLeaves = {1};
+    double[] minGains = {0};
+    int[] leaves = {0};
+
+    /**
+     * One setting of the grid, and how it did.
+     */
+    static class Setting {
+        String criterion;       // as SplitCriterion.forName() takes it
+        int maxBins;
+        int maxDepth;
+        int minSamplesSplit;
+        int minSamplesLeaf;
+        double minImpurityDecrease;
+        int maxLeaves;
+
+        // by fold
+        double[] accuracy;
+        long[] trainNanos;
+        long[] numLeaves;
+
+        /**
+         * @return A tree with these settings.
+         */
+        DecisionTree newTree() {
+            DecisionTree tree = new DecisionTree();
+            tree.criterion = SplitCriterion.forName(criterion);
+            tree.maxBins = maxBins;
+            tree.maxDepth = maxDepth;
+            tree.minSamplesSplit = minSamplesSplit;
+            tree.minSamplesLeaf = minSamplesLeaf;
+            tree.minImpurityDecrease = minImpurityDecrease;
+            tree.maxLeaves = maxLeaves;
+            return tree;
+        }
+
+        double meanAccuracy() {
+            double sum = 0;
+            for (double a : accuracy) {
+                sum += a;
+            }
+            return sum / accuracy.length;
+        }
+
+        double stdAccuracy() {
+            double mean = meanAccuracy();
+            double sum = 0;
+            for (double a : accuracy) {
+                sum += (a - mean) * (a - mean);
+            }
+            return Math.sqrt(sum / accuracy.length);
+        }
+
+        double meanTrainMillis() {
+            long sum = 0;
+            for (long nanos : trainNanos) {
+                sum += nanos;
+            }
+            return sum / 1e6 / trainNanos.length;
+        }
+
+        double meanLeaves() {
+            long sum = 0;
+            for (long n : numLeaves) {
+                sum += n;
+            }
+            return (double) sum / numLeaves.length;
+        }
+
+        /**
+         * @return The -train options that give this setting (the defaults
+         *         are left out).
+         */
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append("-criterion ").append(criterion);
+            if (maxBins > 0)
+                out.append(" -bins ").append(maxBins);
+            if (maxDepth > 0)
+                out.append(" -depth ").append(maxDepth);
+            if (minSamplesSplit != 2)
+                out.append(" -minsplit ").append(minSamplesSplit);
+            if (minSamplesLeaf != 1)
+                out.append(" -minleaf ").append(minSamplesLeaf);
+            if (minImpurityDecrease != 0)
+                out.append(" -mingain ").append(minImpurityDecrease);
+            if (maxLeaves > 0)
+                out.append(" -leaves ").append(maxLeaves);
+            return out.toString();
+        }
+    }
+
+    /**
+     * One fold: the ids of the rows it holds out and of the rows the trees
+     * are trained on, and the held-out rows copied into columns.
+     */
+    static class Fold {
+        int[] trainRows;
+        int[] testRows;
+        double[][] testColumns;
+    }
+
+    ArrayList<Setting> settings;
+    // Time spent sorting and binning, shared by every setting.
+    long prepareNanos;
+
+    /**
+     * @return Every combination of the grid's values, or `numSamples` of
+     *         them drawn at random (without repeats).
+     */
+    ArrayList<Setting> grid() {
+        ArrayList<Setting> all = new ArrayList<Setting>();
+        for (String criterion : criteria)
+        for (int maxBins : bins)
+        for (int maxDepth : depths)
+        for (int minSplit : minSplits)
+        for (int minLeaf : minLeaves)
+        for (double minGain : minGains)
+        for (int maxLeaves : leaves) {
+            Setting setting = new Setting();
+            setting.criterion = criterion;
+            setting.maxBins = maxBins;
+            setting.maxDepth = maxDepth;
+            setting.minSamplesSplit = minSplit;
+            setting.minSamplesLeaf = minLeaf;
+            setting.minImpurityDecrease = minGain;
+            setting.maxLeaves = maxLeaves;
+            all.add(setting);
+        }
+        if (numSamples > 0 && numSamples < all.size()) {
+            SplittableRandom random = new SplittableRandom(seed);
+            // A partial Fisher-Yates shuffle: the first numSamples are the draw.
+            for (int i = 0; i < numSamples; i++) {
+                Collections.swap(all, i, i + random.nextInt(all.size() - i));
+            }
+            return new ArrayList<Setting>(all.subList(0, numSamples));
+        }
+        return all;
+    }
+
+    /**
+     * Deals the rows into `numFolds` folds, each label's rows shuffled and
+     * dealt round-robin so every fold gets its share of each label.
+     */
+    Fold[] makeFolds(DecisionTree.ColumnarDataset data) {
+        int n = data.numRows;
+        SplittableRandom random = new SplittableRandom(seed);
+        int[] foldOf = new int[n];
+        int[][] byLabel = new int[data.numLabels()][];
+        int[] labelCounts = new int[data.numLabels()];
+        for (int row = 0; row < n; row++) {
+            labelCounts[data.labels[row]]++;
+        }
+        for (int k = 0; k < byLabel.length; k++) {
+            byLabel[k] = new int[labelCounts[k]];
+            labelCounts[k] = 0;
+        }
+        for (int row = 0; row < n; row++) {
+            int k = data.labels[row];
+            byLabel[k][labelCounts[k]++] = row;
+        }
+        int next = 0;
+        for (int[] rows : byLabel) {
+            for (int i = rows.length - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int row = rows[i];
+                rows[i] = rows[j];
+                rows[j] = row;
+            }
+            for (int row : rows) {
+                foldOf[row] = next;
+                next = (next + 1) % numFolds;
+            }
+        }
+
+        Fold[] folds = new Fold[numFolds];
+        int[] sizes = new int[numFolds];
+        for (int row = 0; row < n; row++) {
+            sizes[foldOf[row]]++;
+        }
+        for (int i = 0; i < numFolds; i++) {
+            Fold fold = new Fold();
+            fold.testRows = new int[sizes[i]];
+            fold.trainRows = new int[n - sizes[i]];
+            int test = 0;
+            int train = 0;
+            for (int row = 0; row < n; row++) {
+                if (foldOf[row] == i) {
+                    fold.testRows[test++] = row;
+                } else {
+                    fold.trainRows[train++] = row;
+                }
+            }
+            fold.testColumns = new double[data.numFeatures()][fold.testRows.length];
+            for (int f = 0; f < data.numFeatures(); f++) {
+                for (int j = 0; j < fold.testRows.length; j++) {
+                    fold.testColumns[f][j] = data.columns[f][fold.testRows[j]];
+                }
+            }
+            folds[i] = fold;
+        }
+        return folds;
+    }
+
+    /**
+     * Cross-validates every setting of the grid on a columnar dataset.
+     *
+     * @param data A columnar dataset with labels.
+     * @return The settings, best first: by mean accuracy, then in grid order
+     *         (training times vary from run to run, so they don't break ties).
+     */
+    public ArrayList<Setting> run(DecisionTree.ColumnarDataset data) {
+        if (numFolds < 2 || numFolds > data.numRows) {
+            throw new IllegalArgumentException("the number of folds must be between 2 and the number of rows: "
+                                               + numFolds);
+        }
+        settings = grid();
+        Fold[] folds = makeFolds(data);
+        for (Setting setting : settings) {
+            setting.accuracy = new double[numFolds];
+            setting.trainNanos = new long[numFolds];
+            setting.numLeaves = new long[numFolds];
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            long start = System.nanoTime();
+            boolean anyExact = false;
+            TreeSet<Integer> binCounts = new TreeSet<Integer>();
+            for (Setting setting : settings) {
+                if (setting.maxBins > 0) {
+                    binCounts.add(setting.maxBins);
+                } else {
+                    anyExact = true;
+                }
+            }
+            DecisionTree binner = new DecisionTree();
+            HashMap<Integer, ForkJoinTask<DecisionTree.BinnedDataset>> binnings =
+                new HashMap<Integer, ForkJoinTask<DecisionTree.BinnedDataset>>();
+            for (int maxBins : binCounts) {
+                binnings.put(maxBins, pool.submit(() -> binner.new BinnedDataset(data, maxBins)));
+            }
+            int[][] presorted = anyExact
+                ? pool.invoke(ForkJoinTask.adapt(() -> DecisionTree.presort(data, pool)))
+                : null;
+            HashMap<Integer, DecisionTree.BinnedDataset> binned = new HashMap<Integer, DecisionTree.BinnedDataset>();
+            for (int maxBins : binCounts) {
+                binned.put(maxBins, binnings.get(maxBins).join());
+            }
+            prepareNanos = System.nanoTime() - start;
+
+            ArrayList<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+            for (Setting setting : settings) {
+                for (int i = 0; i < numFolds; i++) {
+                    int foldIndex = i;
+                    DecisionTree.BinnedDataset settingBins = binned.get(setting.maxBins);
+                    tasks.add(pool.submit(() ->
+                        evaluate(setting, foldIndex, folds[foldIndex], data, presorted, settingBins)));
+                }
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        ArrayList<Setting> ranked = new ArrayList<Setting>(settings);
+        ranked.sort(Comparator.comparingDouble(Setting::meanAccuracy).reversed());
+        return ranked;
+    }
+
+    /**
+     * Trains one setting on one fold's training rows and scores it on the
+     * fold's held-out rows.
+     */
+    void evaluate(Setting setting, int foldIndex, Fold fold, DecisionTree.ColumnarDataset data,
+                  int[][] presorted, DecisionTree.BinnedDataset binned) {
+        DecisionTree tree = setting.newTree();
+        long start = System.nanoTime();
+        DecisionTree.Node root = binned != null ? tree.build(binned, fold.trainRows)
+                                                : tree.build(data, presorted, fold.trainRows);
+        FlatTree flat = FlatTree.compile(root, data.labelNames);
+        setting.trainNanos[foldIndex] = System.nanoTime() - start;
+
+        int[] predictions = new int[fold.testRows.length];
+        flat.predictBatch(fold.testColumns, fold.testRows.length, predictions);
+        int correct = 0;
+        for (int j = 0; j < predictions.length; j++) {
+            if (predictions[j] == data.labels[fold.testRows[j]]) {
+                correct++;
+            }
+        }
+        setting.accuracy[foldIndex] = (double) correct / predictions.length;
+        setting.numLeaves[foldIndex] = tree.stats.leaves();
+    }
+
+    /**
+     * Prints the settings as a leaderboard, best first.
+     *
+     * @param ranked The settings as run() returned them.
+     * @param out    Where to print it.
+     */
+    public void printLeaderboard(ArrayList<Setting> ranked, PrintStream out) {
+        out.printf("%d-fold cross-validation of %d settings (sorting and binning: %.1f ms)%n",
+                   numFolds, ranked.size(), prepareNanos / 1e6);
+        out.printf("%4s  %-8s %-8s %10s %8s  %s%n",
+                   "rank", "accuracy", "std", "train ms", "leaves", "options");
+        for (int i = 0; i < ranked.size(); i++) {
+            Setting setting = ranked.get(i);
+            out.printf("%4d  %.6f %.6f %10.1f %8.1f  %s%n",
+                       i + 1, setting.meanAccuracy(), setting.stdAccuracy(),
+                       setting.meanTrainMillis(), setting.meanLeaves(), setting);
+        }
+    }
+}
@@ -0,0 +1,696 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Streams a data file (a header, then one comma separated row per line) into
+ * columnar arrays.
+ *
+ * The file is memory-mapped a window at a time and numbers are parsed
+ * straight from the mapped bytes, so no line, String or boxed Double is
+ * created per row. Labels are interned as they are read: a label's bytes are
+ * compared with the labels seen so far, and only a new label becomes a String.
+ *
+ * An empty field, "?" or "NA" is a missing value, read as NaN. readAll()
+ * also learns categorical features: a column with a value that isn't a
+ * number becomes categorical, and its values are read as category codes
+ * (0, 1, ... in order of first appearance), looked up in a hash table of the
+ * values' bytes. If the column had numbers in earlier rows, the file is read
+ * again from the top, once per such column. Once the whole file is read, a
+ * categorical column whose values are mostly numbers is taken to be numeric
+ * with a few typos, which are read as missing (with a warning). To read
+ * prediction data coded the same way as the training data, call
+ * useCategories() first.
+ */
+public class CsvColumnReader implements Closeable {
+    // How much of the file is mapped at once; grows if a line is longer.
+    static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    public ArrayList<String> columnNames = new ArrayList<String>();
+    public ArrayList<String> labelNames = new ArrayList<String>();
+    public int numFeatures;
+    boolean hasLabel;
+
+    ArrayList<byte[]> labelBytes = new ArrayList<byte[]>();
+    FileChannel channel;    // null when reading from memory
+    long fileSize;
+    ByteBuffer window;
+    long windowStart;   // the file offset of window[0]
+    int windowSize = WINDOW_SIZE;
+    int pos;            // the next unread byte of the window
+    String filename;
+    long lineNumber;
+
+    // If false, a missing value is an error (for code that can't handle them):
+    // a NumberFormatException, like a category where one can't be learned.
+    boolean allowMissing = true;
+    // The categories of each categorical feature; null entries (or all null)
+    // for numeric features.
+    Dictionary[] dictionaries;
+    // True once useCategories() fixed which columns are categorical.
+    boolean categoriesFixed;
+    // True while readAll() is learning which columns are categorical.
+    boolean learnCategories;
+    // Set when a column turned categorical after it had numbers in it.
+    boolean restart;
+    // If not null, gets the text of each field read as NaN (missing, or a
+    // category the model never saw), missingText[feature][row], so it can be
+    // written back as it was; a feature's array is made when it first needs one.
+    String[][] missingText;
+
+    /**
+     * Opens a data file and reads its header.
+     *
+     * @param filename The name of the file to read.
+     * @param hasLabel If true, the last column is the label and all other
+     *                 columns are features. If false, *all* columns are
+     *                 features.
+     * @throws IOException
+     */
+    public CsvColumnReader(String filename, boolean hasLabel) throws IOException {
+        this.filename = filename;
+        this.hasLabel = hasLabel;
+        channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        fileSize = channel.size();
+        map(0);
+        readHeader();
+    }
+
+    /**
+     * Reads data that is already in memory, such as the body of a request
+     * to PredictionServer, the same way as a file.
+     *
+     * @param bytes    The data: a header, then one row per line.
+     * @param name     What to call the data in error messages.
+     * @param hasLabel As for a file.
+     * @throws IOException If there is no header.
+     */
+    public CsvColumnReader(byte[] bytes, String name, boolean hasLabel) throws IOException {
+        this.filename = name;
+        this.hasLabel = hasLabel;
+        fileSize = bytes.length;
+        window = ByteBuffer.wrap(bytes);
+        readHeader();
+    }
+
+    void readHeader() throws IOException {
+        int end = lineEnd();
+        if (end < 0) {
+            throw new IOException(filename +" has no header");
+        }
+        byte[] header = new byte[trimmedEnd(pos, end) - pos];
+        window.get(pos, header);
+        pos = end + 1;
+        lineNumber = 1;
+        for (String col : new String(header, StandardCharsets.UTF_8).split(",")) {
+            columnNames.add(col);
+        }
+        numFeatures = hasLabel ? columnNames.size() - 1 : columnNames.size();
+    }
+
+    /**
+     * Reads categorical features with the categories of a model's training
+     * data, so each category gets the code it had there. A category the
+     * model never saw is read as missing (NaN). Columns that are numeric in
+     * the model stay numeric.
+     *
+     * @param categories The model's categories (see
+     *                   Classifier.categories()), or null if all its features
+     *                   are numeric.
+     */
+    public void useCategories(ArrayList<ArrayList<String>> categories) {
+        dictionaries = null;
+        if (categories != null) {
+            dictionaries = new Dictionary[numFeatures];
+            for (int f = 0; f < Math.min(numFeatures, categories.size()); f++) {
+                if (categories.get(f) != null) {
+                    dictionaries[f] = new Dictionary(categories.get(f));
+                }
+            }
+        }
+        categoriesFixed = true;
+        learnCategories = false;
+    }
+
+    /**
+     * @return The categories of each feature as in
+     *         DecisionTree.ColumnarDataset: null if all are numeric, else
+     *         per feature the category names, or null for a numeric one.
+     */
+    public ArrayList<ArrayList<String>> categories() {
+        if (dictionaries == null) {
+            return null;
+        }
+        ArrayList<ArrayList<String>> categories = new ArrayList<ArrayList<String>>(numFeatures);
+        boolean any = false;
+        for (Dictionary dictionary : dictionaries) {
+            categories.add(dictionary == null ? null : dictionary.names);
+            any |= dictionary != null;
+        }
+        return any ? categories : null;
+    }
+
+    /**
+     * Reads up to `maxRows` rows into columns[f][offset...] and
+     * labels[offset...].
+     *
+     * @param columns One array per feature, with room for the rows.
+     * @param labels  The label id of each row (ignored if there is no label
+     *                column).
+     * @param offset  The index of the first row to fill.
+     * @param maxRows The most rows to read.
+     * @return The number of rows read; 0 at the end of the file.
+     * @throws IOException
+     */
+    public int readChunk(double[][] columns, int[] labels, int offset, int maxRows)
+        throws IOException {
+
+        int numRead = 0;
+        while (numRead < maxRows && !restart) {
+            int end = lineEnd();
+            if (end < 0) {
+                break;
+            }
+            lineNumber++;
+            int lineEnd = trimmedEnd(pos, end);
+            if (lineEnd == pos) {
+                pos = end + 1;
+                continue;
+            }
+            parseRow(pos, lineEnd, columns, labels, offset + numRead);
+            pos = end + 1;
+            numRead++;
+        }
+        return numRead;
+    }
+
+    /**
+     * Reads every remaining row.
+     *
+     * @param tree The tree the dataset is for (ColumnarDataset is one of its
+     *             inner classes).
+     * @return The rows as a ColumnarDataset.
+     * @throws IOException
+     */
+    public DecisionTree.ColumnarDataset readAll(DecisionTree tree) throws IOException {
+        if (!categoriesFixed) {
+            dictionaries = new Dictionary[numFeatures];
+            learnCategories = true;
+        }
+        int capacity = 1024;
+        double[][] columns = new double[numFeatures][capacity];
+        int[] labels = hasLabel ? new int[capacity] : null;
+        int numRows = 0;
+
+        while (true) {
+            if (numRows == capacity) {
+                // Guess the number of rows from the bytes per row so far, so
+                // the arrays are usually grown once rather than doubled
+                // (and copied) many times.
+                long bytesRead = windowStart + pos;
+                long estimate = (long) (1.05 * numRows * fileSize / bytesRead) + 1;
+                capacity = (int) Math.min(Integer.MAX_VALUE - 8,
+                                          Math.max(2L * capacity, estimate));
+                for (int f = 0; f < numFeatures; f++) {
+                    columns[f] = Arrays.copyOf(columns[f], capacity);
+                }
+                if (hasLabel)
+                    labels = Arrays.copyOf(labels, capacity);
+            }
+            int numRead = readChunk(columns, labels, numRows, capacity - numRows);
+            if (restart) {
+                restart = false;
+                rewind();
+                numRows = 0;
+                continue;
+            }
+            if (numRead == 0) {
+                break;
+            }
+            numRows += numRead;
+        }
+
+        for (int f = 0; f < numFeatures; f++) {
+            columns[f] = Arrays.copyOf(columns[f], numRows);
+            if (learnCategories && dictionaries[f] != null) {
+                checkCategorical(f, columns[f]);
+            }
+        }
+        if (hasLabel)
+            labels = Arrays.copyOf(labels, numRows);
+        DecisionTree.ColumnarDataset data =
+            tree.new ColumnarDataset(columnNames, columns, labels, labelNames, numRows);
+        data.categories = categories();
+        return data;
+    }
+
+    /**
+     * Looks again at a column that turned categorical while learning. If most
+     * of its values are numbers after all, the others are taken for typos:
+     * the column goes back to numeric, and they are read as missing. Either
+     * way, a column mixing numbers and other values is warned about on
+     * stderr, as it's usually a mistake in the data.
+     *
+     * @param f      The feature.
+     * @param column Its values (category codes), changed in place.
+     */
+    void checkCategorical(int f, double[] column) {
+        ArrayList<String> names = dictionaries[f].names;
+        double[] numbers = new double[names.size()];
+        for (int code = 0; code < numbers.length; code++) {
+            try {
+                numbers[code] = Double.parseDouble(names.get(code));
+            } catch (NumberFormatException e) {
+                numbers[code] = Double.NaN;
+            }
+        }
+        long numeric = 0;
+        long other = 0;
+        String example = null;
+        for (double value : column) {
+            if (value != value) {
+                continue;
+            }
+            double number = numbers[(int) value];
+            if (number == number) {
+                numeric++;
+            } else {
+                other++;
+                if (example == null) {
+                    example = names.get((int) value);
+                }
+            }
+        }
+        if (numeric == 0) {
+            return;
+        }
+        if (numeric > other) {
+            for (int row = 0; row < column.length; row++) {
+                if (column[row] == column[row]) {
+                    column[row] = numbers[(int) column[row]];
+                }
+            }
+            dictionaries[f] = null;
+            System.err.println("Warning: "+ filename +": "+ columnNames.get(f) +" is numeric, but "
+                + other +" of its values aren't numbers (e.g. \""+ example +"\"); reading them as missing");
+        } else {
+            System.err.println("Warning: "+ filename +": "+ columnNames.get(f) +" is read as categorical, but "
+                + numeric +" of its values are numbers");
+        }
+    }
+
+    /**
+     * Goes back to the first row after the header.
+     */
+    void rewind() throws IOException {
+        if (channel != null) {
+            map(0);
+        } else {
+            pos = 0;
+        }
+        pos = lineEnd() + 1;
+        lineNumber = 1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Maps the window starting at the given file offset.
+     */
+    void map(long start) throws IOException {
+        long size = Math.min(windowSize, fileSize - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        windowStart = start;
+        pos = 0;
+    }
+
+    /**
+     * Finds the end of the line starting at `pos`, moving the window along
+     * the file if the line isn't all in it.
+     *
+     * @return The index of the line's '\n' (or of the end of the file if the
+     *         last line has none), or -1 if there are no more lines.
+     */
+    int lineEnd() throws IOException {
+        while (true) {
+            int limit = window.limit();
+            for (int i = pos; i < limit; i++) {
+                if (window.get(i) == '\n') {
+                    return i;
+                }
+            }
+            long windowEnd = windowStart + limit;
+            if (windowEnd >= fileSize) {
+                return pos < limit ? limit : -1;
+            }
+            // The line runs past the window: map again from its start, with a
+            // bigger window if the line alone fills this one.
+            if (pos == 0) {
+                windowSize *= 2;
+            }
+            map(windowStart + pos);
+        }
+    }
+
+    /**
+     * @return `end` moved back past a trailing '\r'.
+     */
+    int trimmedEnd(int start, int end) {
+        if (end > start && window.get(end - 1) == '\r') {
+            return end - 1;
+        }
+        return end;
+    }
+
+    void parseRow(int start, int end, double[][] columns, int[] labels, int row)
+        throws IOException {
+
+        int fieldStart = start;
+        for (int f = 0; f < numFeatures; f++) {
+            int fieldEnd = fieldStart;
+            while (fieldEnd < end && window.get(fieldEnd) != ',') {
+                fieldEnd++;
+            }
+            if (fieldEnd == end && (f < numFeatures - 1 || hasLabel)) {
+                throw new IOException(filename +":"+ lineNumber +": expected "+
+                    columnNames.size() +" columns");
+            }
+            double value;
+            if (dictionaries != null && dictionaries[f] != null) {
+                value = categoryCode(f, fieldStart, fieldEnd);
+            } else {
+                value = parseDouble(fieldStart, fieldEnd);
+                if (value != value) {
+                    value = parseOther(f, fieldStart, fieldEnd, columns, row);
+                }
+            }
+            columns[f][row] = value;
+            if (value != value && missingText != null) {
+                if (missingText[f] == null) {
+                    missingText[f] = new String[columns[f].length];
+                }
+                missingText[f][row] = new String(bytes(fieldStart, fieldEnd), StandardCharsets.UTF_8);
+            }
+            fieldStart = fieldEnd + 1;
+        }
+        if (hasLabel) {
+            labels[row] = internLabel(fieldStart, end);
+        }
+    }
+
+    /**
+     * @return True if window[start, end) is empty, "?" or "NA".
+     */
+    boolean isMissing(int start, int end) {
+        int length = end - start;
+        return length == 0
+            || (length == 1 && window.get(start) == '?')
+            || (length == 2 && window.get(start) == 'N' && window.get(start + 1) == 'A');
+    }
+
+    /**
+     * Reads a field of a numeric column that isn't a number: a missing value,
+     * or (while learning) the first category of a column that turns out to
+     * be categorical.
+     */
+    double parseOther(int f, int start, int end, double[][] columns, int row) throws IOException {
+        if (isMissing(start, end) || isNaN(start, end)) {
+            if (!allowMissing) {
+                throw new NumberFormatException(filename +":"+ lineNumber +": missing value for "+
+                    columnNames.get(f) +" (not supported here)");
+            }
+            return Double.NaN;
+        }
+        if (!learnCategories) {
+            throw new NumberFormatException(filename +":"+ lineNumber +": "+ columnNames.get(f)
+                +" is not a number: "+ new String(bytes(start, end), StandardCharsets.UTF_8));
+        }
+        dictionaries[f] = new Dictionary();
+        for (int r = 0; r < row; r++) {
+            if (columns[f][r] == columns[f][r]) {
+                // Numbers already read are categories too: read it all again.
+                restart = true;
+                break;
+            }
+        }
+        return categoryCode(f, start, end);
+    }
+
+    /**
+     * @return True if window[start, end) is "NaN", which parseDouble() reads
+     *         as a missing value too.
+     */
+    boolean isNaN(int start, int end) {
+        return end - start == 3 && window.get(start) == 'N' && window.get(start + 1) == 'a'
+            && window.get(start + 2) == 'N';
+    }
+
+    /**
+     * @return The code of the category in window[start, end) of feature f;
+     *         NaN if the field is missing, or if it's a new category and the
+     *         categories are fixed.
+     */
+    double categoryCode(int f, int start, int end) {
+        if (isMissing(start, end)) {
+            return Double.NaN;
+        }
+        Dictionary dictionary = dictionaries[f];
+        int code = dictionary.find(window, start, end);
+        if (code < 0) {
+            if (!learnCategories) {
+                return Double.NaN;
+            }
+            code = dictionary.add(bytes(start, end));
+        }
+        return code;
+    }
+
+    byte[] bytes(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        window.get(start, bytes);
+        return bytes;
+    }
+
+    /**
+     * The categories of one column: an open-addressing hash table from a
+     * category's bytes to its code, so looking up a field needs no String.
+     */
+    static class Dictionary {
+        ArrayList<String> names = new ArrayList<String>();
+        ArrayList<byte[]> keys = new ArrayList<byte[]>();
+        int[] table = new int[16];      // code + 1 per slot; 0 for an empty slot
+
+        Dictionary() {
+        }
+
+        Dictionary(ArrayList<String> names) {
+            for (String name : names) {
+                add(name.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        static int hash(ByteBuffer window, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + window.get(i);
+            }
+            return h ^ (h >>> 16);
+        }
+
+        /**
+         * @return The code of the category in window[start, end), or -1.
+         */
+        int find(ByteBuffer window, int start, int end) {
+            int mask = table.length - 1;
+            for (int slot = hash(window, start, end) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                byte[] key = keys.get(table[slot] - 1);
+                if (equals(key, window, start, end)) {
+                    return table[slot] - 1;
+                }
+            }
+            return -1;
+        }
+
+        static boolean equals(byte[] key, ByteBuffer window, int start, int end) {
+            if (key.length != end - start) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != window.get(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int add(byte[] key) {
+            keys.add(key);
+            names.add(new String(key, StandardCharsets.UTF_8));
+            if (2 * keys.size() > table.length) {
+                table = new int[2 * table.length];
+                for (int code = 0; code < keys.size(); code++) {
+                    insert(code);
+                }
+            } else {
+                insert(keys.size() - 1);
+            }
+            return keys.size() - 1;
+        }
+
+        void insert(int code) {
+            byte[] key = keys.get(code);
+            int mask = table.length - 1;
+            int slot = hash(ByteBuffer.wrap(key), 0, key.length) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = code + 1;
+        }
+    }
+
+    /**
+     * @return The id of the label in window[start, end), adding it to
+     *         `labelNames` if it's new.
+     */
+    int internLabel(int start, int end) {
+        int length = end - start;
+        for (int id = 0; id < labelBytes.size(); id++) {
+            byte[] label = labelBytes.get(id);
+            if (label.length != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && label[i] == window.get(start + i)) {
+                i++;
+            }
+            if (i == length) {
+                return id;
+            }
+        }
+
+        byte[] label = new byte[length];
+        window.get(start, label);
+        labelBytes.add(label);
+        labelNames.add(new String(label, StandardCharsets.UTF_8));
+        return labelBytes.size() - 1;
+    }
+
+    // Powers of ten that are exact as doubles.
+    static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Parses the number in window[start, end).
+     *
+     * Plain decimals with at most 15 significant digits and a small exponent
+     * are converted exactly with one multiplication or division (both
+     * operands are exact doubles, so the result is correctly rounded, the
+     * same as Double.parseDouble()). Anything else falls back to
+     * Double.parseDouble().
+     *
+     * @return The number, or NaN if the field isn't one (see parseOther()).
+     */
+    double parseDouble(int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (window.get(i) == '-' || window.get(i) == '+')) {
+            negative = window.get(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigits = false;
+        while (i < end) {
+            byte b = window.get(i);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            anyDigits = true;
+            if (mantissa != 0 || b != '0') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+            }
+            i++;
+        }
+        if (i < end && window.get(i) == '.') {
+            i++;
+            while (i < end) {
+                byte b = window.get(i);
+                if (b < '0' || b > '9') {
+                    break;
+                }
+                anyDigits = true;
+                if (mantissa != 0 || b != '0') {
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                }
+                exponent--;
+                i++;
+            }
+        }
+        if (anyDigits && i < end && (window.get(i) == 'e' || window.get(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (window.get(i) == '-' || window.get(i) == '+')) {
+                negativeExponent = window.get(i) == '-';
+                i++;
+            }
+            int e = 0;
+            boolean anyExponentDigits = false;
+            while (i < end && e < 10000) {
+                byte b = window.get(i);
+                if (b < '0' || b > '9') {
+                    break;
+                }
+                e = e * 10 + (b - '0');
+                anyExponentDigits = true;
+                i++;
+            }
+            if (!anyExponentDigits) {
+                return slowParseDouble(start, end);
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+
+        if (!anyDigits || i != end || digits > 15) {
+            return slowParseDouble(start, end);
+        }
+        double value = mantissa;
+        if (mantissa != 0) {
+            if (exponent < 0 && exponent >= -22) {
+                value = value / POWERS_OF_TEN[-exponent];
+            } else if (exponent > 0 && exponent <= 22) {
+                value = value * POWERS_OF_TEN[exponent];
+            } else if (exponent != 0) {
+                return slowParseDouble(start, end);
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return The number in window[start, end), or NaN if it isn't one.
+     */
+    double slowParseDouble(int start, int end) {
+        try {
+            return Double.parseDouble(new String(bytes(start, end), StandardCharsets.ISO_8859_1));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -3,8 +3,18 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Supports training a decision tree using an adapted version of the C4.5
@@ -14,7 +24,7 @@ import java.util.HashMap;
  * @author Hank Feild
  * @author Eva Rubio
  */
-public class DecisionTree {
+public class DecisionTree implements Classifier {
 
     /**
      * First Inner class.
@@ -26,6 +36,9 @@ public class DecisionTree {
     public class Observation {
         public ArrayList<Double> features;
         public String label;
+        // how much the observation counts in training (e.g. 2 = as if it
+        // were there twice)
+        public double weight = 1;
 
         /**
          * Sets the features.
@@ -61,15 +74,36 @@ public class DecisionTree {
     }
 
     public class FeatureInfo {
-        public double evalMeasure;
+        public double evalMeasure;      // what features are compared by (SplitCriterion.rank())
+        public double score;            // what one feature's splits are compared by (score())
         public int featureIndex;
-        public double threshold;
+        public double threshold;        // NaN for a categorical split
+        public long[] categories;       // a categorical split: the codes that go left
+        public boolean missingGoesLeft; // where rows missing the feature go
 
         public FeatureInfo(double evalMeasure, int featureIndex, double threshold) {
             this.evalMeasure = evalMeasure;
+            this.score = evalMeasure;
             this.featureIndex = featureIndex;
             this.threshold = threshold;
         }
+
+        /**
+         * Forgets the split found, before a feature is searched again.
+         */
+        void clear() {
+            evalMeasure = 0;
+            score = 0;
+        }
+
+        void copyFrom(FeatureInfo other) {
+            evalMeasure = other.evalMeasure;
+            score = other.score;
+            featureIndex = other.featureIndex;
+            threshold = other.threshold;
+            categories = other.categories;
+            missingGoesLeft = other.missingGoesLeft;
+        }
     }
 
     /**
@@ -91,6 +125,8 @@ public class DecisionTree {
         public ArrayList<String> columnNames;
         // each of these observations have features and also have the label.
         public ArrayList<Observation> observations;
+        // as in ColumnarDataset: null if every feature is numeric
+        public ArrayList<ArrayList<String>> categories;
 
         /**
          * Constructor. Sets the data members.
@@ -121,11 +157,433 @@ public class DecisionTree {
         }
     }
 
+    /**
+     * A columnar, primitive-typed version of Dataset used for training.
+     * 
+     * Instead of one Observation (with boxed Doubles) per row, there is one
+     * double[] per feature and labels are stored as int ids into
+     * `labelNames`. Reading a feature during training is then just an array
+     * access, and a whole dataset is F+1 arrays instead of millions of objects.
+     */
+    public class ColumnarDataset {
+        //the headers (may be null if the data didn't come from a file)
+        public ArrayList<String> columnNames;
+        // columns[feature][row]
+        public double[][] columns;
+        // the label id of each row; null for unlabeled data
+        public int[] labels;
+        // the label of each label id
+        public ArrayList<String> labelNames;
+        public int numRows;
+        // null if every feature is numeric. Otherwise, per feature, the
+        // categories of a categorical feature in code order (its column holds
+        // the codes), or null for a numeric one. A missing value is NaN.
+        public ArrayList<ArrayList<String>> categories;
+        // how much each row counts in training (label counts are sums of
+        // weights); null when every row counts once
+        public double[] weights;
+
+        /**
+         * Constructor. Sets the data members.
+         * @param columnNames A list of column names.
+         * @param columns     One array of values per feature.
+         * @param labels      The label id of each row (or null).
+         * @param labelNames  The label of each label id.
+         * @param numRows     The number of rows.
+         */
+        public ColumnarDataset(ArrayList<String> columnNames, double[][] columns,
+                               int[] labels, ArrayList<String> labelNames,
+                               int numRows) {
+            this.columnNames = columnNames;
+            this.columns = columns;
+            this.labels = labels;
+            this.labelNames = labelNames;
+            this.numRows = numRows;
+        }
+
+        /**
+         * Copies a list of observations into columns, interning each distinct
+         * label into an id.
+         * 
+         * @param columnNames A list of column names (or null).
+         * @param observations A list of observations.
+         */
+        public ColumnarDataset(ArrayList<String> columnNames,
+                               ArrayList<Observation> observations) {
+            this.columnNames = columnNames;
+            this.numRows = observations.size();
+            int numFeatures = numRows == 0 ? 0 : observations.get(0).features.size();
+            this.columns = new double[numFeatures][numRows];
+            this.labels = new int[numRows];
+            this.labelNames = new ArrayList<String>();
+
+            HashMap<String, Integer> labelIds = new HashMap<String, Integer>();
+            for (int row = 0; row < numRows; row++) {
+                Observation obs = observations.get(row);
+                for (int f = 0; f < numFeatures; f++) {
+                    columns[f][row] = obs.features.get(f);
+                }
+                labels[row] = internLabel(obs.label, labelIds, labelNames);
+                if (obs.weight != 1 && weights == null) {
+                    weights = new double[numRows];
+                    Arrays.fill(weights, 0, row, 1);
+                }
+                if (weights != null) {
+                    weights[row] = obs.weight;
+                }
+            }
+        }
+
+        public int numFeatures() {
+            return columns.length;
+        }
+
+        public boolean isCategorical(int featureIndex) {
+            return categories != null && categories.get(featureIndex) != null;
+        }
+
+        public int numCategories(int featureIndex) {
+            return categories.get(featureIndex).size();
+        }
+
+        /**
+         * @return True if any feature value is missing (NaN).
+         */
+        public boolean hasMissing() {
+            for (double[] column : columns) {
+                for (int row = 0; row < numRows; row++) {
+                    if (column[row] != column[row]) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return A CSV version of the header.
+         */
+        public String columnNamesAsCSV() {
+            return String.join(",", columnNames);
+        }
+
+        /**
+         * @return A CSV string of one row, in the same format as
+         *         Observation.toString(): all features followed by the label
+         *         if there is one.
+         */
+        public String rowAsCSV(int row) {
+            StringBuilder output = new StringBuilder();
+            for (int f = 0; f < columns.length; f++) {
+                if (f > 0)
+                    output.append(",");
+                double value = columns[f][row];
+                if (value != value) {
+                    continue;
+                }
+                if (isCategorical(f))
+                    output.append(categories.get(f).get((int) value));
+                else
+                    output.append(value);
+            }
+            if (labels != null)
+                output.append(",").append(labelNames.get(labels[row]));
+            return output.toString();
+        }
+
+        public int numLabels() {
+            return labelNames.size();
+        }
+
+        /**
+         * @return The weight of a row (1 if there are no weights).
+         */
+        public double weight(int row) {
+            return weights == null ? 1 : weights[row];
+        }
+
+        /**
+         * Weights the rows so that every label has the same total weight,
+         * and the weights still add up to the number of rows: a row of label
+         * k counts n / (K * n_k) times (as scikit-learn's
+         * class_weight="balanced" does), times the weight it had. A rare
+         * label then matters as much to the splits, and to the majority in
+         * each leaf, as a common one.
+         */
+        public void balanceClasses() {
+            double[] totals = new double[numLabels()];
+            double total = 0;
+            for (int row = 0; row < numRows; row++) {
+                totals[labels[row]] += weight(row);
+                total += weight(row);
+            }
+            int present = 0;
+            for (double t : totals) {
+                if (t > 0) {
+                    present++;
+                }
+            }
+            double[] balanced = new double[numRows];
+            for (int row = 0; row < numRows; row++) {
+                // A label whose rows all weigh 0 stays at 0.
+                double labelTotal = totals[labels[row]];
+                balanced[row] = labelTotal > 0 ? weight(row) * total / (present * labelTotal) : 0;
+            }
+            weights = balanced;
+        }
+
+        /**
+         * Takes the weight of each row out of a feature column: the column
+         * becomes `weights` (times the weights the rows already had) and is
+         * no longer a feature.
+         * 
+         * @param columnName The name of the column in the header.
+         * @throws IllegalArgumentException If there is no such numeric
+         *                                  feature, a weight is negative or
+         *                                  missing, or none is above 0.
+         */
+        public void takeWeights(String columnName) {
+            int f = columnNames == null ? -1 : columnNames.indexOf(columnName);
+            if (f < 0 || f >= numFeatures() || isCategorical(f)) {
+                throw new IllegalArgumentException("no numeric feature column "+ columnName);
+            }
+            double[] taken = columns[f];
+            boolean anyWeight = false;
+            for (int row = 0; row < numRows; row++) {
+                if (!(taken[row] >= 0)) {
+                    throw new IllegalArgumentException(columnName +" has a weight that isn't a number >= 0: "
+                                                       + taken[row]);
+                }
+                taken[row] *= weight(row);
+                anyWeight |= taken[row] > 0;
+            }
+            if (!anyWeight && numRows > 0) {
+                throw new IllegalArgumentException(columnName +" has no weight above 0");
+            }
+            weights = taken;
+
+            double[][] rest = new double[numFeatures() - 1][];
+            for (int g = 0, i = 0; g < columns.length; g++) {
+                if (g != f) {
+                    rest[i++] = columns[g];
+                }
+            }
+            columns = rest;
+            columnNames = new ArrayList<String>(columnNames);
+            columnNames.remove(f);
+            if (categories != null) {
+                categories = new ArrayList<ArrayList<String>>(categories);
+                categories.remove(f);
+            }
+        }
+
+        /**
+         * @param rows Row indices into this dataset.
+         * @return The number of rows with each label id.
+         */
+        public double[] labelCounts(int[] rows) {
+            double[] counts = new double[numLabels()];
+            for (int row : rows) {
+                counts[labels[row]]++;
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * A ColumnarDataset whose features have been quantized into at most
+     * `maxBins` bins each, for the histogram-based training mode.
+     * 
+     * Each value is replaced by the byte code of its bin. Bin b of feature f
+     * holds the values in (cuts[f][b-1], cuts[f][b]], so a split between bins
+     * b and b+1 is the real threshold cuts[f][b]. Features with few distinct
+     * values get one bin per value; the others get bins holding roughly the
+     * same number of rows.
+     * 
+     * A categorical feature gets one bin per category instead (the
+     * categories past the 256th share the last bin), and a feature with
+     * missing values gets one more bin, after the others, for them.
+     */
+    public class BinnedDataset {
+        public ColumnarDataset data;
+        // codes[feature][row], read as unsigned (code & 0xFF)
+        public byte[][] codes;
+        // cuts[feature][bin]: the upper bound of each bin but the last (null
+        // for a categorical feature)
+        public double[][] cuts;
+        // by feature: the number of bins of values that aren't missing
+        public int[] valueBins;
+        // by feature: whether bin valueBins[f] holds missing values
+        public boolean[] missingBin;
+
+        /**
+         * Quantizes every feature of `data` once, up front.
+         * 
+         * @param data    A columnar dataset with labels.
+         * @param maxBins The most bins per feature, between 2 and 256.
+         */
+        public BinnedDataset(ColumnarDataset data, int maxBins) {
+            if (maxBins < 2 || maxBins > 256) {
+                throw new IllegalArgumentException("maxBins must be between 2 and 256: "+ maxBins);
+            }
+            this.data = data;
+            int numFeatures = data.numFeatures();
+            codes = new byte[numFeatures][];
+            cuts = new double[numFeatures][];
+            valueBins = new int[numFeatures];
+            missingBin = new boolean[numFeatures];
+            for (int f = 0; f < numFeatures; f++) {
+                double[] column = data.columns[f];
+                for (int row = 0; row < data.numRows && !missingBin[f]; row++) {
+                    missingBin[f] = column[row] != column[row];
+                }
+                // Leave room for the missing bin in the 256 codes.
+                int bins = missingBin[f] ? Math.min(maxBins, 255) : maxBins;
+                if (data.isCategorical(f)) {
+                    valueBins[f] = Math.max(1, Math.min(data.numCategories(f), missingBin[f] ? 255 : 256));
+                } else {
+                    cuts[f] = findCuts(column, data.numRows, bins);
+                    valueBins[f] = cuts[f].length + 1;
+                }
+                codes[f] = new byte[data.numRows];
+                for (int row = 0; row < data.numRows; row++) {
+                    codes[f][row] = (byte) binOf(f, column[row]);
+                }
+            }
+        }
+
+        public int numBins(int featureIndex) {
+            return valueBins[featureIndex] + (missingBin[featureIndex] ? 1 : 0);
+        }
+
+        /**
+         * @return The bin of a value of feature f.
+         */
+        int binOf(int featureIndex, double value) {
+            if (value != value) {
+                return valueBins[featureIndex];
+            }
+            if (cuts[featureIndex] == null) {
+                return Math.min((int) value, valueBins[featureIndex] - 1);
+            }
+            return binOf(cuts[featureIndex], value);
+        }
+
+        /**
+         * @return By bin, whether the rows in it go left on `split`.
+         */
+        boolean[] binsGoingLeft(FeatureInfo split) {
+            int f = split.featureIndex;
+            boolean[] left = new boolean[numBins(f)];
+            if (cuts[f] == null) {
+                for (int b = 0; b < valueBins[f]; b++) {
+                    left[b] = inCategories(split.categories, b);
+                }
+            } else {
+                int splitBin = split.threshold == Double.POSITIVE_INFINITY ? valueBins[f] - 1
+                                                                           : binOf(cuts[f], split.threshold);
+                for (int b = 0; b <= splitBin; b++) {
+                    left[b] = true;
+                }
+            }
+            if (missingBin[f]) {
+                left[valueBins[f]] = split.missingGoesLeft;
+            }
+            return left;
+        }
+
+        /**
+         * @return The bin of `value`: the first bin whose cut is >= value.
+         */
+        static int binOf(double[] featureCuts, double value) {
+            int low = 0;
+            int high = featureCuts.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (featureCuts[mid] < value) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Picks the bin boundaries of one column: a new bin starts at the
+         * first distinct value after every n/maxBins rows.
+         */
+        static double[] findCuts(double[] column, int n, int maxBins) {
+            double[] sorted = Arrays.copyOf(column, n);
+            Arrays.sort(sorted);
+            // Missing values (NaN) sort last; cut the others.
+            while (n > 0 && sorted[n - 1] != sorted[n - 1]) {
+                n--;
+            }
+            double[] found = new double[maxBins - 1];
+            int numCuts = 0;
+            double rowsPerBin = (double) n / maxBins;
+            int binStart = 0;
+            for (int i = 1; i < n && numCuts < found.length; i++) {
+                if (sorted[i] != sorted[i - 1] && i - binStart >= rowsPerBin) {
+                    found[numCuts++] = midpoint(sorted[i - 1], sorted[i]);
+                    binStart = i;
+                }
+            }
+            // Few distinct values: give each one its own bin.
+            if (numCuts < found.length) {
+                int distinct = 0;
+                for (int i = 1; i < n && distinct <= found.length; i++) {
+                    if (sorted[i] != sorted[i - 1]) {
+                        distinct++;
+                    }
+                }
+                if (distinct <= found.length) {
+                    numCuts = 0;
+                    for (int i = 1; i < n; i++) {
+                        if (sorted[i] != sorted[i - 1]) {
+                            found[numCuts++] = midpoint(sorted[i - 1], sorted[i]);
+                        }
+                    }
+                }
+            }
+            return Arrays.copyOf(found, numCuts);
+        }
+    }
+
+    /**
+     * Looks up the id of a label, giving it the next free id the first time
+     * it is seen.
+     * 
+     * @param label      The label to intern.
+     * @param labelIds   The ids handed out so far.
+     * @param labelNames The labels in id order; new labels are appended.
+     * @return The id of `label`.
+     */
+    static int internLabel(String label, HashMap<String, Integer> labelIds,
+                           ArrayList<String> labelNames) {
+        Integer id = labelIds.get(label);
+        if (id == null) {
+            id = labelNames.size();
+            labelIds.put(label, id);
+            labelNames.add(label);
+        }
+        return id;
+    }
+
 
 
     /**
      * Generate a list of observations from the data file.
      * 
+     * A missing value (an empty field, "?" or "NA") becomes NaN. A column
+     * whose values are mostly not numbers is categorical: its values become
+     * category codes, 0, 1, ... in order of first appearance, and the
+     * categories are kept in Dataset.categories. In a column of mostly
+     * numbers, a value that isn't one is read as missing. Either way, a
+     * column mixing the two is warned about on stderr (as CsvColumnReader
+     * does).
+     * 
      * @param filename The name of the file to parse. Should have a header and be in
      *                 comma separated value (CSV) format.
      * @param hasLabel If true, the last column will be used as the label for each
@@ -144,27 +602,159 @@ public class DecisionTree {
         for(String col : reader.readLine().split(",")){
             columnNames.add(col);
         }
+        int numFeatures = hasLabel ? columnNames.size()-1 : columnNames.size();
 
+        // Read every row first: whether a column is categorical depends on
+        // how many of its values are numbers.
+        ArrayList<String[]> rows = new ArrayList<String[]>();
+        long[] numbers = new long[numFeatures];
+        long[] others = new long[numFeatures];
+        String[] example = new String[numFeatures];
         while(reader.ready()){
-            String[] columns = reader.readLine().split(",");
-            ArrayList<Double> features = new ArrayList<Double>();
-            String label = null;
-            if(hasLabel){
-                for(int i = 0; i < columns.length-1; i++){
-                    features.add(Double.parseDouble(columns[i]));
+            String[] columns = reader.readLine().split(",", -1);
+            for(int i = 0; i < numFeatures && i < columns.length; i++){
+                if(isMissing(columns[i])){
+                    continue;
                 }
-                label = columns[columns.length-1];
-            } else {
-                for(int i = 0; i < columns.length; i++){
-                    features.add(Double.parseDouble(columns[i]));
+                if(isNumber(columns[i])){
+                    numbers[i]++;
+                } else {
+                    others[i]++;
+                    if(example[i] == null)
+                        example[i] = columns[i];
                 }
             }
-            
-            observations.add(new Observation(features, label));
+            rows.add(columns);
         }
         reader.close();
 
-        return new Dataset(columnNames, observations);
+        boolean[] categorical = new boolean[numFeatures];
+        for(int i = 0; i < numFeatures; i++){
+            categorical[i] = others[i] > 0 && others[i] >= numbers[i];
+            if(others[i] > 0 && numbers[i] > 0){
+                System.err.println("Warning: "+ filename +": "+ columnNames.get(i)
+                    + (categorical[i] ? " is read as categorical, but "+ numbers[i] +" of its values are numbers"
+                                      : " is numeric, but "+ others[i] +" of its values aren't numbers (e.g. \""
+                                        + example[i] +"\"); reading them as missing"));
+            }
+        }
+
+        ArrayList<ArrayList<String>> categories = null;
+        ArrayList<HashMap<String, Integer>> codes = new ArrayList<HashMap<String, Integer>>();
+        for(int i = 0; i < numFeatures; i++){
+            if(categorical[i] && categories == null){
+                categories = new ArrayList<ArrayList<String>>();
+                for(int j = 0; j < numFeatures; j++)
+                    categories.add(null);
+            }
+            if(categorical[i])
+                categories.set(i, new ArrayList<String>());
+            codes.add(categorical[i] ? new HashMap<String, Integer>() : null);
+        }
+
+        for(String[] columns : rows){
+            ArrayList<Double> features = new ArrayList<Double>();
+            for(int i = 0; i < numFeatures; i++){
+                String value = columns[i];
+                if(isMissing(value)){
+                    features.add(Double.NaN);
+                } else if(categorical[i]){
+                    features.add((double) internLabel(value, codes.get(i), categories.get(i)));
+                } else {
+                    features.add(isNumber(value) ? Double.parseDouble(value) : Double.NaN);
+                }
+            }
+            String label = hasLabel ? columns[columns.length-1] : null;
+            observations.add(new Observation(features, label));
+        }
+
+        Dataset data = new Dataset(columnNames, observations);
+        data.categories = categories;
+        return data;
+    }
+
+    /**
+     * @return True if a field of a data file is a missing value: empty, "?"
+     *         or "NA".
+     */
+    static boolean isMissing(String value) {
+        return value.isEmpty() || value.equals("?") || value.equals("NA");
+    }
+
+    /**
+     * @return True if a field of a data file is a number.
+     */
+    static boolean isNumber(String value) {
+        try {
+            Double.parseDouble(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Generate a columnar dataset from the data file. Same format as
+     * parseDataFile(), but the file is streamed through a CsvColumnReader:
+     * numbers are parsed straight from the file's bytes into primitive
+     * arrays and each label is interned once into an id.
+     * 
+     * @param filename The name of the file to parse. Should have a header and be in
+     *                 comma separated value (CSV) format.
+     * @param hasLabel If true, the last column will be used as the label for each
+     *                 row and all other columns will be features. If false,
+     *                 *all* columns will be used as features.
+     * @return The columns, labels and header (column names).
+     * @throws IOException
+     */
+    public ColumnarDataset parseColumnarDataFile(String filename, boolean hasLabel)
+        throws IOException {
+
+        Metrics.PhaseEvent event = Metrics.begin(metrics, Metrics.Phase.PARSE);
+        try (CsvColumnReader reader = new CsvColumnReader(filename, hasLabel)) {
+            ColumnarDataset data = reader.readAll(this);
+            Metrics.end(metrics, event, data.numRows);
+            return data;
+        }
+    }
+
+    /**
+     * Same as parseColumnarDataFile(String, boolean), for data that must be
+     * coded like other data already read (e.g. a -dev file like the training
+     * file): categorical features get the same category codes, a category
+     * not in `categories` is missing, and the other features are numeric.
+     * 
+     * @param categories The categories of the other data (see
+     *                   ColumnarDataset), or null if it is all numeric.
+     */
+    public ColumnarDataset parseColumnarDataFile(String filename, boolean hasLabel,
+                                                 ArrayList<ArrayList<String>> categories)
+        throws IOException {
+
+        Metrics.PhaseEvent event = Metrics.begin(metrics, Metrics.Phase.PARSE);
+        try (CsvColumnReader reader = new CsvColumnReader(filename, hasLabel)) {
+            reader.useCategories(categories);
+            ColumnarDataset data = reader.readAll(this);
+            Metrics.end(metrics, event, data.numRows);
+            return data;
+        }
+    }
+
+    /**
+     * Opens the column file of a data file, for train(ColumnFile). The data
+     * file is converted into one first if it hasn't been already (see
+     * ColumnFile.forDataFile()).
+     * 
+     * @param filename The name of a data file with labels, or of a column
+     *                 file.
+     * @return The column file, memory-mapped.
+     * @throws IOException
+     */
+    public ColumnFile openColumnFile(String filename) throws IOException {
+        Metrics.PhaseEvent event = Metrics.begin(metrics, Metrics.Phase.PARSE);
+        ColumnFile data = new ColumnFile(ColumnFile.forDataFile(filename));
+        Metrics.end(metrics, event, data.numRows);
+        return data;
     }
 
     /**
@@ -172,30 +762,37 @@ public class DecisionTree {
      */
     public class Node {
         
-        HashMap<String,Integer> labelDistribution;  // a map of labels and their counts in this and descendent nodes
+        double[] labelCounts;   // the (weighted) count of each label id in this and descendent nodes
         int n; // the number of training observations represented in this and descendent nodes
+        double weight; // their total weight (n when each observation counts once)
         
                     //------Only for Internal Nodes:--------
         int featureIndex;   // the feature this node splits on
         double threshold;   // the threshold on the feature for splitting
         Node lessThanEqualChild;    // the Node to traverse for observations whose feature is ≤ threshold
         Node greaterThanChild;  // the Node to traverse for observations whose feature is > threshold
+        long[] categories;  // for a categorical feature: the codes that go to lessThanEqualChild
+                            // instead of a threshold (which is NaN)
+        boolean missingGoesLeft;    // observations missing the feature go to lessThanEqualChild
+
+                    //------Only for regression trees (boosting):--------
+        double value;   // the value predicted for observations ending here (labelCounts is null)
 
         /**
          * Sets the Node's data members for a leaf node.
          * 
-         * @param labelDistribution The distribution over labels represented in
-         *                          this subtree.
+         * @param labelCounts The count of each label id represented in this
+         *                    subtree (see ColumnarDataset.labelNames).
          * @param n The total number of labels represented in this subtree.
          */
-        public Node(HashMap<String,Integer> labelDistribution, int n){
-            this(labelDistribution, n, 0, 0, null, null);
+        public Node(double[] labelCounts, int n){
+            this(labelCounts, n, 0, 0, null, null);
         }
 
         /**
          * Sets the Node's data members for an internal node.
          * 
-         * @param labelDistribution The distribution over labels represented in this
+         * @param labelCounts       The count of each label id represented in this
          *                          subtree.
          * @param n                 The total number of labels represented in this
          *                          subtree.
@@ -212,234 +809,2894 @@ public class DecisionTree {
          *                          value greater than the threshold (only for internal
          *                          nodes).
          */
-        public Node(HashMap<String,Integer> labelDistribution, int n, 
+        public Node(double[] labelCounts, int n, 
                     int featureIndex, double threshold, Node lessThanEqualChild, 
                     Node greaterThanChild){
             
-            this.labelDistribution = labelDistribution;
+            this.labelCounts = labelCounts;
             this.n = n;
+            this.weight = n;
             this.featureIndex = featureIndex;
             this.threshold = threshold;
             this.lessThanEqualChild = lessThanEqualChild;
             this.greaterThanChild = greaterThanChild;
         }
 
+        /**
+         * Makes an internal node of a leaf that was just built.
+         * 
+         * @param leaf              The node as a leaf (its distribution and n).
+         * @param split             How to split it.
+         * @param lessThanEqualChild The child for values that go left.
+         * @param greaterThanChild  The child for the others.
+         */
+        public Node(Node leaf, FeatureInfo split, Node lessThanEqualChild, Node greaterThanChild){
+            this(leaf.labelCounts, leaf.n, split.featureIndex, split.threshold,
+                 lessThanEqualChild, greaterThanChild);
+            weight = leaf.weight;
+            categories = split.categories;
+            missingGoesLeft = split.missingGoesLeft;
+        }
+
         /**
          * @return True if this is a leaf node.
          */
         public boolean isLeafNode(){
             return lessThanEqualChild == null;
         }
+
+        /**
+         * @return True if all of this node's observations have one label.
+         */
+        public boolean isPure(){
+            int present = 0;
+            for (double count : labelCounts) {
+                if (count > 0) {
+                    present++;
+                }
+            }
+            return present <= 1;
+        }
+
+        /**
+         * @param value A value of this node's feature (NaN if missing).
+         * @return True if it goes to lessThanEqualChild.
+         */
+        public boolean goesLeft(double value){
+            if (value != value) {
+                return missingGoesLeft;
+            }
+            if (categories != null) {
+                return inCategories(categories, value);
+            }
+            return value <= threshold;
+        }
+    }
+
+    /**
+     * @return True if the category with code `code` is in the bitset
+     *         `categories` (bit c of word c/64 stands for code c).
+     */
+    static boolean inCategories(long[] categories, double code) {
+        int c = (int) code;
+        return c >= 0 && (c >>> 6) < categories.length && (categories[c >>> 6] & (1L << c)) != 0;
     }
 
     Node root;
+    // the header and label vocabulary of the training data
+    ArrayList<String> columnNames;
+    ArrayList<String> labelNames;
+    // the category names of each categorical feature (see ColumnarDataset)
+    ArrayList<ArrayList<String>> categories;
+    // the tree as flat arrays, used for prediction; set by train() and by
+    // loadModel() (root stays null then)
+    FlatTree flatTree;
+    // flatTree compiled by compileBytecode(), used instead of it if not null.
+    BytecodeTree.Predictor compiledTree;
+
+    // The number of threads build() may use. 1 builds on the calling thread.
+    int numThreads = 1;
+    // Nodes with at least this many rows build their children as separate
+    // fork/join tasks and search their features in parallel.
+    int forkCutoff = 10000;
+    // If > 0, train() quantizes each feature into at most this many bins and
+    // searches splits over per-bin histograms instead of sorted rows.
+    int maxBins = 0;
+    // build(ColumnFile) builds nodes of at most this many rows in memory. 0
+    // picks a number from the size of the heap.
+    int outOfCoreRows = 0;
+    // How candidate splits are scored.
+    SplitCriterion criterion = SplitCriterion.INFO_GAIN;
+    // If not null, train() prunes the tree against this held-out data
+    // (e.g. dev.csv), using `pruneMethod`.
+    ColumnarDataset pruneData;
+    PruneMethod pruneMethod = PruneMethod.REDUCED_ERROR;
+
+    // Stopping rules: a node is left as a leaf instead of being split if any
+    // of them applies. 0 means no limit.
+    int maxDepth = 0;                   // nodes this deep (the root is 0)
+    int minSamplesSplit = 2;            // nodes with fewer rows
+    int minSamplesLeaf = 1;             // splits leaving fewer rows on a side
+    double minImpurityDecrease = 0;     // splits scoring less (criterion units)
+    int maxLeaves = 0;                  // grow best-first up to this many leaves
+    // Why the nodes of every tree built so far stopped growing.
+    BuildStats stats = new BuildStats();
+    // Where training time goes, for -stats; null leaves it uninstrumented.
+    Metrics metrics;
+
+    /**
+     * Why a node was left as a leaf.
+     */
+    public enum StopReason {
+        PURE("pure"),
+        NO_GAIN("no split improves it"),
+        MAX_DEPTH("max depth"),
+        MIN_SAMPLES_SPLIT("min samples to split"),
+        MIN_SAMPLES_LEAF("min samples per leaf"),
+        MIN_IMPURITY_DECREASE("min impurity decrease"),
+        MAX_LEAVES("max leaves reached");
+
+        final String description;
+
+        StopReason(String description) {
+            this.description = description;
+        }
+    }
+
+    /**
+     * Counts the leaves made for each StopReason (and the deepest one) as
+     * trees are built. Safe to update from several threads.
+     */
+    public static class BuildStats {
+        final AtomicLongArray stops = new AtomicLongArray(StopReason.values().length);
+        final AtomicInteger depth = new AtomicInteger();
+
+        void stopped(StopReason reason, int nodeDepth) {
+            stops.incrementAndGet(reason.ordinal());
+            depth.accumulateAndGet(nodeDepth, Math::max);
+        }
+
+        /** @return The number of leaves left as leaves for this reason. */
+        public long count(StopReason reason) {
+            return stops.get(reason.ordinal());
+        }
+
+        /** @return The number of leaves. */
+        public long leaves() {
+            long leaves = 0;
+            for (int i = 0; i < stops.length(); i++) {
+                leaves += stops.get(i);
+            }
+            return leaves;
+        }
+
+        /** @return The depth of the deepest leaf. */
+        public int depth() {
+            return depth.get();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append(leaves()).append(" leaves, max depth ").append(depth())
+               .append("; stopped growing because:");
+            for (StopReason reason : StopReason.values()) {
+                out.append(String.format("%n   %-24s %d", reason.description, count(reason)));
+            }
+            return out.toString();
+        }
+    }
+
+    /**
+     * The ways prune() can prune.
+     */
+    public enum PruneMethod {
+        // Replace a subtree by a leaf whenever that doesn't hurt the held-out
+        // accuracy.
+        REDUCED_ERROR,
+        // Find the nested subtrees that are best for each alpha (weakest link
+        // pruning on training error) and keep the one with the best held-out
+        // accuracy.
+        COST_COMPLEXITY
+    }
 
     /**
      * Initializes the root of the tree to null.
      */
-    public DecisionTree() {
-        root = null;
+    public DecisionTree() {
+        root = null;
+    }
+
+    /**
+     * Trains a decision tree on the set of observations and stores this in
+     * `self.root`.
+     * 
+     * @param observations A list of Observations with labels.
+     */
+    public void train(ArrayList<Observation> observations) {
+        train(new ColumnarDataset(null, observations));
+    }
+
+    /**
+     * Trains a decision tree on a columnar dataset and stores this in
+     * `self.root`.
+     * 
+     * @param data A columnar dataset with labels.
+     */
+    public void train(ColumnarDataset data) {
+        columnNames = data.columnNames;
+        labelNames = data.labelNames;
+        categories = data.categories;
+        if (metrics != null) {
+            metrics.beginTraining(data);
+        }
+        if (maxBins > 0) {
+            Metrics.PhaseEvent event = Metrics.begin(metrics, Metrics.Phase.BIN);
+            BinnedDataset binned = new BinnedDataset(data, maxBins);
+            Metrics.end(metrics, event, data.numRows);
+            event = Metrics.begin(metrics, Metrics.Phase.BUILD);
+            root = build(binned);
+            Metrics.end(metrics, event, data.numRows);
+        } else {
+            Metrics.PhaseEvent event = Metrics.begin(metrics, Metrics.Phase.BUILD);
+            root = build(data);
+            Metrics.end(metrics, event, data.numRows);
+        }
+        prune();
+        flatTree = FlatTree.compile(root, labelNames);
+        compiledTree = null;
+    }
+
+    /**
+     * Trains a decision tree on a column file and stores this in `self.root`.
+     * The columns are streamed from disk rather than loaded onto the heap
+     * (see build(ColumnFile)).
+     * 
+     * @param data A column file with labels.
+     * @throws IOException If the scratch file can't be made.
+     */
+    public void train(ColumnFile data) throws IOException {
+        columnNames = data.columnNames;
+        labelNames = data.labelNames;
+        categories = null;
+        if (metrics != null) {
+            metrics.beginTraining(data.columnNames, data.numFeatures);
+        }
+        Metrics.PhaseEvent event = Metrics.begin(metrics, Metrics.Phase.BUILD);
+        root = build(data);
+        Metrics.end(metrics, event, data.numRows);
+        prune();
+        flatTree = FlatTree.compile(root, labelNames);
+        compiledTree = null;
+    }
+
+    public Boolean hasOneClass(ArrayList<String> arrayListLabels) {
+        for (String lab : arrayListLabels) {
+            if (!lab.equals(arrayListLabels.get(0))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+    
+    public class SplitData {
+        public ArrayList<Observation> leftSplit;
+        public ArrayList<Observation> rightSplit;
+
+        public SplitData(ArrayList<Observation> leftSplit, ArrayList<Observation> rightSplit) {
+            this.leftSplit = leftSplit;
+            this.rightSplit = rightSplit;
+        }
+    }
+
+    public SplitData makeSplit(ArrayList<Observation> observations, double threshold, int featIndx) {
+        ArrayList<Observation> leftSplit = new ArrayList<Observation>();
+        ArrayList<Observation> rightSplit = new ArrayList<Observation>();
+
+        for (Observation ob : observations) {
+            if (ob.features.get(featIndx) <= threshold) {
+                leftSplit.add(ob);
+
+            } else {
+                rightSplit.add(ob);
+            }
+        }
+
+        return new SplitData(leftSplit, rightSplit);
+    }
+
+    /**
+     * The columnar version of SplitData: the row indices on each side.
+     */
+    public class RowSplit {
+        public int[] leftRows;
+        public int[] rightRows;
+
+        public RowSplit(int[] leftRows, int[] rightRows) {
+            this.leftRows = leftRows;
+            this.rightRows = rightRows;
+        }
+    }
+
+    public RowSplit makeSplit(ColumnarDataset data, int[] rows, double threshold, int featIndx) {
+        double[] column = data.columns[featIndx];
+        int numLeft = 0;
+        for (int row : rows) {
+            if (column[row] <= threshold) {
+                numLeft++;
+            }
+        }
+
+        int[] leftRows = new int[numLeft];
+        int[] rightRows = new int[rows.length - numLeft];
+        int l = 0;
+        int r = 0;
+        for (int row : rows) {
+            if (column[row] <= threshold) {
+                leftRows[l++] = row;
+            } else {
+                rightRows[r++] = row;
+            }
+        }
+
+        return new RowSplit(leftRows, rightRows);
+    }
+
+    /**
+     * Counts each label of a list of labels.
+     * 
+     * @param arrayListLabels A list of labels, each one of `labelNames`.
+     * @param labelNames      The label of each label id.
+     * @return The count of each label id.
+     */
+    public double[] getDistribution(ArrayList<String> arrayListLabels, ArrayList<String> labelNames) {
+        double[] labelCounts = new double[labelNames.size()];
+        for (String cla : arrayListLabels) {
+            labelCounts[labelNames.indexOf(cla)]++;
+        }
+        return labelCounts;
+    }
+
+    /**
+     * Builds a decision tree on the set of observations.
+     * 
+     * This is the algo from the video. The observations are copied into a
+     * ColumnarDataset first so that the search never unboxes a feature.
+     * 
+     * @param observations A list of Observations with labels.
+     * @return A Node representing a subtree or leaf.
+     */
+    public Node build(ArrayList<Observation> observations) {
+        return build(new ColumnarDataset(null, observations));
+    }
+
+    /**
+     * Builds a decision tree on every row of a columnar dataset.
+     * 
+     * @param data A columnar dataset with labels.
+     * @return A Node representing a subtree or leaf.
+     */
+    public Node build(ColumnarDataset data) {
+        return build(data, 0);
+    }
+
+    /**
+     * Builds the subtree of a node at `depth` on every row of a columnar
+     * dataset (the stopping rules count depth from the real root).
+     */
+    Node build(ColumnarDataset data, int depth) {
+        if (numThreads <= 1) {
+            BuildWorkspace ws = new BuildWorkspace(data, null);
+            return grow(ws, new SplitBuffers(data), 0, ws.sortedRows[0].length, depth);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            return pool.invoke(ForkJoinTask.adapt(() -> {
+                BuildWorkspace ws = new BuildWorkspace(data, pool);
+                return grow(ws, new SplitBuffers(data), 0, ws.sortedRows[0].length, depth);
+            }));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Builds a decision tree on a weighted sample of a columnar dataset, as
+     * one tree of a random forest does. Always builds on the calling thread
+     * (a forest builds its trees in parallel instead).
+     * 
+     * @param data            A columnar dataset with labels; only read.
+     * @param presorted       presort(data), shared by every tree.
+     * @param draws           The number of times a bootstrap sample drew
+     *                        each row. It counts as that many rows, weighted
+     *                        by the row's own weight if the data has weights;
+     *                        rows of weight 0 are left out of the tree.
+     * @param featuresPerNode The number of features, picked at random, to
+     *                        search at each node.
+     * @param random          Picks the features; gives the same tree for the
+     *                        same seed.
+     * @return A Node representing the tree.
+     */
+    public Node build(ColumnarDataset data, int[][] presorted, double[] draws,
+                      int featuresPerNode, SplittableRandom random) {
+        BuildWorkspace ws = new BuildWorkspace(data, presorted, draws, featuresPerNode, random);
+        return grow(ws, new SplitBuffers(data), 0, ws.sortedRows[0].length, 0);
+    }
+
+    /**
+     * Builds a decision tree on some of the rows of a columnar dataset, e.g.
+     * the training folds of a cross-validation. Nothing is sorted: the rows
+     * are taken out of presorted rows shared by every subset. Always builds
+     * on the calling thread.
+     * 
+     * @param data      A columnar dataset with labels; only read.
+     * @param presorted presort(data), shared by every subset.
+     * @param rows      The ids of the rows to build on.
+     * @return A Node representing the tree.
+     */
+    public Node build(ColumnarDataset data, int[][] presorted, int[] rows) {
+        BuildWorkspace ws = new BuildWorkspace(data, presorted, rows);
+        return grow(ws, new SplitBuffers(data), 0, ws.sortedRows[0].length, 0);
+    }
+
+    /**
+     * Grows a tree on [from, to) of the workspace, whose root is at `depth`:
+     * depth-first, or best-first when the number of leaves is limited.
+     */
+    Node grow(BuildWorkspace ws, SplitBuffers buf, int from, int to, int depth) {
+        if (maxLeaves > 0) {
+            return buildBestFirst(ws, buf, from, to);
+        }
+        return build(ws, buf, from, to, depth);
+    }
+
+    /**
+     * Sorts the rows of a dataset by each feature.
+     * 
+     * @param data A columnar dataset.
+     * @param pool The pool to sort the features in parallel on, or null to
+     *             sort them serially. Must be called from inside the pool if
+     *             not null.
+     * @return Per feature, every row id sorted by that feature, the rows
+     *         missing it last. (With no features, one unsorted array listing
+     *         the rows.)
+     */
+    static int[][] presort(ColumnarDataset data, ForkJoinPool pool) {
+        int n = data.numRows;
+        // With no features there is nothing to sort, but we still need
+        // one array listing the rows.
+        int[][] sortedRows = new int[Math.max(data.numFeatures(), 1)][];
+        ArrayList<ForkJoinTask<?>> sorts = new ArrayList<ForkJoinTask<?>>();
+        for (int f = 0; f < sortedRows.length; f++) {
+            int[] rows = new int[n];
+            for (int i = 0; i < n; i++) {
+                rows[i] = i;
+            }
+            sortedRows[f] = rows;
+            if (f < data.numFeatures()) {
+                double[] column = data.columns[f];
+                sorts.add(ForkJoinTask.adapt(() -> sortByValue(rows, column, 0, missingLast(rows, column, 0, n))));
+            }
+        }
+        if (pool != null) {
+            ForkJoinTask.invokeAll(sorts);
+        } else {
+            for (ForkJoinTask<?> sort : sorts) {
+                sort.invoke();
+            }
+        }
+        return sortedRows;
+    }
+
+    /**
+     * The shared arrays build() works in. They are allocated once per tree
+     * instead of once per node, so building a deep tree doesn't create
+     * millions of short-lived lists.
+     * 
+     * sortedRows[f] holds every row id sorted by feature f. A node owns the
+     * same range [from, to) of each of them, so its rows are always available
+     * in sorted order without sorting again. Splitting a node partitions its
+     * range in place (like quicksort, but stable so the order is kept), and
+     * the children get the two halves.
+     * 
+     * Sibling subtrees own disjoint ranges (and disjoint rows), so they can be
+     * built by different threads without locking. Anything a thread writes to
+     * outside of its range lives in SplitBuffers instead.
+     */
+    class BuildWorkspace {
+        ColumnarDataset data;
+        int[][] sortedRows;
+        boolean[] goesLeft;     // by row id: the side of the split being made
+        int[] scratch;          // by position: the right rows while partitioning
+        ForkJoinPool pool;      // null when building on a single thread
+        double[] weights;       // by row id; null when every row counts once
+        double[] draws;         // by row id: the times a bootstrap sample drew the row,
+                                // which counts as that many rows; null outside a forest
+        int featuresPerNode;    // the number of features searched per node
+        SplittableRandom random; // picks them when it's fewer than all (serial only)
+
+        /**
+         * Sorts the rows by each feature once, up front. Rows of weight 0
+         * are left out, as they would make leaves without weight.
+         * 
+         * @param data A columnar dataset with labels.
+         * @param pool The pool to build on, or null to build serially. Must be
+         *             called from inside the pool if not null.
+         */
+        BuildWorkspace(ColumnarDataset data, ForkJoinPool pool) {
+            this.data = data;
+            this.pool = pool;
+            this.weights = data.weights;
+            Metrics.PhaseEvent event = Metrics.begin(metrics, Metrics.Phase.SORT);
+            sortedRows = presort(data, pool);
+            Metrics.end(metrics, event, data.numRows);
+            if (weights != null) {
+                for (int f = 0; f < sortedRows.length; f++) {
+                    sortedRows[f] = weightedRows(sortedRows[f], weights);
+                }
+            }
+            featuresPerNode = data.numFeatures();
+            goesLeft = new boolean[data.numRows];
+            scratch = new int[data.numRows];
+        }
+
+        /**
+         * Takes the rows of weight > 0 out of rows that are already sorted, so
+         * a forest sorts the dataset once rather than once per tree.
+         * 
+         * @param data            A columnar dataset with labels.
+         * @param presorted       presort(data).
+         * @param draws           The number of times each row was drawn.
+         * @param featuresPerNode The number of features to search per node.
+         * @param random          Picks the features searched at each node.
+         */
+        BuildWorkspace(ColumnarDataset data, int[][] presorted, double[] draws,
+                       int featuresPerNode, SplittableRandom random) {
+            this.data = data;
+            this.draws = draws;
+            this.weights = draws;
+            if (data.weights != null) {
+                weights = new double[data.numRows];
+                for (int row = 0; row < weights.length; row++) {
+                    weights[row] = draws[row] * data.weights[row];
+                }
+            }
+            this.featuresPerNode = Math.min(featuresPerNode, data.numFeatures());
+            this.random = random;
+            int n = 0;
+            for (double w : weights) {
+                if (w > 0) {
+                    n++;
+                }
+            }
+            sortedRows = new int[presorted.length][n];
+            for (int f = 0; f < presorted.length; f++) {
+                int[] rows = sortedRows[f];
+                int i = 0;
+                for (int row : presorted[f]) {
+                    if (weights[row] > 0) {
+                        rows[i++] = row;
+                    }
+                }
+            }
+            goesLeft = new boolean[data.numRows];
+            scratch = new int[n];
+        }
+
+        /**
+         * Takes a subset of the rows out of rows that are already sorted, so
+         * a cross-validation sorts the dataset once rather than once per fold.
+         * 
+         * @param data      A columnar dataset with labels.
+         * @param presorted presort(data).
+         * @param rows      The ids of the rows to keep (but those of weight 0).
+         */
+        BuildWorkspace(ColumnarDataset data, int[][] presorted, int[] rows) {
+            this.data = data;
+            this.weights = data.weights;
+            rows = weightedRows(rows, weights);
+            featuresPerNode = data.numFeatures();
+            // goesLeft marks the kept rows until the tree uses it.
+            goesLeft = new boolean[data.numRows];
+            for (int row : rows) {
+                goesLeft[row] = true;
+            }
+            sortedRows = new int[presorted.length][rows.length];
+            for (int f = 0; f < presorted.length; f++) {
+                int[] kept = sortedRows[f];
+                int i = 0;
+                for (int row : presorted[f]) {
+                    if (goesLeft[row]) {
+                        kept[i++] = row;
+                    }
+                }
+            }
+            Arrays.fill(goesLeft, false);
+            scratch = new int[rows.length];
+        }
+    }
+
+    /**
+     * The per-thread scratch space of build(): label counts and one best
+     * candidate per feature.
+     */
+    class SplitBuffers {
+        double[] nodeCounts;        // label counts of the node being built
+        double[][] leftCounts;      // per feature, label counts during a sweep
+        double[][] rightCounts;
+        FeatureInfo[] candidates;   // per feature, the best split found
+        int[] features;             // the feature ids, shuffled to pick subsets
+        double[][] missingCounts;   // per feature, label counts of the rows missing it
+        // per categorical feature (null for numeric ones): label counts per
+        // category (then of the missing rows), and the categories in the
+        // order they are swept
+        double[][] categoryCounts;
+        double[][] categoryKeys;
+        int[][] categoryOrder;
+
+        SplitBuffers(ColumnarDataset data) {
+            int numFeatures = data.numFeatures();
+            int numLabels = data.numLabels();
+            nodeCounts = new double[numLabels];
+            leftCounts = new double[numFeatures][numLabels];
+            rightCounts = new double[numFeatures][numLabels];
+            missingCounts = new double[numFeatures][numLabels];
+            candidates = new FeatureInfo[numFeatures];
+            features = new int[numFeatures];
+            for (int f = 0; f < numFeatures; f++) {
+                candidates[f] = new FeatureInfo(0, f, 0);
+                features[f] = f;
+            }
+            if (data.categories != null) {
+                categoryCounts = new double[numFeatures][];
+                categoryKeys = new double[numFeatures][];
+                categoryOrder = new int[numFeatures][];
+                for (int f = 0; f < numFeatures; f++) {
+                    if (data.isCategorical(f)) {
+                        int numCategories = data.numCategories(f);
+                        // with room for the row counts of weighted rows
+                        categoryCounts[f] = new double[(numCategories + 1) * (numLabels + 1)];
+                        categoryKeys[f] = new double[Math.max(numCategories, 256)];
+                        categoryOrder[f] = new int[Math.max(numCategories, 256)];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds a subtree as a fork/join task, with its own SplitBuffers.
+     */
+    @SuppressWarnings("serial") // never serialized
+    class BuildTask extends RecursiveTask<Node> {
+        BuildWorkspace ws;
+        int from;
+        int to;
+        int depth;
+
+        BuildTask(BuildWorkspace ws, int from, int to, int depth) {
+            this.ws = ws;
+            this.from = from;
+            this.to = to;
+            this.depth = depth;
+        }
+
+        @Override
+        protected Node compute() {
+            return build(ws, new SplitBuffers(ws.data), from, to, depth);
+        }
+    }
+
+    /**
+     * Builds a decision tree on the rows in [from, to) of the workspace,
+     * depth-first.
+     * 
+     * Each feature's best split is found on its own and the winner is then
+     * picked in feature order, so the tree is the same whether the features
+     * (and subtrees) are searched serially or in parallel.
+     * 
+     * At each Internal-Node we ask:
+     *      1. What is the bestFeature to split the current list on, 
+     *      2. At what threshhold should we split it?
+     * 
+     * @param ws    The shared arrays of the tree being built.
+     * @param buf   This thread's scratch space.
+     * @param from  The start of this node's range (inclusive).
+     * @param to    The end of this node's range (exclusive).
+     * @param depth The depth of this node (the root is 0).
+     * @return A Node representing a subtree or leaf.
+     */
+    Node build(BuildWorkspace ws, SplitBuffers buf, int from, int to, int depth) {
+        Node node = makeLeaf(ws, buf, from, to);
+        FeatureInfo bestFeatInfo = findSplit(ws, buf, node, from, to, depth);
+        if (bestFeatInfo == null) {
+            return node;
+        }
+
+        int mid = partition(ws, from, to, bestFeatInfo);
+        Node lessThanEqualChild;
+        Node greaterThanChild;
+        if (ws.pool != null && to - from >= forkCutoff) {
+            BuildTask leftTask = new BuildTask(ws, from, mid, depth + 1);
+            leftTask.fork();
+            greaterThanChild = build(ws, buf, mid, to, depth + 1);
+            lessThanEqualChild = leftTask.join();
+        } else {
+            lessThanEqualChild = build(ws, buf, from, mid, depth + 1);
+            greaterThanChild = build(ws, buf, mid, to, depth + 1);
+        }
+        return new Node(node, bestFeatInfo, lessThanEqualChild, greaterThanChild);
+    }
+
+    /**
+     * Builds a decision tree on the rows in [from, to) of the workspace,
+     * best-first: of all the leaves that could still be split, the one whose
+     * split removes the most impurity (score times rows) is split next, until
+     * the tree has `maxLeaves` leaves. Runs on the calling thread; the
+     * feature sweeps of large nodes still use the pool.
+     * 
+     * The ranges of the leaves waiting in the queue are disjoint, so
+     * splitting one never disturbs the sorted rows of another.
+     */
+    Node buildBestFirst(BuildWorkspace ws, SplitBuffers buf, int from, int to) {
+        SplitQueue queue = new SplitQueue();
+        Node root = makeLeaf(ws, buf, from, to);
+        queue.push(root, findSplit(ws, buf, root, from, to, 0), from, to, 0, null);
+
+        int leaves = 1;
+        while (!queue.isEmpty() && leaves < maxLeaves) {
+            PendingSplit next = queue.poll();
+            int mid = partition(ws, next.from, next.to, next.split);
+            int depth = next.depth + 1;
+            Node left = makeLeaf(ws, buf, next.from, mid);
+            queue.push(left, findSplit(ws, buf, left, next.from, mid, depth), next.from, mid, depth, null);
+            Node right = makeLeaf(ws, buf, mid, next.to);
+            queue.push(right, findSplit(ws, buf, right, mid, next.to, depth), mid, next.to, depth, null);
+            next.splitNode(left, right);
+            leaves++;
+        }
+        for (PendingSplit pending : queue) {
+            stopped(StopReason.MAX_LEAVES, pending.depth);
+        }
+        return root;
+    }
+
+    /**
+     * A leaf of a tree grown best-first that has a split waiting to be made.
+     */
+    class PendingSplit implements Comparable<PendingSplit> {
+        Node node;
+        FeatureInfo split;
+        int from;
+        int to;
+        int depth;
+        double priority;    // the impurity the split removes
+        long order;         // breaks ties: the first leaf made goes first
+        double[] hist;      // the histogram mode only: the node's histograms
+
+        @Override
+        public int compareTo(PendingSplit other) {
+            int c = Double.compare(other.priority, priority);
+            return c != 0 ? c : Long.compare(order, other.order);
+        }
+
+        /**
+         * Turns the leaf into an internal node with these children.
+         */
+        void splitNode(Node lessThanEqualChild, Node greaterThanChild) {
+            node.featureIndex = split.featureIndex;
+            node.threshold = split.threshold;
+            node.categories = split.categories;
+            node.missingGoesLeft = split.missingGoesLeft;
+            node.lessThanEqualChild = lessThanEqualChild;
+            node.greaterThanChild = greaterThanChild;
+        }
+    }
+
+    /**
+     * The leaves of a best-first build waiting to be split, best first.
+     */
+    @SuppressWarnings("serial") // never serialized
+    class SplitQueue extends PriorityQueue<PendingSplit> {
+        long made;  // the number of leaves queued so far
+
+        /**
+         * Queues a leaf to be split, unless it has no split (null).
+         * 
+         * @return True if the leaf was queued.
+         */
+        boolean push(Node node, FeatureInfo split, int from, int to, int depth, double[] hist) {
+            if (split == null) {
+                return false;
+            }
+            PendingSplit pending = new PendingSplit();
+            pending.node = node;
+            pending.split = split;
+            pending.from = from;
+            pending.to = to;
+            pending.depth = depth;
+            pending.priority = split.evalMeasure * node.weight;
+            pending.order = made++;
+            pending.hist = hist;
+            return add(pending);
+        }
+    }
+
+    /**
+     * Counts the labels of the rows in [from, to) into buf.nodeCounts and
+     * makes a leaf of them.
+     */
+    Node makeLeaf(BuildWorkspace ws, SplitBuffers buf, int from, int to) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        ColumnarDataset data = ws.data;
+        double[] labelCounts = buf.nodeCounts;
+        Arrays.fill(labelCounts, 0);
+        int[] rows = ws.sortedRows[0];
+        int n = to - from;
+        double total = n;
+        if (ws.weights == null) {
+            for (int i = from; i < to; i++) {
+                labelCounts[data.labels[rows[i]]]++;
+            }
+        } else {
+            total = 0;
+            for (int i = from; i < to; i++) {
+                labelCounts[data.labels[rows[i]]] += ws.weights[rows[i]];
+                total += ws.weights[rows[i]];
+            }
+            if (ws.draws != null) {
+                // -minsplit and -minleaf count rows, so a row drawn twice is two
+                double draws = 0;
+                for (int i = from; i < to; i++) {
+                    draws += ws.draws[rows[i]];
+                }
+                n = (int) draws;
+            }
+        }
+        Node node = new Node(labelCounts.clone(), n);
+        node.weight = total;
+        if (metrics != null) {
+            metrics.add(Metrics.Phase.EVALUATE, System.nanoTime() - start);
+        }
+        return node;
+    }
+
+    /**
+     * Finds the best split of a leaf just made by makeLeaf() (buf.nodeCounts
+     * still holds its label counts), if the stopping rules let it be split.
+     * 
+     * @return The split, or null if the node should stay a leaf; the reason
+     *         is counted in `stats`.
+     */
+    FeatureInfo findSplit(BuildWorkspace ws, SplitBuffers buf, Node node, int from, int to, int depth) {
+        if (metrics != null) {
+            metrics.node(depth);
+        }
+        StopReason stop = checkNode(node, depth);
+        if (stop != null) {
+            stopped(stop, depth);
+            return null;
+        }
+
+        // The features to search: all of them, or for a random forest a
+        // random few (the first featuresPerNode of a partial shuffle).
+        int numFeatures = ws.data.numFeatures();
+        int[] features = buf.features;
+        int numToTry = numFeatures;
+        if (ws.featuresPerNode < numFeatures) {
+            numToTry = ws.featuresPerNode;
+            for (int i = 0; i < numToTry; i++) {
+                int j = i + ws.random.nextInt(numFeatures - i);
+                int f = features[i];
+                features[i] = features[j];
+                features[j] = f;
+            }
+            for (FeatureInfo candidate : buf.candidates) {
+                candidate.clear();
+            }
+        }
+
+        //we go through every feature. The rows are already sorted by each
+        //one, so this is a single sweep per feature.
+        double nodeRows = node.n;
+        if (ws.pool != null && to - from >= forkCutoff) {
+            ArrayList<ForkJoinTask<?>> sweeps = new ArrayList<ForkJoinTask<?>>();
+            for (int i = 0; i < numToTry; i++) {
+                int f = features[i];
+                sweeps.add(ForkJoinTask.adapt(() -> sweepFeature(ws, buf, from, to, f, nodeRows)));
+            }
+            ForkJoinTask.invokeAll(sweeps);
+        } else {
+            for (int i = 0; i < numToTry; i++) {
+                sweepFeature(ws, buf, from, to, features[i], nodeRows);
+            }
+        }
+
+        long start = 0;
+        if (metrics != null) {
+            metrics.scanned(depth, (long) (to - from) * numToTry);
+            start = System.nanoTime();
+        }
+        FeatureInfo bestFeatInfo = new FeatureInfo(0, 0, 0);
+        for (FeatureInfo candidate : buf.candidates) {
+            if (candidate.evalMeasure > bestFeatInfo.evalMeasure + GAIN_EPSILON) {
+                bestFeatInfo.copyFrom(candidate);
+            }
+        }
+        FeatureInfo split = checkSplit(bestFeatInfo, depth);
+        if (metrics != null) {
+            metrics.add(Metrics.Phase.EVALUATE, System.nanoTime() - start);
+        }
+        return split;
+    }
+
+    /**
+     * The stopping rules that can be checked before searching for a split.
+     * 
+     * @return Why the node can't be split, or null if it may be.
+     */
+    StopReason checkNode(Node node, int depth) {
+        //BASE CASE 1 - We are at a Leaf Node. Only has 1 class. 
+        if (node.isPure()) {
+            return StopReason.PURE;
+        }
+        if (maxDepth > 0 && depth >= maxDepth) {
+            return StopReason.MAX_DEPTH;
+        }
+        if (node.n < minSamplesSplit) {
+            return StopReason.MIN_SAMPLES_SPLIT;
+        }
+        if (node.n < 2 * minSamplesLeaf) {
+            return StopReason.MIN_SAMPLES_LEAF;
+        }
+        return null;
+    }
+
+    /**
+     * The stopping rules on the best split found.
+     * 
+     * @return The split, or null (counted in `stats`) if it isn't good enough.
+     */
+    FeatureInfo checkSplit(FeatureInfo best, int depth) {
+        //----------------BASE CASE 2---------------
+        // if unable to split data any further, keep the map of all labels
+        // with all their counts.
+        if (best.evalMeasure == 0) {
+            stopped(StopReason.NO_GAIN, depth);
+            return null;
+        }
+        if (best.evalMeasure < minImpurityDecrease) {
+            stopped(StopReason.MIN_IMPURITY_DECREASE, depth);
+            return null;
+        }
+        return best;
+    }
+
+    /**
+     * Counts a node left as a leaf.
+     */
+    void stopped(StopReason reason, int depth) {
+        stats.stopped(reason, depth);
+        if (metrics != null) {
+            metrics.leaf(depth);
+        }
+    }
+
+    /**
+     * Finds the best split of one feature for the node [from, to) and stores
+     * it in buf.candidates[featureIndex].
+     *
+     * @param nodeRows The node's Node.n, which -minleaf is checked against.
+     */
+    void sweepFeature(BuildWorkspace ws, SplitBuffers buf, int from, int to, int featureIndex,
+                      double nodeRows) {
+        FeatureInfo candidate = buf.candidates[featureIndex];
+        candidate.clear();
+        long start = metrics != null ? System.nanoTime() : 0;
+        int[] rows = ws.sortedRows[featureIndex];
+        double[] column = ws.data.columns[featureIndex];
+        int[] labels = ws.data.labels;
+        double[] leftCounts = buf.leftCounts[featureIndex];
+        double[] rightCounts = buf.rightCounts[featureIndex];
+        if (ws.data.isCategorical(featureIndex)) {
+            // Count the labels per category, like a histogram, and sweep that.
+            int numCategories = ws.data.numCategories(featureIndex);
+            int numLabels = buf.nodeCounts.length;
+            double[] counts = buf.categoryCounts[featureIndex];
+            Arrays.fill(counts, 0);
+            int rowOffset = -1;
+            if (ws.weights == null) {
+                for (int i = from; i < to; i++) {
+                    int row = rows[i];
+                    double value = column[row];
+                    int category = value != value ? numCategories : (int) value;
+                    counts[category * numLabels + labels[row]]++;
+                }
+            } else {
+                // The row counts per category follow the label counts.
+                rowOffset = (numCategories + 1) * numLabels;
+                for (int i = from; i < to; i++) {
+                    int row = rows[i];
+                    double value = column[row];
+                    int category = value != value ? numCategories : (int) value;
+                    counts[category * numLabels + labels[row]] += ws.weights[row];
+                    counts[rowOffset + category] += ws.draws == null ? 1 : ws.draws[row];
+                }
+            }
+            sweepCategories(counts, 0, numCategories, numCategories, true, buf.nodeCounts, leftCounts,
+                            rightCounts, buf.categoryKeys[featureIndex], buf.categoryOrder[featureIndex],
+                            rowOffset, featureIndex, candidate);
+        } else {
+            // The rows missing the feature are sorted last.
+            int present = to;
+            while (present > from && column[rows[present - 1]] != column[rows[present - 1]]) {
+                present--;
+            }
+            if (present == to) {
+                sweepThresholds(rows, from, to, column, labels, ws.weights, ws.draws, buf.nodeCounts,
+                                null, 0, false, leftCounts, rightCounts, nodeRows, featureIndex, candidate);
+            } else if (present > from) {
+                double[] missing = buf.missingCounts[featureIndex];
+                Arrays.fill(missing, 0);
+                double missingRows = 0;
+                for (int i = present; i < to; i++) {
+                    missing[labels[rows[i]]] += ws.weights == null ? 1 : ws.weights[rows[i]];
+                    missingRows += ws.draws == null ? 1 : ws.draws[rows[i]];
+                }
+                sweepThresholds(rows, from, present, column, labels, ws.weights, ws.draws, buf.nodeCounts,
+                                missing, missingRows, false, leftCounts, rightCounts, nodeRows,
+                                featureIndex, candidate);
+                sweepThresholds(rows, from, present, column, labels, ws.weights, ws.draws, buf.nodeCounts,
+                                missing, missingRows, true, leftCounts, rightCounts, nodeRows,
+                                featureIndex, candidate);
+            }
+        }
+        if (metrics != null) {
+            metrics.searched(featureIndex, to - from, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Splits the range [from, to) of every sorted row array in place: rows
+     * that go left on the split (feature <= threshold) move to the front,
+     * the rest to the back, each side keeping its sorted order.
+     * 
+     * @param ws    The shared arrays of the tree being built.
+     * @param from  The start of the node's range (inclusive).
+     * @param to    The end of the node's range (exclusive).
+     * @param split The split being made.
+     * @return The end of the left child's range (= start of the right one).
+     */
+    int partition(BuildWorkspace ws, int from, int to, FeatureInfo split) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        int featureIndex = split.featureIndex;
+        double threshold = split.threshold;
+        double[] column = ws.data.columns[featureIndex];
+        int[] splitRows = ws.sortedRows[featureIndex];
+
+        int mid = from;
+        // Sorted by the split feature, the left rows are already a prefix,
+        // unless the split is on categories or sends missing values left.
+        boolean prefix = split.categories == null && !split.missingGoesLeft;
+        if (prefix) {
+            while (mid < to && column[splitRows[mid]] <= threshold) {
+                ws.goesLeft[splitRows[mid]] = true;
+                mid++;
+            }
+            for (int i = mid; i < to; i++) {
+                ws.goesLeft[splitRows[i]] = false;
+            }
+        } else {
+            Node splitter = new Node(null, 0);
+            splitter.threshold = threshold;
+            splitter.categories = split.categories;
+            splitter.missingGoesLeft = split.missingGoesLeft;
+            for (int i = from; i < to; i++) {
+                int row = splitRows[i];
+                ws.goesLeft[row] = splitter.goesLeft(column[row]);
+                if (ws.goesLeft[row]) {
+                    mid++;
+                }
+            }
+        }
+
+        for (int f = 0; f < ws.sortedRows.length; f++) {
+            if (f == featureIndex && prefix) {
+                continue;
+            }
+            int[] rows = ws.sortedRows[f];
+            int left = from;
+            int right = from;
+            for (int i = from; i < to; i++) {
+                int row = rows[i];
+                if (ws.goesLeft[row]) {
+                    rows[left++] = row;
+                } else {
+                    ws.scratch[right++] = row;
+                }
+            }
+            System.arraycopy(ws.scratch, from, rows, left, right - from);
+        }
+
+        if (metrics != null) {
+            metrics.add(Metrics.Phase.PARTITION, System.nanoTime() - start);
+        }
+        return mid;
+    }
+
+    /**
+     * Builds a decision tree on a binned dataset (the histogram mode).
+     * 
+     * Every node keeps one histogram per feature: the label counts of its
+     * rows in each bin. Finding the best split of a feature is then a sweep
+     * over at most 256 bins instead of over the rows. Only the smaller child
+     * of a split scans its rows to get its histograms; the larger child's are
+     * the parent's minus the smaller's. So split finding costs O(n + K) per
+     * feature per node rather than O(n log n).
+     * 
+     * @param binned A binned dataset with labels.
+     * @return A Node representing the tree.
+     */
+    public Node build(BinnedDataset binned) {
+        return build(binned, 0);
+    }
+
+    /**
+     * Builds a decision tree on some of the rows of a binned dataset, e.g.
+     * the training folds of a cross-validation, on the calling thread. The
+     * dataset is only read, so it can be binned once and shared.
+     * 
+     * @param binned A binned dataset with labels.
+     * @param rows   The ids of the rows to build on; not changed.
+     * @return A Node representing the tree.
+     */
+    public Node build(BinnedDataset binned, int[] rows) {
+        return buildBinnedRoot(new BinnedWorkspace(binned, null, rows.clone()), 0);
+    }
+
+    /**
+     * Builds the subtree of a node at `depth` on every row of a binned
+     * dataset, like build(ColumnarDataset, int).
+     */
+    Node build(BinnedDataset binned, int depth) {
+        if (numThreads <= 1) {
+            BinnedWorkspace ws = new BinnedWorkspace(binned, null);
+            return buildBinnedRoot(ws, depth);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            return pool.invoke(ForkJoinTask.adapt(() ->
+                buildBinnedRoot(new BinnedWorkspace(binned, pool), depth)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * The shared arrays of the histogram mode: a single array of row ids
+     * that every node partitions its range of in place, and where each
+     * feature's bins start in a node's histogram array.
+     */
+    class BinnedWorkspace {
+        BinnedDataset binned;
+        int[] rows;
+        int[] histOffsets;      // by feature: the first slot of its bins
+        int[] rowOffsets;       // by feature: where its bins' row counts start, after
+                                // all the label counts; null without weights
+        int histSize;           // the length of one node's histogram array
+        ForkJoinPool pool;      // null when building on a single thread
+        double[] weights;       // by row id; null when every row counts once
+
+        BinnedWorkspace(BinnedDataset binned, ForkJoinPool pool) {
+            this(binned, pool, allRows(binned.data.numRows));
+        }
+
+        /**
+         * @param rows The ids of the rows to build on; partitioned in place.
+         *             Rows of weight 0 are left out.
+         */
+        BinnedWorkspace(BinnedDataset binned, ForkJoinPool pool, int[] rows) {
+            this.binned = binned;
+            this.pool = pool;
+            this.weights = binned.data.weights;
+            this.rows = weightedRows(rows, weights);
+            int numLabels = binned.data.numLabels();
+            histOffsets = new int[binned.data.numFeatures()];
+            for (int f = 0; f < histOffsets.length; f++) {
+                histOffsets[f] = histSize;
+                histSize += binned.numBins(f) * numLabels;
+            }
+            if (weights != null) {
+                // -minleaf counts rows, which the weights don't.
+                rowOffsets = new int[histOffsets.length];
+                for (int f = 0; f < rowOffsets.length; f++) {
+                    rowOffsets[f] = histSize;
+                    histSize += binned.numBins(f);
+                }
+            }
+        }
+    }
+
+    static int[] allRows(int n) {
+        int[] rows = new int[n];
+        for (int i = 0; i < n; i++) {
+            rows[i] = i;
+        }
+        return rows;
+    }
+
+    /**
+     * @return The rows with a weight above 0, in the same order: `rows`
+     *         itself if there are no weights or none of them is 0.
+     */
+    static int[] weightedRows(int[] rows, double[] weights) {
+        if (weights == null) {
+            return rows;
+        }
+        int n = 0;
+        for (int row : rows) {
+            if (weights[row] > 0) {
+                n++;
+            }
+        }
+        if (n == rows.length) {
+            return rows;
+        }
+        int[] kept = new int[n];
+        int i = 0;
+        for (int row : rows) {
+            if (weights[row] > 0) {
+                kept[i++] = row;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * The per-task scratch space of the histogram mode. Spare histogram
+     * arrays are kept for reuse, since a deep tree would otherwise allocate
+     * one for every node.
+     */
+    class BinBuffers {
+        SplitBuffers split;
+        ArrayDeque<double[]> spareHistograms = new ArrayDeque<double[]>();
+        BinnedWorkspace ws;
+
+        BinBuffers(BinnedWorkspace ws) {
+            this.ws = ws;
+            this.split = new SplitBuffers(ws.binned.data);
+        }
+
+        double[] takeHistogram() {
+            double[] hist = spareHistograms.poll();
+            if (hist == null) {
+                return new double[ws.histSize];
+            }
+            Arrays.fill(hist, 0);
+            return hist;
+        }
+
+        void giveBack(double[] hist) {
+            spareHistograms.push(hist);
+        }
+    }
+
+    /**
+     * Builds a subtree of the histogram mode as a fork/join task. The task
+     * takes ownership of the histogram array it is given.
+     */
+    @SuppressWarnings("serial") // never serialized
+    class BinnedBuildTask extends RecursiveTask<Node> {
+        BinnedWorkspace ws;
+        int from;
+        int to;
+        double[] hist;
+        int depth;
+
+        BinnedBuildTask(BinnedWorkspace ws, int from, int to, double[] hist, int depth) {
+            this.ws = ws;
+            this.from = from;
+            this.to = to;
+            this.hist = hist;
+            this.depth = depth;
+        }
+
+        @Override
+        protected Node compute() {
+            return build(ws, new BinBuffers(ws), from, to, hist, depth);
+        }
+    }
+
+    Node buildBinnedRoot(BinnedWorkspace ws, int depth) {
+        BinBuffers buf = new BinBuffers(ws);
+        double[] hist = buf.takeHistogram();
+        long start = metrics != null ? System.nanoTime() : 0;
+        fillHistogram(ws, 0, ws.rows.length, hist);
+        if (metrics != null) {
+            metrics.scanned(depth, (long) ws.rows.length * ws.binned.data.numFeatures());
+            metrics.add(Metrics.Phase.PARTITION, System.nanoTime() - start);
+        }
+        if (maxLeaves > 0) {
+            return buildBestFirst(ws, buf, hist);
+        }
+        return build(ws, buf, 0, ws.rows.length, hist, depth);
+    }
+
+    /**
+     * Builds a decision tree on the rows in [from, to) of the binned
+     * workspace, whose histograms are already in `hist`, depth-first.
+     * 
+     * @param ws    The shared arrays of the tree being built.
+     * @param buf   This task's scratch space.
+     * @param from  The start of this node's range (inclusive).
+     * @param to    The end of this node's range (exclusive).
+     * @param hist  This node's histograms; handed back to `buf` when done.
+     * @param depth The depth of this node (the root is 0).
+     * @return A Node representing a subtree or leaf.
+     */
+    Node build(BinnedWorkspace ws, BinBuffers buf, int from, int to, double[] hist, int depth) {
+        Node node = makeLeaf(ws, buf, from, to);
+        FeatureInfo bestFeatInfo = findSplit(ws, buf, node, hist, depth);
+        if (bestFeatInfo == null) {
+            buf.giveBack(hist);
+            return node;
+        }
+
+        int mid = partition(ws, from, to, bestFeatInfo);
+        double[][] childHists = childHistograms(ws, buf, from, mid, to, hist, depth + 1);
+
+        Node lessThanEqualChild;
+        Node greaterThanChild;
+        if (ws.pool != null && to - from >= forkCutoff) {
+            BinnedBuildTask leftTask = new BinnedBuildTask(ws, from, mid, childHists[0], depth + 1);
+            leftTask.fork();
+            greaterThanChild = build(ws, buf, mid, to, childHists[1], depth + 1);
+            lessThanEqualChild = leftTask.join();
+        } else {
+            lessThanEqualChild = build(ws, buf, from, mid, childHists[0], depth + 1);
+            greaterThanChild = build(ws, buf, mid, to, childHists[1], depth + 1);
+        }
+        return new Node(node, bestFeatInfo, lessThanEqualChild, greaterThanChild);
+    }
+
+    /**
+     * The histogram version of buildBestFirst(). Each leaf waiting in the
+     * queue keeps its histograms until it is split.
+     */
+    Node buildBestFirst(BinnedWorkspace ws, BinBuffers buf, double[] hist) {
+        SplitQueue queue = new SplitQueue();
+        int numRows = ws.rows.length;
+        Node root = makeLeaf(ws, buf, 0, numRows);
+        queue.push(root, findSplit(ws, buf, root, hist, 0), 0, numRows, 0, hist);
+
+        int leaves = 1;
+        while (!queue.isEmpty() && leaves < maxLeaves) {
+            PendingSplit next = queue.poll();
+            int mid = partition(ws, next.from, next.to, next.split);
+            int depth = next.depth + 1;
+            double[][] childHists = childHistograms(ws, buf, next.from, mid, next.to, next.hist, depth);
+            Node left = makeLeaf(ws, buf, next.from, mid);
+            if (!queue.push(left, findSplit(ws, buf, left, childHists[0], depth),
+                            next.from, mid, depth, childHists[0])) {
+                buf.giveBack(childHists[0]);
+            }
+            Node right = makeLeaf(ws, buf, mid, next.to);
+            if (!queue.push(right, findSplit(ws, buf, right, childHists[1], depth),
+                            mid, next.to, depth, childHists[1])) {
+                buf.giveBack(childHists[1]);
+            }
+            next.splitNode(left, right);
+            leaves++;
+        }
+        for (PendingSplit pending : queue) {
+            stopped(StopReason.MAX_LEAVES, pending.depth);
+        }
+        return root;
+    }
+
+    /**
+     * The histogram version of makeLeaf().
+     */
+    Node makeLeaf(BinnedWorkspace ws, BinBuffers buf, int from, int to) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        ColumnarDataset data = ws.binned.data;
+        double[] labelCounts = buf.split.nodeCounts;
+        Arrays.fill(labelCounts, 0);
+        int n = to - from;
+        double total = n;
+        if (ws.weights == null) {
+            for (int i = from; i < to; i++) {
+                labelCounts[data.labels[ws.rows[i]]]++;
+            }
+        } else {
+            total = 0;
+            for (int i = from; i < to; i++) {
+                labelCounts[data.labels[ws.rows[i]]] += ws.weights[ws.rows[i]];
+                total += ws.weights[ws.rows[i]];
+            }
+        }
+        Node node = new Node(labelCounts.clone(), n);
+        node.weight = total;
+        if (metrics != null) {
+            metrics.add(Metrics.Phase.EVALUATE, System.nanoTime() - start);
+        }
+        return node;
+    }
+
+    /**
+     * The histogram version of findSplit(): sweeps the bins of each feature.
+     */
+    FeatureInfo findSplit(BinnedWorkspace ws, BinBuffers buf, Node node, double[] hist, int depth) {
+        if (metrics != null) {
+            metrics.node(depth);
+        }
+        StopReason stop = checkNode(node, depth);
+        if (stop != null) {
+            stopped(stop, depth);
+            return null;
+        }
+
+        BinnedDataset binned = ws.binned;
+        FeatureInfo bestFeatInfo = new FeatureInfo(0, 0, 0);
+        for (int f = 0; f < binned.data.numFeatures(); f++) {
+            FeatureInfo candidate = buf.split.candidates[f];
+            candidate.clear();
+            long start = metrics != null ? System.nanoTime() : 0;
+            int offset = ws.histOffsets[f];
+            int rowOffset = ws.rowOffsets != null ? ws.rowOffsets[f] : -1;
+            int numBins = binned.numBins(f);
+            SplitBuffers split = buf.split;
+            if (binned.cuts[f] == null) {
+                sweepCategories(hist, offset, binned.valueBins[f], binned.data.numCategories(f),
+                                binned.missingBin[f], split.nodeCounts, split.leftCounts[f],
+                                split.rightCounts[f], split.categoryKeys[f], split.categoryOrder[f],
+                                rowOffset, f, candidate);
+            } else if (binned.missingBin[f]) {
+                sweepBins(hist, offset, numBins, binned.cuts[f], true, false, split.nodeCounts,
+                          split.leftCounts[f], split.rightCounts[f], rowOffset, f, candidate);
+                if (hasRows(hist, offset + (numBins - 1) * split.nodeCounts.length, split.nodeCounts.length)) {
+                    sweepBins(hist, offset, numBins, binned.cuts[f], true, true, split.nodeCounts,
+                              split.leftCounts[f], split.rightCounts[f], rowOffset, f, candidate);
+                }
+            } else {
+                sweepBins(hist, offset, numBins, binned.cuts[f], false, false, split.nodeCounts,
+                          split.leftCounts[f], split.rightCounts[f], rowOffset, f, candidate);
+            }
+            if (metrics != null) {
+                metrics.searched(f, node.n, System.nanoTime() - start);
+            }
+            if (candidate.evalMeasure > bestFeatInfo.evalMeasure + GAIN_EPSILON) {
+                bestFeatInfo.copyFrom(candidate);
+            }
+        }
+        return checkSplit(bestFeatInfo, depth);
+    }
+
+    /**
+     * @return True if any of the `numLabels` counts at hist[base...] is not 0.
+     */
+    static boolean hasRows(double[] hist, int base, int numLabels) {
+        for (int k = 0; k < numLabels; k++) {
+            if (hist[base + k] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Partitions the rows in [from, to) in place on the code of the split
+     * bin.
+     * 
+     * @return The end of the left child's range (= start of the right one).
+     */
+    int partition(BinnedWorkspace ws, int from, int to, FeatureInfo split) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        BinnedDataset binned = ws.binned;
+        int f = split.featureIndex;
+        byte[] codes = binned.codes[f];
+        int mid = from;
+        if (binned.cuts[f] != null && !binned.missingBin[f]) {
+            int splitBin = BinnedDataset.binOf(binned.cuts[f], split.threshold);
+            for (int i = from; i < to; i++) {
+                int row = ws.rows[i];
+                if ((codes[row] & 0xFF) <= splitBin) {
+                    ws.rows[i] = ws.rows[mid];
+                    ws.rows[mid++] = row;
+                }
+            }
+        } else {
+            // Categories, or a missing bin: look up the side of each bin.
+            boolean[] binGoesLeft = binned.binsGoingLeft(split);
+            for (int i = from; i < to; i++) {
+                int row = ws.rows[i];
+                if (binGoesLeft[codes[row] & 0xFF]) {
+                    ws.rows[i] = ws.rows[mid];
+                    ws.rows[mid++] = row;
+                }
+            }
+        }
+        if (metrics != null) {
+            metrics.add(Metrics.Phase.PARTITION, System.nanoTime() - start);
+        }
+        return mid;
+    }
+
+    /**
+     * Gets the histograms of both children of a split node. Only the smaller
+     * child scans its rows; the larger one gets parent - smaller, in the
+     * parent's array.
+     * 
+     * @param depth The depth of the children.
+     * @return {left histograms, right histograms}.
+     */
+    double[][] childHistograms(BinnedWorkspace ws, BinBuffers buf, int from, int mid, int to,
+                               double[] hist, int depth) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        boolean leftIsSmaller = mid - from <= to - mid;
+        double[] smallHist = buf.takeHistogram();
+        if (leftIsSmaller) {
+            fillHistogram(ws, from, mid, smallHist);
+        } else {
+            fillHistogram(ws, mid, to, smallHist);
+        }
+        if (ws.weights == null) {
+            for (int i = 0; i < hist.length; i++) {
+                hist[i] -= smallHist[i];
+            }
+        } else {
+            // Subtracting fractional weights would leave rounding errors
+            // where empty bins must be exactly 0; count the other side too.
+            Arrays.fill(hist, 0);
+            if (leftIsSmaller) {
+                fillHistogram(ws, mid, to, hist);
+            } else {
+                fillHistogram(ws, from, mid, hist);
+            }
+        }
+        if (metrics != null) {
+            int smallRows = leftIsSmaller ? mid - from : to - mid;
+            metrics.scanned(depth, (long) smallRows * ws.binned.data.numFeatures());
+            metrics.add(Metrics.Phase.PARTITION, System.nanoTime() - start);
+        }
+        return leftIsSmaller ? new double[][] {smallHist, hist} : new double[][] {hist, smallHist};
+    }
+
+    /**
+     * Adds the label counts of the rows in [from, to) to each feature's
+     * histogram in `hist`. Large ranges fill the features in parallel; each
+     * feature writes to its own part of the array.
+     */
+    void fillHistogram(BinnedWorkspace ws, int from, int to, double[] hist) {
+        int numFeatures = ws.binned.data.numFeatures();
+        if (ws.pool != null && to - from >= forkCutoff) {
+            ArrayList<ForkJoinTask<?>> fills = new ArrayList<ForkJoinTask<?>>();
+            for (int f = 0; f < numFeatures; f++) {
+                int featureIndex = f;
+                fills.add(ForkJoinTask.adapt(() -> fillHistogram(ws, from, to, hist, featureIndex)));
+            }
+            ForkJoinTask.invokeAll(fills);
+        } else {
+            for (int f = 0; f < numFeatures; f++) {
+                fillHistogram(ws, from, to, hist, f);
+            }
+        }
+    }
+
+    void fillHistogram(BinnedWorkspace ws, int from, int to, double[] hist, int featureIndex) {
+        byte[] codes = ws.binned.codes[featureIndex];
+        int[] labels = ws.binned.data.labels;
+        int numLabels = ws.binned.data.numLabels();
+        int offset = ws.histOffsets[featureIndex];
+        double[] weights = ws.weights;
+        if (weights == null) {
+            for (int i = from; i < to; i++) {
+                int row = ws.rows[i];
+                hist[offset + (codes[row] & 0xFF) * numLabels + labels[row]]++;
+            }
+        } else {
+            int rowOffset = ws.rowOffsets[featureIndex];
+            for (int i = from; i < to; i++) {
+                int row = ws.rows[i];
+                hist[offset + (codes[row] & 0xFF) * numLabels + labels[row]] += weights[row];
+                hist[rowOffset + (codes[row] & 0xFF)]++;
+            }
+        }
+    }
+
+    /**
+     * The histogram version of sweepThresholds(): moves a whole bin at a time
+     * from the right to the left split.
+     *
+     * @param hist         A node's histograms.
+     * @param offset       Where this feature's bins start in `hist`.
+     * @param numBins      The number of bins of this feature.
+     * @param cuts         The threshold between each bin and the next.
+     * @param parentCounts The label counts of the node.
+     * @param leftCounts   Scratch space, one slot per label id.
+     * @param rightCounts  Scratch space, one slot per label id.
+     * @param featureIndex The feature being searched.
+     * @param best         The best split found so far; updated in place.
+     * @return True if `best` was updated.
+     */
+    boolean sweepBins(double[] hist, int offset, int numBins, double[] cuts,
+                      double[] parentCounts, double[] leftCounts, double[] rightCounts,
+                      int featureIndex, FeatureInfo best) {
+        return sweepBins(hist, offset, numBins, cuts, false, false, parentCounts, leftCounts,
+                         rightCounts, -1, featureIndex, best);
+    }
+
+    /**
+     * sweepBins() for a feature whose last bin may hold the rows missing it
+     * (see BinnedDataset). That bin stays on one side of every split tried,
+     * as in the missing-value version of sweepThresholds().
+     *
+     * @param numBins     The number of bins, the missing bin included.
+     * @param missingBin  Whether the last bin holds missing values.
+     * @param missingLeft Which side it goes to.
+     * @param rowOffset   Where the number of rows in each bin is kept in
+     *                    `hist`, for -minleaf; -1 if the rows are unweighted,
+     *                    so the label counts count them.
+     */
+    boolean sweepBins(double[] hist, int offset, int numBins, double[] cuts,
+                      boolean missingBin, boolean missingLeft,
+                      double[] parentCounts, double[] leftCounts, double[] rightCounts,
+                      int rowOffset, int featureIndex, FeatureInfo best) {
+        SplitCriterion criterion = this.criterion;
+        int numLabels = parentCounts.length;
+        double n = 0;
+        double leftSum = 0;
+        double rightSum = 0;
+        for (int k = 0; k < numLabels; k++) {
+            leftCounts[k] = 0;
+            rightCounts[k] = parentCounts[k];
+            rightSum += criterion.term(rightCounts[k]);
+            n += parentCounts[k];
+        }
+        double parentSum = rightSum;
+        double nLeft = 0;
+        double rows = rowOffset < 0 ? n : sumRows(hist, rowOffset, numBins);
+        double rowsLeft = 0;
+        int valueBins = missingBin ? numBins - 1 : numBins;
+        if (missingLeft) {
+            moveBin(hist, offset + valueBins * numLabels, leftCounts, rightCounts);
+            leftSum = 0;
+            rightSum = 0;
+            for (int k = 0; k < numLabels; k++) {
+                leftSum += criterion.term(leftCounts[k]);
+                rightSum += criterion.term(rightCounts[k]);
+                nLeft += leftCounts[k];
+            }
+            rowsLeft = rowOffset < 0 ? nLeft : hist[rowOffset + valueBins];
+        }
+
+        boolean improved = false;
+        // With missing values on the right, every value bin can go left.
+        int last = missingBin && !missingLeft ? valueBins : valueBins - 1;
+        for (int b = 0; b < last; b++) {
+            int base = offset + b * numLabels;
+            double binTotal = 0;
+            for (int k = 0; k < numLabels; k++) {
+                double count = hist[base + k];
+                if (count != 0) {
+                    leftSum += criterion.term(leftCounts[k] + count) - criterion.term(leftCounts[k]);
+                    rightSum += criterion.term(rightCounts[k] - count) - criterion.term(rightCounts[k]);
+                    leftCounts[k] += count;
+                    rightCounts[k] -= count;
+                    binTotal += count;
+                }
+            }
+            nLeft += binTotal;
+            rowsLeft += rowOffset < 0 ? binTotal : hist[rowOffset + b];
+            // An empty bin gives the same split as the bin before it.
+            if (binTotal == 0 || nLeft == 0) {
+                continue;
+            }
+            double nRight = n - nLeft;
+            if (nRight == 0 || rows - rowsLeft < minSamplesLeaf) {
+                break;
+            }
+            if (rowsLeft < minSamplesLeaf) {
+                continue;
+            }
+
+            double score = criterion.score(n, nLeft, nRight, parentSum, leftSum, rightSum);
+            if (score > best.score + GAIN_EPSILON) {
+                best.score = score;
+                best.evalMeasure = criterion.rank(score, n, nLeft, nRight);
+                best.featureIndex = featureIndex;
+                best.threshold = b < cuts.length ? cuts[b] : Double.POSITIVE_INFINITY;
+                best.categories = null;
+                best.missingGoesLeft = missingLeft;
+                improved = true;
+            }
+        }
+
+        return improved;
+    }
+
+    /**
+     * @return The number of rows in `numBins` bins, from their row counts at
+     *         hist[rowOffset...].
+     */
+    static double sumRows(double[] hist, int rowOffset, int numBins) {
+        double rows = 0;
+        for (int b = 0; b < numBins; b++) {
+            rows += hist[rowOffset + b];
+        }
+        return rows;
+    }
+
+    /**
+     * Moves the label counts of one bin, hist[base...], from rightCounts to
+     * leftCounts.
+     *
+     * @return The number of rows moved.
+     */
+    static double moveBin(double[] hist, int base, double[] leftCounts, double[] rightCounts) {
+        double total = 0;
+        for (int k = 0; k < leftCounts.length; k++) {
+            double count = hist[base + k];
+            leftCounts[k] += count;
+            rightCounts[k] -= count;
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Finds the best split of a categorical feature into two subsets of its
+     * categories, from the label counts of each category.
+     *
+     * Trying every subset would take 2^categories sweeps. Instead the
+     * categories are ordered by the share of their rows that have the node's
+     * most common label, and only the splits between consecutive categories
+     * of that order are tried (with two labels this is sure to find the best
+     * subset, see Breiman et al., CART, 1984). Rows missing the feature are
+     * tried on both sides, as in sweepThresholds().
+     *
+     * @param hist          The label counts of each bin (category), then of
+     *                      the missing rows, numLabels per bin.
+     * @param offset        Where this feature's bins start in `hist`.
+     * @param numBins       The number of bins of categories. The last one
+     *                      also stands for the categories past it.
+     * @param numCategories The number of categories of the feature.
+     * @param missingBin    Whether bin numBins holds missing rows.
+     * @param keys          Scratch space, one slot per bin.
+     * @param order         Scratch space, one slot per bin.
+     * @param rowOffset     Where the number of rows in each bin (then of the
+     *                      missing rows) is kept in `hist`, for -minleaf; -1
+     *                      if the rows are unweighted.
+     * @param best          The best split found so far; updated in place.
+     * @return True if `best` was updated.
+     */
+    boolean sweepCategories(double[] hist, int offset, int numBins, int numCategories,
+                            boolean missingBin, double[] parentCounts, double[] leftCounts,
+                            double[] rightCounts, double[] keys, int[] order,
+                            int rowOffset, int featureIndex, FeatureInfo best) {
+        int numLabels = parentCounts.length;
+        int majority = 0;
+        for (int k = 1; k < numLabels; k++) {
+            if (parentCounts[k] > parentCounts[majority]) {
+                majority = k;
+            }
+        }
+        int numPresent = 0;
+        for (int b = 0; b < numBins; b++) {
+            int base = offset + b * numLabels;
+            double total = 0;
+            for (int k = 0; k < numLabels; k++) {
+                total += hist[base + k];
+            }
+            if (total > 0) {
+                keys[b] = hist[base + majority] / total;
+                order[numPresent++] = b;
+            }
+        }
+        sortByValue(order, keys, 0, numPresent);
+
+        boolean missing = false;
+        if (missingBin) {
+            int base = offset + numBins * numLabels;
+            for (int k = 0; k < numLabels && !missing; k++) {
+                missing = hist[base + k] > 0;
+            }
+        }
+        double rows = -1;
+        if (rowOffset >= 0) {
+            rows = sumRows(hist, rowOffset, missing ? numBins + 1 : numBins);
+        }
+        boolean improved = sweepCategoryOrder(hist, offset, numBins, numCategories, numPresent,
+                                              missing, false, parentCounts, leftCounts, rightCounts,
+                                              order, rowOffset, rows, featureIndex, best);
+        if (missing) {
+            improved |= sweepCategoryOrder(hist, offset, numBins, numCategories, numPresent,
+                                           true, true, parentCounts, leftCounts, rightCounts,
+                                           order, rowOffset, rows, featureIndex, best);
+        }
+        return improved;
+    }
+
+    /**
+     * One sweep of sweepCategories(): moves the categories to the left in
+     * `order`, with the missing rows (if `missing`) on the left or right.
+     *
+     * @param rows The number of rows in the node, if rowOffset >= 0.
+     */
+    boolean sweepCategoryOrder(double[] hist, int offset, int numBins, int numCategories,
+                               int numPresent, boolean missing, boolean missingLeft,
+                               double[] parentCounts, double[] leftCounts, double[] rightCounts,
+                               int[] order, int rowOffset, double rows, int featureIndex,
+                               FeatureInfo best) {
+        SplitCriterion criterion = this.criterion;
+        int numLabels = parentCounts.length;
+        double n = 0;
+        double parentSum = 0;
+        for (int k = 0; k < numLabels; k++) {
+            leftCounts[k] = 0;
+            rightCounts[k] = parentCounts[k];
+            parentSum += criterion.term(parentCounts[k]);
+            n += parentCounts[k];
+        }
+        if (rowOffset < 0) {
+            rows = n;
+        }
+        double nLeft = 0;
+        double rowsLeft = 0;
+        if (missingLeft) {
+            nLeft = moveBin(hist, offset + numBins * numLabels, leftCounts, rightCounts);
+            rowsLeft = rowOffset < 0 ? nLeft : hist[rowOffset + numBins];
+        }
+
+        int bestPrefix = -1;
+        double bestScore = best.score;
+        double bestLeft = 0;
+        int last = missing && !missingLeft ? numPresent : numPresent - 1;
+        for (int i = 0; i < last; i++) {
+            double moved = moveBin(hist, offset + order[i] * numLabels, leftCounts, rightCounts);
+            nLeft += moved;
+            rowsLeft += rowOffset < 0 ? moved : hist[rowOffset + order[i]];
+            double nRight = n - nLeft;
+            if (rowsLeft < minSamplesLeaf || rows - rowsLeft < minSamplesLeaf || nRight == 0) {
+                continue;
+            }
+            double leftSum = 0;
+            double rightSum = 0;
+            for (int k = 0; k < numLabels; k++) {
+                leftSum += criterion.term(leftCounts[k]);
+                rightSum += criterion.term(rightCounts[k]);
+            }
+            double score = criterion.score(n, nLeft, nRight, parentSum, leftSum, rightSum);
+            if (score > bestScore + GAIN_EPSILON) {
+                bestScore = score;
+                bestLeft = nLeft;
+                bestPrefix = i;
+            }
+        }
+        if (bestPrefix < 0) {
+            return false;
+        }
+
+        long[] categories = new long[(numCategories + 63) >>> 6];
+        for (int i = 0; i <= bestPrefix; i++) {
+            int b = order[i];
+            // The last bin also holds the categories past it.
+            int end = b == numBins - 1 ? numCategories : b + 1;
+            for (int c = b; c < end; c++) {
+                categories[c >>> 6] |= 1L << c;
+            }
+        }
+        best.score = bestScore;
+        best.evalMeasure = criterion.rank(bestScore, n, bestLeft, n - bestLeft);
+        best.featureIndex = featureIndex;
+        best.threshold = Double.NaN;
+        best.categories = categories;
+        best.missingGoesLeft = missingLeft;
+        return true;
+    }
+
+    /**
+     * Builds a decision tree on a column file, which need not fit on the
+     * heap.
+     * 
+     * The top of the tree is grown a level at a time on histograms, as in the
+     * histogram mode: one streaming pass over the mapped columns fills the
+     * histograms of every node of a level, and one more pass over the columns
+     * split on moves each row down to its child. Which node a row is in is
+     * kept in a scratch file, one int per row. Each feature is cut into
+     * `maxBins` bins (256 if not set) from a sample of its column.
+     * 
+     * Once a node has no more than `outOfCoreRows` rows, they are copied
+     * into a ColumnarDataset and its subtree is built in memory the way
+     * train() would: on sorted rows, or on histograms if `maxBins` is set.
+     * 
+     * @param data A column file with labels.
+     * @return A Node representing the tree.
+     * @throws IOException If the scratch file can't be made.
+     */
+    public Node build(ColumnFile data) throws IOException {
+        Metrics.PhaseEvent event = Metrics.begin(metrics, Metrics.Phase.BIN);
+        OutOfCoreWorkspace ws = new OutOfCoreWorkspace(data);
+        Metrics.end(metrics, event, data.numRows);
+
+        try (ColumnFile.RowInts nodeIds = new ColumnFile.RowInts(data)) {
+            ws.nodeIds = nodeIds;
+            // Every row starts in the root, id 0.
+            LevelNode root = ws.newNode(0);
+            for (int from = 0; from < data.numRows; from += ColumnFile.BLOCK_ROWS) {
+                int count = Math.min(ColumnFile.BLOCK_ROWS, data.numRows - from);
+                data.readLabels(from, ws.labels, count);
+                for (int i = 0; i < count; i++) {
+                    root.labelCounts[ws.labels[i]]++;
+                }
+            }
+            root.n = data.numRows;
+
+            ArrayList<LevelNode> level = new ArrayList<LevelNode>();
+            level.add(root);
+            while (!level.isEmpty()) {
+                level = growLevel(ws, level);
+            }
+            return root.node;
+        }
+    }
+
+    // build(ColumnFile) cuts the bins of a feature from at most this many
+    // rows of it, evenly spaced.
+    static final int CUT_SAMPLE_ROWS = 1 << 18;
+
+    /**
+     * The state of build(ColumnFile): the bins of each feature and where they
+     * start in a node's histogram array, how much of the tree's work fits on
+     * the heap, and which node each row is in.
+     */
+    class OutOfCoreWorkspace {
+        ColumnFile data;
+        double[][] cuts;            // by feature, as in BinnedDataset
+        int[] histOffsets;          // by feature: the first slot of its bins
+        int histSize;               // the length of one node's histogram array
+        long inMemoryRows;          // nodes this small are built in memory
+        int histogramsPerPass;      // how many nodes' histograms fit on the heap
+        ColumnFile.RowInts nodeIds; // by row: the id of the node it is in
+        int numIds;                 // the node ids handed out so far
+
+        // One block of rows at a time:
+        int[] ids = new int[ColumnFile.BLOCK_ROWS];
+        int[] labels = new int[ColumnFile.BLOCK_ROWS];
+        double[] values = new double[ColumnFile.BLOCK_ROWS];
+        LevelNode[] rowNodes = new LevelNode[ColumnFile.BLOCK_ROWS];
+        int[] positions = new int[ColumnFile.BLOCK_ROWS];
+
+        OutOfCoreWorkspace(ColumnFile data) {
+            this.data = data;
+            int numFeatures = data.numFeatures;
+            int numLabels = data.labelNames.size();
+            int bins = maxBins > 0 ? maxBins : 256;
+            int stride = Math.max(1, (data.numRows + CUT_SAMPLE_ROWS - 1) / CUT_SAMPLE_ROWS);
+            int sampleSize = (data.numRows + stride - 1) / stride;
+            double[] sample = new double[sampleSize];
+            cuts = new double[numFeatures][];
+            histOffsets = new int[numFeatures];
+            for (int f = 0; f < numFeatures; f++) {
+                for (int from = 0; from < data.numRows; from += ColumnFile.BLOCK_ROWS) {
+                    int count = Math.min(ColumnFile.BLOCK_ROWS, data.numRows - from);
+                    data.readColumn(f, from, values, count);
+                    for (int row = from + (stride - from % stride) % stride; row < from + count; row += stride) {
+                        sample[row / stride] = values[row - from];
+                    }
+                }
+                cuts[f] = BinnedDataset.findCuts(sample, sampleSize, bins);
+                histOffsets[f] = histSize;
+                histSize += (cuts[f].length + 1) * numLabels;
+            }
+
+            // Keep what is built in memory to about a quarter of the heap: a
+            // row costs its columns and label while copied in, and about as
+            // much again (sorted row ids, ...) while its subtree is built.
+            long heap = Runtime.getRuntime().maxMemory();
+            inMemoryRows = outOfCoreRows > 0 ? outOfCoreRows : heap / 4 / (12L * numFeatures + 16);
+            histogramsPerPass = (int) Math.min(Integer.MAX_VALUE,
+                                               Math.max(1, heap / 4 / (8L * Math.max(histSize, 1))));
+        }
+
+        LevelNode newNode(int depth) {
+            LevelNode node = new LevelNode();
+            node.id = numIds++;
+            node.depth = depth;
+            node.labelCounts = new double[data.labelNames.size()];
+            return node;
+        }
+
+        /**
+         * @return The nodes of one pass over the rows, by id (null for the
+         *         other ids).
+         */
+        LevelNode[] byId(List<LevelNode> nodes) {
+            LevelNode[] byId = new LevelNode[numIds];
+            for (LevelNode node : nodes) {
+                byId[node.id] = node;
+            }
+            return byId;
+        }
+
+        /**
+         * Reads the node ids of rows [from, from + count) into `ids` and
+         * their nodes into `rowNodes`, and their labels if any of them is in
+         * one of the nodes of this pass.
+         * 
+         * @return False if none of the rows is (nothing else need be read).
+         */
+        boolean readBlock(int from, int count, LevelNode[] byId) {
+            nodeIds.get(from, ids, count);
+            boolean any = false;
+            for (int i = 0; i < count; i++) {
+                rowNodes[i] = byId[ids[i]];
+                any |= rowNodes[i] != null;
+            }
+            if (any) {
+                data.readLabels(from, labels, count);
+            }
+            return any;
+        }
+    }
+
+    /**
+     * A node of the tree build(ColumnFile) is growing. Its `node` is made
+     * when it is, so that its parent can point to it, and is filled in once
+     * its rows have been counted.
+     */
+    class LevelNode {
+        int id;                 // the node id its rows have in the scratch file
+        int depth;
+        Node node = new Node(null, 0);
+        double[] labelCounts;
+        int n;
+        double[] hist;          // its histograms, while they are being used
+        FeatureInfo split;      // the split being made, if any
+        LevelNode lessThanEqualChild;
+        LevelNode greaterThanChild;
+        ColumnarDataset rows;   // its rows, while they are copied into memory
+        int numCopied;
+
+        /**
+         * Makes `node` the root of a subtree built in memory.
+         */
+        void become(Node subtree) {
+            node.labelCounts = subtree.labelCounts;
+            node.n = subtree.n;
+            node.weight = subtree.weight;
+            node.featureIndex = subtree.featureIndex;
+            node.threshold = subtree.threshold;
+            node.categories = subtree.categories;
+            node.missingGoesLeft = subtree.missingGoesLeft;
+            node.lessThanEqualChild = subtree.lessThanEqualChild;
+            node.greaterThanChild = subtree.greaterThanChild;
+        }
+    }
+
+    /**
+     * Grows one level of build(ColumnFile): each node of it is left as a
+     * leaf, built in memory, or split.
+     * 
+     * @return The nodes of the next level.
+     */
+    ArrayList<LevelNode> growLevel(OutOfCoreWorkspace ws, ArrayList<LevelNode> level) {
+        ArrayList<LevelNode> small = new ArrayList<LevelNode>();
+        ArrayList<LevelNode> large = new ArrayList<LevelNode>();
+        for (LevelNode ln : level) {
+            if (ln.n <= ws.inMemoryRows) {
+                small.add(ln);
+                continue;
+            }
+            ln.node.labelCounts = ln.labelCounts.clone();
+            ln.node.n = ln.n;
+            ln.node.weight = ln.n;
+            if (metrics != null) {
+                metrics.node(ln.depth);
+            }
+            StopReason stop = checkNode(ln.node, ln.depth);
+            if (stop != null) {
+                stopped(stop, ln.depth);
+            } else {
+                large.add(ln);
+            }
+        }
+
+        // Copy as many small nodes into memory at a time as fit.
+        for (int start = 0, end; start < small.size(); start = end) {
+            long rows = 0;
+            for (end = start; end < small.size(); end++) {
+                if (end > start && rows + small.get(end).n > ws.inMemoryRows) {
+                    break;
+                }
+                rows += small.get(end).n;
+            }
+            buildInMemory(ws, small.subList(start, end));
+        }
+
+        ArrayList<LevelNode> splitting = new ArrayList<LevelNode>();
+        for (int start = 0; start < large.size(); start += ws.histogramsPerPass) {
+            List<LevelNode> batch = large.subList(start, Math.min(large.size(), start + ws.histogramsPerPass));
+            fillHistograms(ws, batch);
+            for (LevelNode ln : batch) {
+                ln.split = findSplit(ws, ln);
+                ln.hist = null;
+                if (ln.split != null) {
+                    ln.lessThanEqualChild = ws.newNode(ln.depth + 1);
+                    ln.greaterThanChild = ws.newNode(ln.depth + 1);
+                    ln.node.featureIndex = ln.split.featureIndex;
+                    ln.node.threshold = ln.split.threshold;
+                    ln.node.lessThanEqualChild = ln.lessThanEqualChild.node;
+                    ln.node.greaterThanChild = ln.greaterThanChild.node;
+                    splitting.add(ln);
+                }
+            }
+        }
+
+        ArrayList<LevelNode> next = new ArrayList<LevelNode>();
+        if (!splitting.isEmpty()) {
+            moveRows(ws, splitting);
+            for (LevelNode ln : splitting) {
+                next.add(ln.lessThanEqualChild);
+                next.add(ln.greaterThanChild);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Fills the histograms of a batch of nodes in one pass over the columns.
+     */
+    void fillHistograms(OutOfCoreWorkspace ws, List<LevelNode> batch) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        ColumnFile data = ws.data;
+        int numLabels = data.labelNames.size();
+        LevelNode[] byId = ws.byId(batch);
+        for (LevelNode ln : batch) {
+            ln.hist = new double[ws.histSize];
+        }
+        for (int from = 0; from < data.numRows; from += ColumnFile.BLOCK_ROWS) {
+            int count = Math.min(ColumnFile.BLOCK_ROWS, data.numRows - from);
+            if (!ws.readBlock(from, count, byId)) {
+                continue;
+            }
+            for (int f = 0; f < data.numFeatures; f++) {
+                data.readColumn(f, from, ws.values, count);
+                double[] cuts = ws.cuts[f];
+                int offset = ws.histOffsets[f];
+                for (int i = 0; i < count; i++) {
+                    LevelNode ln = ws.rowNodes[i];
+                    if (ln != null) {
+                        ln.hist[offset + BinnedDataset.binOf(cuts, ws.values[i]) * numLabels + ws.labels[i]]++;
+                    }
+                }
+            }
+        }
+        if (metrics != null) {
+            for (LevelNode ln : batch) {
+                metrics.scanned(ln.depth, (long) ln.n * data.numFeatures);
+            }
+            metrics.add(Metrics.Phase.PARTITION, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * The out-of-core version of findSplit(): sweeps the bins of each feature
+     * in the node's histograms.
+     */
+    FeatureInfo findSplit(OutOfCoreWorkspace ws, LevelNode ln) {
+        int numLabels = ws.data.labelNames.size();
+        double[] leftCounts = new double[numLabels];
+        double[] rightCounts = new double[numLabels];
+        FeatureInfo bestFeatInfo = new FeatureInfo(0, 0, 0);
+        FeatureInfo candidate = new FeatureInfo(0, 0, 0);
+        for (int f = 0; f < ws.data.numFeatures; f++) {
+            candidate.clear();
+            long start = metrics != null ? System.nanoTime() : 0;
+            sweepBins(ln.hist, ws.histOffsets[f], ws.cuts[f].length + 1, ws.cuts[f], ln.labelCounts,
+                      leftCounts, rightCounts, f, candidate);
+            if (metrics != null) {
+                metrics.searched(f, ln.n, System.nanoTime() - start);
+            }
+            if (candidate.evalMeasure > bestFeatInfo.evalMeasure + GAIN_EPSILON) {
+                bestFeatInfo.copyFrom(candidate);
+            }
+        }
+        return checkSplit(bestFeatInfo, ln.depth);
+    }
+
+    /**
+     * Moves the rows of the nodes being split to their children, counting
+     * the children's labels on the way. Reads only the columns split on.
+     */
+    void moveRows(OutOfCoreWorkspace ws, List<LevelNode> splitting) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        ColumnFile data = ws.data;
+        LevelNode[] byId = ws.byId(splitting);
+        boolean[] splitOn = new boolean[data.numFeatures];
+        for (LevelNode ln : splitting) {
+            splitOn[ln.split.featureIndex] = true;
+        }
+        for (int from = 0; from < data.numRows; from += ColumnFile.BLOCK_ROWS) {
+            int count = Math.min(ColumnFile.BLOCK_ROWS, data.numRows - from);
+            if (!ws.readBlock(from, count, byId)) {
+                continue;
+            }
+            for (int f = 0; f < data.numFeatures; f++) {
+                if (!splitOn[f]) {
+                    continue;
+                }
+                data.readColumn(f, from, ws.values, count);
+                for (int i = 0; i < count; i++) {
+                    LevelNode ln = ws.rowNodes[i];
+                    if (ln == null || ln.split.featureIndex != f) {
+                        continue;
+                    }
+                    LevelNode child = ws.values[i] <= ln.split.threshold
+                        ? ln.lessThanEqualChild : ln.greaterThanChild;
+                    ws.ids[i] = child.id;
+                    child.labelCounts[ws.labels[i]]++;
+                    child.n++;
+                }
+            }
+            ws.nodeIds.put(from, ws.ids, count);
+        }
+        if (metrics != null) {
+            metrics.add(Metrics.Phase.PARTITION, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Copies the rows of a batch of nodes into memory in one pass over the
+     * columns, then builds each node's subtree on them.
+     */
+    void buildInMemory(OutOfCoreWorkspace ws, List<LevelNode> batch) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        ColumnFile data = ws.data;
+        LevelNode[] byId = ws.byId(batch);
+        for (LevelNode ln : batch) {
+            ln.rows = new ColumnarDataset(data.columnNames, new double[data.numFeatures][ln.n],
+                                          new int[ln.n], data.labelNames, ln.n);
+        }
+        for (int from = 0; from < data.numRows; from += ColumnFile.BLOCK_ROWS) {
+            int count = Math.min(ColumnFile.BLOCK_ROWS, data.numRows - from);
+            if (!ws.readBlock(from, count, byId)) {
+                continue;
+            }
+            for (int i = 0; i < count; i++) {
+                LevelNode ln = ws.rowNodes[i];
+                if (ln != null) {
+                    ws.positions[i] = ln.numCopied++;
+                    ln.rows.labels[ws.positions[i]] = ws.labels[i];
+                }
+            }
+            for (int f = 0; f < data.numFeatures; f++) {
+                data.readColumn(f, from, ws.values, count);
+                for (int i = 0; i < count; i++) {
+                    LevelNode ln = ws.rowNodes[i];
+                    if (ln != null) {
+                        ln.rows.columns[f][ws.positions[i]] = ws.values[i];
+                    }
+                }
+            }
+        }
+        if (metrics != null) {
+            metrics.add(Metrics.Phase.PARTITION, System.nanoTime() - start);
+        }
+
+        for (LevelNode ln : batch) {
+            if (maxBins > 0) {
+                ln.become(build(new BinnedDataset(ln.rows, maxBins), ln.depth));
+            } else {
+                ln.become(build(ln.rows, ln.depth));
+            }
+            ln.rows = null;
+        }
+    }
+
+    /**
+     * Prunes the tree rooted at `self.root` in place, against the held-out
+     * rows in `pruneData` (does nothing if that is null). A pruned node keeps
+     * its label distribution and simply loses its children.
+     * 
+     * The held-out rows are run through the tree once, counting at every node
+     * on their way how many of them the node would get wrong as a leaf. After
+     * that no row is predicted again: the error of any subtree is the sum of
+     * its leaves' counts, which one bottom-up pass over the nodes adds up.
+     */
+    public void prune(){
+        if (pruneData == null || root == null) {
+            return;
+        }
+
+        Metrics.PhaseEvent event = Metrics.begin(metrics, Metrics.Phase.PRUNE);
+        PruneWorkspace pw = new PruneWorkspace(root);
+        pw.countErrors(pruneData);
+        if (pruneMethod == PruneMethod.REDUCED_ERROR) {
+            pruneReducedError(pw);
+        } else {
+            pruneCostComplexity(pw);
+        }
+        pw.apply();
+        Metrics.end(metrics, event, pruneData.numRows);
+    }
+
+    /**
+     * The nodes of the tree being pruned, numbered in pre-order (like
+     * FlatTree), so a node's descendants always have bigger ids than it does
+     * and walking the ids backwards visits children before parents.
+     */
+    class PruneWorkspace {
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        int[] left;             // child ids; -1 for leaves
+        int[] right;
+        int[] majority;         // the label id each node predicts as a leaf
+        double[] trainErrors;   // training rows each node gets wrong as a leaf
+        double[] devErrors;     // held-out rows each node gets wrong as a leaf
+        boolean[] pruned;       // nodes to turn into leaves
+
+        PruneWorkspace(Node root) {
+            addNodes(root);
+            int numNodes = nodes.size();
+            left = new int[numNodes];
+            right = new int[numNodes];
+            majority = new int[numNodes];
+            trainErrors = new double[numNodes];
+            devErrors = new double[numNodes];
+            pruned = new boolean[numNodes];
+
+            int[] size = new int[numNodes];
+            for (int id = numNodes - 1; id >= 0; id--) {
+                Node node = nodes.get(id);
+                if (node.isLeafNode()) {
+                    left[id] = -1;
+                    right[id] = -1;
+                    size[id] = 1;
+                } else {
+                    left[id] = id + 1;
+                    right[id] = id + 1 + size[id + 1];
+                    size[id] = 1 + size[left[id]] + size[right[id]];
+                }
+
+                // The same majority label (smallest id on ties) as FlatTree.
+                int best = 0;
+                double total = 0;
+                for (int k = 0; k < node.labelCounts.length; k++) {
+                    if (node.labelCounts[k] > node.labelCounts[best]) {
+                        best = k;
+                    }
+                    total += node.labelCounts[k];
+                }
+                majority[id] = best;
+                trainErrors[id] = total - node.labelCounts[best];
+            }
+        }
+
+        void addNodes(Node node) {
+            nodes.add(node);
+            if (!node.isLeafNode()) {
+                addNodes(node.lessThanEqualChild);
+                addNodes(node.greaterThanChild);
+            }
+        }
+
+        /**
+         * Runs every held-out row down the tree once, adding to devErrors of
+         * each node it passes whose majority label is wrong for it.
+         */
+        void countErrors(ColumnarDataset dev) {
+            // The held-out file interned its labels in its own order.
+            int[] labelIds = new int[dev.numLabels()];
+            for (int k = 0; k < labelIds.length; k++) {
+                labelIds[k] = labelNames.indexOf(dev.labelNames.get(k));
+            }
+
+            for (int row = 0; row < dev.numRows; row++) {
+                int label = labelIds[dev.labels[row]];
+                int id = 0;
+                while (true) {
+                    if (majority[id] != label) {
+                        devErrors[id]++;
+                    }
+                    if (left[id] < 0) {
+                        break;
+                    }
+                    Node node = nodes.get(id);
+                    id = node.goesLeft(dev.columns[node.featureIndex][row]) ? left[id] : right[id];
+                }
+            }
+        }
+
+        /**
+         * Turns every node marked `pruned` into a leaf.
+         */
+        void apply() {
+            for (int id = 0; id < nodes.size(); id++) {
+                if (pruned[id]) {
+                    Node node = nodes.get(id);
+                    node.lessThanEqualChild = null;
+                    node.greaterThanChild = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reduced-error pruning, in a single bottom-up pass: once both children
+     * are done, a node's subtree error is the sum of theirs, and the node is
+     * pruned if as a leaf it makes no more errors than that.
+     */
+    void pruneReducedError(PruneWorkspace pw) {
+        double[] subtreeErrors = new double[pw.nodes.size()];
+        for (int id = pw.nodes.size() - 1; id >= 0; id--) {
+            if (pw.left[id] < 0) {
+                subtreeErrors[id] = pw.devErrors[id];
+                continue;
+            }
+            double errors = subtreeErrors[pw.left[id]] + subtreeErrors[pw.right[id]];
+            if (pw.devErrors[id] <= errors) {
+                pw.pruned[id] = true;
+                errors = pw.devErrors[id];
+            }
+            subtreeErrors[id] = errors;
+        }
+    }
+
+    /**
+     * Cost-complexity pruning (CART). Each iteration is one bottom-up pass
+     * that finds, for every internal node t of the current tree, its
+     * subtree's training error R(T_t), leaf count |T_t| and held-out error.
+     * The nodes with the smallest
+     * 
+     *      alpha(t) = (R(t) - R(T_t)) / (|T_t| - 1)
+     * 
+     * (the weakest links) are pruned, giving the next tree of the alpha
+     * path, until only the root is left. The tree on the path with the fewest
+     * held-out errors is kept; ties go to the smaller tree.
+     */
+    void pruneCostComplexity(PruneWorkspace pw) {
+        int numNodes = pw.nodes.size();
+        boolean[] isLeaf = new boolean[numNodes];
+        boolean[] inTree = new boolean[numNodes];
+        int[] prunedAt = new int[numNodes];     // the step a node was pruned at
+        double[] trainSub = new double[numNodes];
+        double[] devSub = new double[numNodes];
+        int[] leaves = new int[numNodes];
+        for (int id = 0; id < numNodes; id++) {
+            isLeaf[id] = pw.left[id] < 0;
+            prunedAt[id] = Integer.MAX_VALUE;
+        }
+
+        int bestStep = 0;
+        double bestDevErrors = Double.POSITIVE_INFINITY;
+        for (int step = 0; ; step++) {
+            // Top-down: which nodes are still in the tree.
+            inTree[0] = true;
+            for (int id = 0; id < numNodes; id++) {
+                if (pw.left[id] >= 0) {
+                    boolean below = inTree[id] && !isLeaf[id];
+                    inTree[pw.left[id]] = below;
+                    inTree[pw.right[id]] = below;
+                }
+            }
+
+            // Bottom-up: the subtree sums, and the weakest link.
+            double weakest = Double.POSITIVE_INFINITY;
+            for (int id = numNodes - 1; id >= 0; id--) {
+                if (!inTree[id]) {
+                    continue;
+                }
+                if (isLeaf[id]) {
+                    trainSub[id] = pw.trainErrors[id];
+                    devSub[id] = pw.devErrors[id];
+                    leaves[id] = 1;
+                    continue;
+                }
+                int l = pw.left[id];
+                int r = pw.right[id];
+                trainSub[id] = trainSub[l] + trainSub[r];
+                devSub[id] = devSub[l] + devSub[r];
+                leaves[id] = leaves[l] + leaves[r];
+                weakest = Math.min(weakest, (pw.trainErrors[id] - trainSub[id]) / (leaves[id] - 1));
+            }
+
+            if (devSub[0] <= bestDevErrors) {
+                bestDevErrors = devSub[0];
+                bestStep = step;
+            }
+            if (isLeaf[0]) {
+                break;
+            }
+
+            for (int id = 0; id < numNodes; id++) {
+                if (inTree[id] && !isLeaf[id]
+                    && (pw.trainErrors[id] - trainSub[id]) / (leaves[id] - 1) <= weakest + GAIN_EPSILON) {
+                    isLeaf[id] = true;
+                    prunedAt[id] = step + 1;
+                }
+            }
+        }
+
+        for (int id = 0; id < numNodes; id++) {
+            pw.pruned[id] = prunedAt[id] <= bestStep;
+        }
+    }
+
+    /**
+     * Finds the threshold for the given feature that does the best job splits
+     * observations into two sets according to the `evaluate` function.
+     * 
+     * returns the threshold of feature that splits the data best according to
+     * evaluate()
+     * 
+     * After getting our bestFeature, we need to find out, 
+     *      what would be the best threshhold. 
+     *      The threshhold, will then be used in the evaluation() funct.
+     *          - It is the number we will use to split our current list of observations by.
+     * 
+     * we are going to fo through every single feature that our dataset has, and:
+     *      we are going to find a threshold, that does a good job for the feature that we previously selected.
+     * 
+     * 
+     * 
+     * See findBestSplit() for how the candidates are searched.
+     *
+     *
+     * @param observations A list of Observation instances, with labels. (list of
+     *                     observations)
+     * @param featureIndex The index of the feature in each Obseration to consider a
+     *                     threshold for.
+     * @return The best threshold for the specified feature.
+     */
+    public double findBestThreshold(ArrayList<Observation> observations,
+                             int featureIndex)
+    {
+
+        return findBestSplit(observations, featureIndex).threshold;
     }
 
     /**
-     * Trains a decision tree on the set of observations and stores this in
-     * `self.root`.
-     * 
-     * @param observations A list of Observations with labels.
+     * Finds the best threshold for the given feature together with its eval
+     * measure (the score given by `criterion`).
+     *
+     * Instead of calling makeSplit() and evaluate() for every candidate (which
+     * is O(n^2) per feature), we sort the observations by the feature once and
+     * then sweep over them from smallest to largest. Every time we pass an
+     * observation it moves from the right split to the left split, so we only
+     * have to update the label counts of its class. Candidate thresholds are
+     * the midpoints between consecutive distinct values.
+     *
+     * Ties are broken deterministically: the smallest threshold wins.
+     * Observations missing the feature are tried on either side, as when
+     * building a tree.
+     *
+     * @param observations A list of Observation instances, with labels.
+     * @param featureIndex The index of the feature to consider a threshold for.
+     * @return The eval measure, feature index and threshold of the best split.
+     *         The eval measure is 0 if no threshold separates the observations
+     *         (as with fewer than two of them).
      */
-    public void train(ArrayList<Observation> observations) {
-        root = build(observations);
-        prune();
-    }
+    public FeatureInfo findBestSplit(ArrayList<Observation> observations,
+                                     int featureIndex) {
+        int n = observations.size();
+        double[] values = new double[n];
+        int[] labels = new int[n];
+        HashMap<String, Integer> labelIds = new HashMap<String, Integer>();
 
-    public Boolean hasOneClass(ArrayList<String> arrayListLabels) {
-        for (String lab : arrayListLabels) {
-            if (!lab.equals(arrayListLabels.get(0))) {
-                return false;
+        for (int i = 0; i < n; i++) {
+            Observation obs = observations.get(i);
+            values[i] = obs.features.get(featureIndex);
+            Integer id = labelIds.get(obs.label);
+            if (id == null) {
+                id = labelIds.size();
+                labelIds.put(obs.label, id);
             }
+            labels[i] = id;
         }
 
-        return true;
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+
+        return sweepThresholds(order, values, labels, null, labelIds.size(), featureIndex);
     }
-    
-    public class SplitData {
-        public ArrayList<Observation> leftSplit;
-        public ArrayList<Observation> rightSplit;
 
-        public SplitData(ArrayList<Observation> leftSplit, ArrayList<Observation> rightSplit) {
-            this.leftSplit = leftSplit;
-            this.rightSplit = rightSplit;
+    /**
+     * Finds the best threshold for a feature of a columnar dataset.
+     * 
+     * @param data         A columnar dataset with labels.
+     * @param featureIndex The index of the feature to consider a threshold for.
+     * @return The best threshold for the specified feature.
+     */
+    public double findBestThreshold(ColumnarDataset data, int featureIndex) {
+        int[] rows = new int[data.numRows];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = i;
         }
+        return findBestSplit(data, rows, featureIndex).threshold;
     }
 
-    public SplitData makeSplit(ArrayList<Observation> observations, double threshold, int featIndx) {
-        ArrayList<Observation> leftSplit = new ArrayList<Observation>();
-        ArrayList<Observation> rightSplit = new ArrayList<Observation>();
-
-        for (Observation ob : observations) {
-            if (ob.features.get(featIndx) <= threshold) {
-                leftSplit.add(ob);
-
-            } else {
-                rightSplit.add(ob);
-            }
+    /**
+     * The columnar version of findBestSplit(): the feature column is already a
+     * double[], so only the row indices need sorting. The rows are weighted,
+     * and those of weight 0 left out, as when building a tree.
+     * 
+     * @param data         A columnar dataset with labels.
+     * @param rows         The rows to consider; not changed.
+     * @param featureIndex The index of the feature to consider a threshold for.
+     * @return The eval measure, feature index and threshold of the best split.
+     */
+    public FeatureInfo findBestSplit(ColumnarDataset data, int[] rows,
+                                     int featureIndex) {
+        int[] order = weightedRows(rows, data.weights);
+        if (order == rows) {
+            order = rows.clone();
         }
 
-        return new SplitData(leftSplit, rightSplit);
+        return sweepThresholds(order, data.columns[featureIndex], data.labels, data.weights,
+                               data.numLabels(), featureIndex);
     }
 
-    public HashMap<String, Integer> getDistribution(ArrayList<String> arrayListLabels) {
-        HashMap<String, Integer> labelDistrib = new HashMap<String, Integer>();
-        int count =0;
+    /**
+     * Sorts the observations by value and sweeps the candidate thresholds of
+     * one feature in that order, keeping the left/right label counts (and
+     * the criterion's sums over them) up to date as each observation crosses
+     * over to the left split. The observations missing the feature are
+     * sorted last and swept as in sweepFeature(): on either side.
+     *
+     * @param order     The observation indices; sorted in place.
+     * @param values    The feature value of each observation (by index).
+     * @param labels    The label id of each observation (by index).
+     * @param weights   The weight of each observation (by index), or null if
+     *                  every one counts once.
+     * @param numLabels The number of distinct label ids.
+     * @param featureIndex The feature being searched (copied into the result).
+     * @return The eval measure, feature index and threshold of the best split;
+     *         an eval measure of 0 (no split) for fewer than two observations.
+     */
+    FeatureInfo sweepThresholds(int[] order, double[] values, int[] labels, double[] weights,
+                                int numLabels, int featureIndex) {
+        int n = order.length;
+        int present = missingLast(order, values, 0, n);
+        sortByValue(order, values, 0, present);
+        FeatureInfo best = new FeatureInfo(0, featureIndex, present > 0 ? values[order[0]] : Double.NaN);
+        if (n < 2) {
+            return best;
+        }
 
-        for (String cla : arrayListLabels) {
-            if (!labelDistrib.containsKey(cla)) {
-                count++;
-                labelDistrib.put(cla, count);
-            } else {
-                count++;
-                labelDistrib.replace(cla, count);
+        double[] parentCounts = new double[numLabels];
+        double[] missingCounts = new double[numLabels];
+        for (int i = 0; i < n; i++) {
+            int row = order[i];
+            double w = weights == null ? 1 : weights[row];
+            parentCounts[labels[row]] += w;
+            if (i >= present) {
+                missingCounts[labels[row]] += w;
             }
         }
-        return labelDistrib;
 
+        double[] leftCounts = new double[numLabels];
+        double[] rightCounts = new double[numLabels];
+        if (present == n) {
+            sweepThresholds(order, 0, n, values, labels, weights, null, parentCounts, null, 0,
+                            false, leftCounts, rightCounts, n, featureIndex, best);
+        } else if (present > 0) {
+            sweepThresholds(order, 0, present, values, labels, weights, null, parentCounts,
+                            missingCounts, n - present, false, leftCounts, rightCounts, n,
+                            featureIndex, best);
+            sweepThresholds(order, 0, present, values, labels, weights, null, parentCounts,
+                            missingCounts, n - present, true, leftCounts, rightCounts, n,
+                            featureIndex, best);
+        }
+        return best;
     }
 
     /**
-     * Builds a decision tree on the set of observations.
-     * 
-     * This is the algo from the video. 
-     * 
-     * Needs:
-     *      - bestFeature
-     *      - threshold
-     *      - evalMeasure
-     * 
-     * 
-     * @param observations A list of Observations with labels.
-     * @return A Node representing a subtree or leaf.
+     * The allocation-free core of the sweep: searches order[from, to) and
+     * overwrites `best` if one of this feature's thresholds beats it.
+     *
+     * @param order        Row indices, sorted by value within [from, to).
+     * @param from         The start of the range to sweep (inclusive).
+     * @param to           The end of the range to sweep (exclusive).
+     * @param values       The feature value of each row.
+     * @param labels       The label id of each row.
+     * @param weights      The weight of each row, or null if every row
+     *                     counts once.
+     * @param parentCounts The (weighted) label counts of the rows in the range.
+     * @param leftCounts   Scratch space, one slot per label id.
+     * @param rightCounts  Scratch space, one slot per label id.
+     * @param featureIndex The feature being searched.
+     * @param best         The best split found so far; updated in place.
+     * @return True if `best` was updated.
      */
-    public Node build(ArrayList<Observation> observations) {
-        int numberOfFeatures = observations.get(0).features.size();
-        ArrayList<Observation> leftSplit = new ArrayList<Observation>();
-        ArrayList<Observation> rightSplit = new ArrayList<Observation>();
-        SplitData splitted = new SplitData(leftSplit, rightSplit);
-        
-        ArrayList<String> arrayListLabels = new ArrayList<String>();
-        HashMap<String, Integer> labelDistrib = new HashMap<String, Integer>();
-        FeatureInfo bestFeatInfo = new FeatureInfo(0, 0, 0);
-        double myBestThreshold = 0;
-        double myEvalMeasure = 0;
-         
+    boolean sweepThresholds(int[] order, int from, int to, double[] values, int[] labels,
+                            double[] weights, double[] parentCounts, double[] leftCounts,
+                            double[] rightCounts, int featureIndex, FeatureInfo best) {
+        return sweepThresholds(order, from, to, values, labels, weights, null, parentCounts, null, 0,
+                               false, leftCounts, rightCounts, to - from, featureIndex, best);
+    }
 
-        for (Observation obs : observations) {
-            arrayListLabels.add(obs.label);
+    /**
+     * The sweep of a node where some rows are missing the feature. They are
+     * not in order[from, to) but are counted in parentCounts (and in
+     * missingCounts), and stay on one side of every threshold tried: the
+     * left if missingLeft, else the right, where a split between the rows
+     * with a value and those without is tried too.
+     *
+     * @param draws         The number of rows each row id stands for (a
+     *                      forest's bootstrap draws), or null for one each.
+     * @param missingCounts The label counts of the rows missing the feature,
+     *                      or null if there are none.
+     * @param missingRows   The number of rows missing the feature.
+     * @param missingLeft   Which side they go to.
+     * @param nodeRows      The number of rows in the node, missing ones
+     *                      included; -minleaf counts rows, whatever their
+     *                      weights.
+     */
+    boolean sweepThresholds(int[] order, int from, int to, double[] values, int[] labels,
+                            double[] weights, double[] draws, double[] parentCounts,
+                            double[] missingCounts, double missingRows, boolean missingLeft,
+                            double[] leftCounts, double[] rightCounts, double nodeRows,
+                            int featureIndex, FeatureInfo best) {
+        SplitCriterion criterion = this.criterion;
+        int numLabels = parentCounts.length;
+        double n = 0;
+        double leftSum = 0;
+        double rightSum = 0;
+        double nLeft = 0;
+        double rowsLeft = missingLeft ? missingRows : 0;
+        for (int k = 0; k < numLabels; k++) {
+            leftCounts[k] = 0;
+            rightCounts[k] = parentCounts[k];
+            n += parentCounts[k];
         }
-        //BASE CASE 1 - We are at a Leaf Node. Only has 1 class. 
-        if (hasOneClass(arrayListLabels)) {
-            labelDistrib.put(arrayListLabels.get(0), arrayListLabels.size());
-            return new Node(labelDistrib, arrayListLabels.size());
+        double parentSum = 0;
+        for (int k = 0; k < numLabels; k++) {
+            parentSum += criterion.term(parentCounts[k]);
         }
-
-        //we go through every feature
-        for (int i = 0; i < numberOfFeatures; i++) {
-            myBestThreshold = findBestThreshold(observations, i);
-
-            splitted = makeSplit(observations, myBestThreshold, i);
-
-            myEvalMeasure = evaluate(splitted.leftSplit, splitted.rightSplit);
-
-            if (myEvalMeasure > bestFeatInfo.evalMeasure) {
-                bestFeatInfo.evalMeasure = myEvalMeasure;
-                bestFeatInfo.featureIndex = i;
-                bestFeatInfo.threshold = myBestThreshold;
-
+        if (missingLeft) {
+            for (int k = 0; k < numLabels; k++) {
+                leftCounts[k] = missingCounts[k];
+                rightCounts[k] -= missingCounts[k];
+                leftSum += criterion.term(leftCounts[k]);
+                nLeft += leftCounts[k];
+            }
+            for (int k = 0; k < numLabels; k++) {
+                rightSum += criterion.term(rightCounts[k]);
             }
+        } else {
+            rightSum = parentSum;
         }
-        //----------------BASE CASE 2---------------
-        // if unable to split data any further
-        if (bestFeatInfo.evalMeasure == 0) {
-            /**
-             * labelDistrib.put(arrayListLabels.get(0), arrayListLabels.size()); return new
-             * Node(labelDistrib, arrayListLabels.size());
-             * 
-             * make map of... all labels with all their counts. 
-             * 
-             */
-            labelDistrib = getDistribution(arrayListLabels);
-            return new Node(labelDistrib, arrayListLabels.size());
-
-        }
-        return new Node(labelDistrib, arrayListLabels.size(), bestFeatInfo.featureIndex, bestFeatInfo.threshold,
-                build(splitted.leftSplit), build(splitted.rightSplit));
 
-        
-        
+        boolean improved = false;
+        // With missing rows on the right, every row with a value can go left.
+        int last = missingCounts != null && !missingLeft ? to : to - 1;
+        for (int i = from; i < last; i++) {
+            int row = order[i];
+            int label = labels[row];
+            double w = weights == null ? 1 : weights[row];
+            leftSum += criterion.term(leftCounts[label] + w) - criterion.term(leftCounts[label]);
+            rightSum += criterion.term(rightCounts[label] - w) - criterion.term(rightCounts[label]);
+            leftCounts[label] += w;
+            rightCounts[label] -= w;
+            nLeft += w;
+            rowsLeft += draws == null ? 1 : draws[row];
 
-        /**
-         * At each Internal-Node we ask:
-         *      1. What is the bestFeature to split the current list on, 
-         *      2. At what threshhold should we split it?
-         * 
-         * bestFeature = FeatureInfo(0, null, null)
-         *  We need to figure out, what is the best feature.
-         *  based on this feature, we will then procede to split our current list of observations.
-         * 
-         * we need to find the feature that we want to split on. 
-         * 
-         * After selecting bestFeature, we need to figure out what the threshold should be for THIS feature (bestFeature). 
-         * 
-         * features my dataset has:
-         * - sepal length
-         * - sepal width
-         * - petal length
-         * - petal width
-         */
+            double value = values[row];
+            double nextValue = i + 1 < to ? values[order[i + 1]] : Double.POSITIVE_INFINITY;
+            if (value == nextValue) {
+                continue;
+            }
 
+            double nRight = n - nLeft;
+            // Every side has a row; only a -minleaf above 1 needs checking.
+            double rowsRight = nodeRows - rowsLeft;
+            if (minSamplesLeaf > 1 && (rowsLeft < minSamplesLeaf || rowsRight < minSamplesLeaf)) {
+                if (rowsRight < minSamplesLeaf) {
+                    break;
+                }
+                continue;
+            }
+            double score = criterion.score(n, nLeft, nRight, parentSum, leftSum, rightSum);
+            if (score > best.score + GAIN_EPSILON) {
+                best.score = score;
+                best.evalMeasure = criterion.rank(score, n, nLeft, nRight);
+                best.featureIndex = featureIndex;
+                best.threshold = i + 1 < to ? midpoint(value, nextValue) : value;
+                best.categories = null;
+                best.missingGoesLeft = missingLeft;
+                improved = true;
+            }
+        }
 
-        
-        
+        return improved;
     }
 
+    // Gains smaller than this are rounding noise, not real improvements.
+    static final double GAIN_EPSILON = 1e-12;
     /**
-     * Prunes the tree rooted at `self.root`.
+     * @return A threshold halfway between two consecutive sorted values such
+     *         that `low <= threshold < high`.
      */
-    public void prune(){
-
+    static double midpoint(double low, double high) {
+        double mid = low + (high - low) / 2;
+        // Rounding can push the midpoint of two neighbouring doubles onto high.
+        if (mid >= high) {
+            mid = low;
+        }
+        return mid;
     }
 
     /**
-     * Finds the threshold for the given feature that does the best job splits
-     * observations into two sets according to the `evaluate` function.
+     * Moves the indices in [from, to) whose value is missing (NaN, which
+     * sortByValue() can't order) to the end of the range.
      * 
-     * returns the threshold of feature that splits the data best according to
-     * evaluate()
-     * 
-     * After getting our bestFeature, we need to find out, 
-     *      what would be the best threshhold. 
-     *      The threshhold, will then be used in the evaluation() funct.
-     *          - It is the number we will use to split our current list of observations by.
-     * 
-     * we are going to fo through every single feature that our dataset has, and:
-     *      we are going to find a threshold, that does a good job for the feature that we previously selected.
-     * 
-     * 
-     * 
-     * for now, have this pick an arbitrary threshold in the range of the given
-     * feature (e.g., the value of that feature in the first observation)
-     * 
-     * 
-     * @param observations A list of Observation instances, with labels. (list of
-     *                     observations)
-     * @param featureIndex The index of the feature in each Obseration to consider a
-     *                     threshold for.
-     * @return The best threshold for the specified feature.
+     * @return The end of the indices with a value.
      */
-    public double findBestThreshold(ArrayList<Observation> observations, 
-                             int featureIndex)
-    {
-        
-        return observations.get(0).features.get(featureIndex);
+    static int missingLast(int[] indices, double[] values, int from, int to) {
+        int end = to;
+        for (int i = to - 1; i >= from; i--) {
+            int index = indices[i];
+            if (values[index] != values[index]) {
+                indices[i] = indices[--end];
+                indices[end] = index;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Sorts indices[from, to) by values[index] in ascending order, without
+     * boxing (a quicksort with insertion sort for short ranges).
+     */
+    static void sortByValue(int[] indices, double[] values, int from, int to) {
+        while (to - from > 16) {
+            int mid = (from + to) >>> 1;
+            // Median of three as the pivot.
+            double a = values[indices[from]];
+            double b = values[indices[mid]];
+            double c = values[indices[to - 1]];
+            double pivot = a < b ? (b < c ? b : (a < c ? c : a))
+                                 : (a < c ? a : (b < c ? c : b));
+
+            int i = from;
+            int j = to - 1;
+            while (i <= j) {
+                while (values[indices[i]] < pivot) i++;
+                while (values[indices[j]] > pivot) j--;
+                if (i <= j) {
+                    int tmp = indices[i];
+                    indices[i] = indices[j];
+                    indices[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+
+            // Recurse into the smaller half and loop on the larger one.
+            if (j - from < to - i) {
+                sortByValue(indices, values, from, j + 1);
+                from = i;
+            } else {
+                sortByValue(indices, values, i, to);
+                to = j + 1;
+            }
+        }
+
+        for (int i = from + 1; i < to; i++) {
+            int index = indices[i];
+            double value = values[index];
+            int j = i - 1;
+            while (j >= from && values[indices[j]] > value) {
+                indices[j + 1] = indices[j];
+                j--;
+            }
+            indices[j + 1] = index;
+        }
     }
 
     /**
@@ -480,34 +3737,128 @@ public class DecisionTree {
      * 
      * two lists of observations, returns a number (bigger is better)
      * 
-     * for now, have this function return a randomly generated number
-     * 
+     * The score is given by `criterion` (see SplitCriterion), by default the
+     * information gain of the split in bits.
+     *
      * @param split1 A list of Observations. Corresponds to the observations that are <= threshold.
-     * @param split2 A list of Observations. The observations that are > threshold. 
+     * @param split2 A list of Observations. The observations that are > threshold.
      * @return A score of how good the splits are. Higher is better.
      */
-    public double evaluate(ArrayList<Observation> split1, 
+    public double evaluate(ArrayList<Observation> split1,
                            ArrayList<Observation> split2){
-        return Math.random();
+        HashMap<String, Integer> labelIds = new HashMap<String, Integer>();
+        ArrayList<String> labelNames = new ArrayList<String>();
+        for (Observation obs : split1) {
+            internLabel(obs.label, labelIds, labelNames);
+        }
+        for (Observation obs : split2) {
+            internLabel(obs.label, labelIds, labelNames);
+        }
+
+        double[] counts1 = new double[labelNames.size()];
+        double[] counts2 = new double[labelNames.size()];
+        for (Observation obs : split1) {
+            counts1[labelIds.get(obs.label)]++;
+        }
+        for (Observation obs : split2) {
+            counts2[labelIds.get(obs.label)]++;
+        }
+        return criterion.evaluate(counts1, counts2);
+    }
+
+    /**
+     * The columnar version of evaluate().
+     * 
+     * @param data   A columnar dataset with labels.
+     * @param split1 The rows that are <= threshold.
+     * @param split2 The rows that are > threshold.
+     * @return A score of how good the splits are. Higher is better.
+     */
+    public double evaluate(ColumnarDataset data, int[] split1, int[] split2) {
+        return criterion.evaluate(data.labelCounts(split1), data.labelCounts(split2));
     }
 
     /**
      * Saves a model of the decision tree (`self.root`) to the given file.
      * This file can be used with the `loadModel()` function.
      * 
+     * The model is a compact binary file (see ModelFile): the nodes as flat
+     * arrays plus the column names and label vocabulary.
+     * 
      * @param filename The name of the file to save the model to.
+     * @throws IOException
      */
-    public void saveModel(String filename){
-
+    public void saveModel(String filename) throws IOException {
+        ArrayList<String> header = columnNames != null ? columnNames : new ArrayList<String>();
+        ModelFile model = new ModelFile(header, labelNames, flatTree);
+        model.categories = categories;
+        model.save(filename);
     }
 
     /**
      * Loads a decision tree model into this instance.
      * 
+     * The file is memory-mapped and its arrays copied into a FlatTree in
+     * bulk; no Node objects are created, so `root` is null afterwards.
+     * 
+     * @param filename The name of the file to load the model from.
+     * @throws IOException
+     */
+    public void loadModel(String filename) throws IOException {
+        ModelFile model = ModelFile.load(filename);
+        if (model.kind != ModelFile.VOTE || model.trees.length != 1) {
+            throw new IOException(filename +" holds "+ model.trees.length +" trees, not one");
+        }
+        useModel(model);
+    }
+
+    void useModel(ModelFile model) {
+        columnNames = model.columnNames;
+        labelNames = model.labelNames;
+        categories = model.categories;
+        flatTree = model.trees[0];
+        compiledTree = null;
+        root = null;
+    }
+
+    /**
+     * Compiles the tree to bytecode (see BytecodeTree), which predict() and
+     * predictBatch() then run instead of walking `flatTree`.
+     * 
+     * @return False if the tree is too big to be worth compiling, or splits
+     *         on categorical features; `flatTree` is used as before.
+     */
+    public boolean compileBytecode(){
+        compiledTree = BytecodeTree.compile(flatTree);
+        return compiledTree != null;
+    }
+
+    /**
+     * Loads a model file of any kind: one saved by saveModel(),
+     * RandomForest.saveModel() or GradientBoostedTrees.saveModel().
+     * 
      * @param filename The name of the file to load the model from.
+     * @return A GradientBoostedTrees for a boosted model, else a DecisionTree
+     *         if the file holds one tree, else a RandomForest.
+     * @throws IOException
      */
-    public void loadModel(String filename){
+    public static Classifier loadClassifier(String filename) throws IOException {
+        return loadClassifier(ModelFile.load(filename));
+    }
 
+    /**
+     * Same as loadClassifier(String), for a model file already read.
+     */
+    public static Classifier loadClassifier(ModelFile model) {
+        if (model.kind == ModelFile.BOOSTED) {
+            return new GradientBoostedTrees(model);
+        }
+        if (model.trees.length == 1) {
+            DecisionTree tree = new DecisionTree();
+            tree.useModel(model);
+            return tree;
+        }
+        return new RandomForest(model);
     }
 
     /**
@@ -515,11 +3866,89 @@ public class DecisionTree {
      * label prediction.
      *  (produces a prediction for the given observation)
      * 
+     * The features are unboxed once and the walk is done by the flat tree.
+     * 
      * @param observation The Observation to classify.
      * @return The predicted class label of `observation`.
      */
     public String predict(Observation observation){
-        return "";
+        double[] features = new double[observation.features.size()];
+        for (int i = 0; i < features.length; i++) {
+            features[i] = observation.features.get(i);
+        }
+        return predict(features);
+    }
+
+    /**
+     * Runs a row of feature values through the decision tree.
+     * 
+     * @param features The feature values, in training column order.
+     * @return The predicted class label.
+     */
+    public String predict(double[] features){
+        if (compiledTree != null) {
+            return labelNames.get(compiledTree.predict(features));
+        }
+        return labelNames.get(flatTree.predict(features));
+    }
+
+    /**
+     * Predicts a block of rows at once (see FlatTree.predictBatch()).
+     * 
+     * @param columns The feature values, columns[feature][row].
+     * @param out     Filled with the predicted label id of each row (an index
+     *                into `labelNames`); its length is the number of rows.
+     */
+    public void predictBatch(double[][] columns, int[] out){
+        predictBatch(columns, out.length, out);
+    }
+
+    @Override
+    public void predictBatch(double[][] columns, int numRows, int[] out){
+        if (compiledTree != null) {
+            compiledTree.predictBatch(columns, numRows, out);
+        } else {
+            flatTree.predictBatch(columns, numRows, out);
+        }
+    }
+
+    /**
+     * The (smoothed) label fractions of the leaf the row ends up in. The
+     * bytecode of compileBytecode() only returns labels, so this always
+     * walks `flatTree`.
+     */
+    @Override
+    public void predictProba(double[] x, double smoothing, double[] out){
+        Arrays.fill(out, 0, flatTree.numLabels, 0);
+        flatTree.addProba(flatTree.leafOf(x), smoothing, 1, out, 0);
+    }
+
+    @Override
+    public void predictProbaBatch(double[][] columns, int numRows, double smoothing, double[] out){
+        Arrays.fill(out, 0, numRows * flatTree.numLabels, 0);
+        flatTree.addProbaBatch(columns, numRows, smoothing, 1, out);
+    }
+
+    @Override
+    public ArrayList<String> labelNames(){
+        return labelNames;
+    }
+
+    @Override
+    public ArrayList<ArrayList<String>> categories(){
+        return categories;
+    }
+
+    /**
+     * @return The comma separated integers of a -cv option.
+     */
+    static int[] parseInts(String list) {
+        String[] values = list.split(",");
+        int[] parsed = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            parsed[i] = Integer.parseInt(values[i]);
+        }
+        return parsed;
     }
 
     /**
@@ -527,29 +3956,136 @@ public class DecisionTree {
      */
     public static void main(String[] args) throws IOException {
         final String USAGE = 
-            "There are two modes to this: training and prediction.\n\n"+
+            "There are four modes to this: training, prediction, serving and\n"+
+            "cross-validation.\n\n"+
             "Training:\n"+
-            "Usage: DecisionTree -train <training file> <model output file>\n"+
+            "Usage: DecisionTree -train <training file> <model output file> [options]\n"+
             "where...\n"+
             "   <training file> is a comma separated table of features and a label\n"+
-            "                   in the final column; header included\n"+
+            "                   in the final column; header included. Columns of\n"+
+            "                   mostly values that aren't numbers are categorical\n"+
+            "                   (the odd one in a column of numbers is missing),\n"+
+            "                   and an empty field, ? or NA is a missing value\n"+
             "   <model output file> is the name of the file to write the trained model to\n"+
+            "and the options are...\n"+
+            "   -threads N    build the tree on N threads (default 1)\n"+
+            "   -bins K       quantize each feature into at most K bins (2-256) and\n"+
+            "                 search splits over histograms; for large training sets\n"+
+            "   -criterion C  score splits by C: infogain (default), gainratio\n"+
+            "                 (C4.5) or gini (CART)\n"+
+            "   -forest T     train a random forest of T trees instead of one tree\n"+
+            "                 (the trees are grown in parallel with -threads; not\n"+
+            "                 with -bins)\n"+
+            "   -features M   forest only: search M random features at each node\n"+
+            "                 (default sqrt of the number of features)\n"+
+            "   -seed S       forest only: the random seed (default 1)\n"+
+            "   -boost R      train R rounds of gradient boosted trees (log-loss)\n"+
+            "                 instead of one tree; always uses histograms, with\n"+
+            "                 -bins K bins (default 255)\n"+
+            "   -depth D      the maximum depth of a tree (default: none; 3 for\n"+
+            "                 boosting)\n"+
+            "   -rate E       boosting only: the learning rate (default 0.1)\n"+
+            "   -minsplit N   don't split nodes of fewer than N rows (default 2)\n"+
+            "   -minleaf N    don't make splits leaving fewer than N rows on a side\n"+
+            "                 (default 1)\n"+
+            "   -mingain G    don't make splits scoring less than G by -criterion\n"+
+            "   -leaves L     grow best-first, splitting the leaf that removes the\n"+
+            "                 most impurity next, up to L leaves\n"+
+            "                 (-minsplit, -minleaf, -mingain and -leaves: not with\n"+
+            "                 -boost)\n"+
+            "   -stats        print where training spent its time (parsing, split\n"+
+            "                 search, partitioning, ...), nodes and rows per depth,\n"+
+            "                 and why the tree stopped growing, to stderr; the\n"+
+            "                 same numbers are the JMX MBean DecisionTree:type=Metrics\n"+
+            "   -dev F        prune the tree against the held-out table F (same\n"+
+            "                 format as the training file); one tree only\n"+
+            "   -prune P      how to prune with -dev: rep (reduced-error, default)\n"+
+            "                 or ccp (cost-complexity, picking alpha on F)\n"+
+            "   -ooc          train out of core, for training files larger than the\n"+
+            "                 heap: the file is converted once into memory-mapped\n"+
+            "                 columns (<training file>.cols, which can also be given\n"+
+            "                 as the training file) and the top of the tree is grown\n"+
+            "                 on histograms of -bins K bins (default 256) streamed\n"+
+            "                 from them; one tree only, not with -leaves\n"+
+            "   -weight C     weight each row by its value in column C (a number\n"+
+            "                 >= 0; 2 counts the row's label twice, while -minsplit\n"+
+            "                 and -minleaf still count rows), which is then not a\n"+
+            "                 feature; leave it out of testing files\n"+
+            "   -balance      weight the rows so that every label counts the same in\n"+
+            "                 total (n / (labels * rows with the label) each, times\n"+
+            "                 any -weight), so rare labels aren't outvoted\n"+
+            "   -online       learn a Hoeffding tree from the rows one at a time, as\n"+
+            "                 if they were arriving in a stream (see HoeffdingTree);\n"+
+            "                 takes -criterion, -bins, -depth, -minleaf, -mingain\n"+
+            "                 and -leaves (default 1000) only\n"+
             "\n"+
             "Prediction:\n"+
-            "Usage: decision-tree.py -predict <testing file> <model file>\n"+
+            "Usage: decision-tree.py -predict <testing file> <model file> [-compile] [-stats]\n"+
+            "                        [-proba] [-top K] [-smooth A]\n"+
             "where...\n"+
             "   <testing file> is a comma separated table of features in the same\n"+
             "                  order used during training. Optionally, a label can\n"+
             "                  be in the final column; a header should be present\n"+
             "   <model file> should contain the decision tree model to use for prediction\n"+
+            "   -compile     (single trees) compile the tree to bytecode before\n"+
+            "                predicting; trees too big to gain are walked as usual\n"+
+            "   -stats       print the prediction latency per batch (percentiles) to\n"+
+            "                stderr\n"+
+            "   -proba       add a proba_<label> column per label: the fraction of\n"+
+            "                the leaf's training rows with the label (averaged over\n"+
+            "                a forest; the sigmoid or softmax of a boosted score)\n"+
+            "   -top K       add the K most probable labels and their probabilities\n"+
+            "                as top1_label,top1_proba,...,topK_label,topK_proba\n"+
+            "   -smooth A    add A to every label count of a leaf before dividing\n"+
+            "                (Laplace smoothing; default 0), so no label of a small\n"+
+            "                leaf gets probability 0; boosted models ignore it\n"+
             "\n"+
             "The output of the of prediction is the <testing file> data with a new\n"+
-            "column: predicted_label";
+            "column: predicted_label (then the columns of -proba and -top)\n"+
+            "\n"+
+            "Serving:\n"+
+            "Usage: DecisionTree -serve <model file> <port> [-threads N] [-compile]\n"+
+            "where...\n"+
+            "   <model file> is loaded once, and again whenever it changes\n"+
+            "   <port> is the port to answer HTTP on, on localhost: POST rows (CSV\n"+
+            "          like a testing file, or binary; see PredictionServer) to\n"+
+            "          /predict for their predicted labels; GET /stats for the\n"+
+            "          throughput and latency so far\n"+
+            "   -threads N   answer N requests at a time (default: one per core)\n"+
+            "   -compile     as for prediction\n"+
+            "\n"+
+            "Cross-validation:\n"+
+            "Usage: DecisionTree -cv <training file> <folds> [options]\n"+
+            "where...\n"+
+            "   <training file> is a training file, as for training\n"+
+            "   <folds> is the number of folds (e.g. 5)\n"+
+            "and the options are -criterion, -bins, -depth, -minsplit, -minleaf,\n"+
+            "-mingain and -leaves as for training (single trees), each taking a\n"+
+            "comma separated list of values to try, e.g. -depth 4,8,16 -bins 0,64\n"+
+            "(0: no bins). Every combination is cross-validated, and a leaderboard\n"+
+            "of the mean held-out accuracy and training time of each is printed.\n"+
+            "   -search N     try N combinations drawn at random instead of all\n"+
+            "   -weight C, -balance  weight the training rows as for training (the\n"+
+            "                 held-out rows all count once)\n"+
+            "   -threads N    train N trees at a time (default: one per core)\n"+
+            "   -seed S       deals the rows into folds and draws -search (default 1)";
         
 
         DecisionTree tree = new DecisionTree();
+        RandomForest forest = null;
+        GradientBoostedTrees boosted = null;
         String trainingFilename, testingFilename, modelFilename;
-        Dataset trainData, testData;
+        String devFilename = null;
+        int depth = 0;
+        int featuresPerNode = 0;
+        Long seed = null;
+        double learningRate = 0;
+        boolean printStats = false;
+        boolean outOfCore = false;
+        boolean online = false;
+        String weightColumn = null;
+        boolean balance = false;
+        ColumnarDataset trainData = null;
 
         // Check that enough arguments were specified.
         if(args.length < 3){
@@ -563,23 +4099,371 @@ public class DecisionTree {
             trainingFilename = args[1];
             modelFilename = args[2];
 
-            trainData = tree.parseDataFile(trainingFilename, true);
-            tree.train(trainData.observations);
-            tree.saveModel(modelFilename);
+            for(int i = 3; i < args.length; i++){
+                if(args[i].equals("-threads") && i+1 < args.length){
+                    tree.numThreads = Integer.parseInt(args[++i]);
+                } else if(args[i].equals("-bins") && i+1 < args.length){
+                    tree.maxBins = Integer.parseInt(args[++i]);
+                } else if(args[i].equals("-criterion") && i+1 < args.length){
+                    try {
+                        tree.criterion = SplitCriterion.forName(args[++i]);
+                    } catch(IllegalArgumentException e) {
+                        System.err.println(e.getMessage() +"\n");
+                        System.err.println(USAGE);
+                        System.exit(1);
+                    }
+                } else if(args[i].equals("-forest") && i+1 < args.length){
+                    int numTrees = Integer.parseInt(args[++i]);
+                    if(numTrees < 1){
+                        System.err.println("-forest takes a number of trees of at least 1\n");
+                        System.err.println(USAGE);
+                        System.exit(1);
+                    }
+                    if(forest == null)
+                        forest = new RandomForest(tree);
+                    forest.numTrees = numTrees;
+                } else if(args[i].equals("-features") && i+1 < args.length){
+                    featuresPerNode = Integer.parseInt(args[++i]);
+                } else if(args[i].equals("-seed") && i+1 < args.length){
+                    seed = Long.parseLong(args[++i]);
+                } else if(args[i].equals("-boost") && i+1 < args.length){
+                    int numRounds = Integer.parseInt(args[++i]);
+                    if(numRounds < 1){
+                        System.err.println("-boost takes a number of rounds of at least 1\n");
+                        System.err.println(USAGE);
+                        System.exit(1);
+                    }
+                    if(boosted == null)
+                        boosted = new GradientBoostedTrees(tree);
+                    boosted.numRounds = numRounds;
+                } else if(args[i].equals("-depth") && i+1 < args.length){
+                    depth = Integer.parseInt(args[++i]);
+                } else if(args[i].equals("-minsplit") && i+1 < args.length){
+                    tree.minSamplesSplit = Integer.parseInt(args[++i]);
+                } else if(args[i].equals("-minleaf") && i+1 < args.length){
+                    tree.minSamplesLeaf = Integer.parseInt(args[++i]);
+                } else if(args[i].equals("-mingain") && i+1 < args.length){
+                    tree.minImpurityDecrease = Double.parseDouble(args[++i]);
+                } else if(args[i].equals("-leaves") && i+1 < args.length){
+                    tree.maxLeaves = Integer.parseInt(args[++i]);
+                } else if(args[i].equals("-stats")){
+                    printStats = true;
+                } else if(args[i].equals("-ooc")){
+                    outOfCore = true;
+                } else if(args[i].equals("-online")){
+                    online = true;
+                } else if(args[i].equals("-weight") && i+1 < args.length){
+                    weightColumn = args[++i];
+                } else if(args[i].equals("-balance")){
+                    balance = true;
+                } else if(args[i].equals("-rate") && i+1 < args.length){
+                    learningRate = Double.parseDouble(args[++i]);
+                    if(!(learningRate > 0)){
+                        System.err.println("-rate takes a learning rate above 0\n");
+                        System.err.println(USAGE);
+                        System.exit(1);
+                    }
+                } else if(args[i].equals("-dev") && i+1 < args.length){
+                    devFilename = args[++i];
+                } else if(args[i].equals("-prune") && i+1 < args.length){
+                    String method = args[++i];
+                    if(method.equals("rep")){
+                        tree.pruneMethod = PruneMethod.REDUCED_ERROR;
+                    } else if(method.equals("ccp")){
+                        tree.pruneMethod = PruneMethod.COST_COMPLEXITY;
+                    } else {
+                        System.err.println("Unknown pruning method: "+ method +"\n");
+                        System.err.println(USAGE);
+                        System.exit(1);
+                    }
+                } else {
+                    System.err.println("Unrecognized option: "+ args[i] +"\n");
+                    System.err.println(USAGE);
+                    System.exit(1);
+                }
+            }
+
+            if(forest == null && (featuresPerNode != 0 || seed != null)){
+                System.err.println("-features and -seed only apply to a forest (-forest T)\n");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+            if(forest != null){
+                forest.featuresPerNode = featuresPerNode;
+                if(seed != null)
+                    forest.seed = seed;
+            }
+            if(boosted == null && learningRate != 0){
+                System.err.println("-rate only applies to boosting (-boost R)\n");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+            if(boosted != null && learningRate != 0)
+                boosted.learningRate = learningRate;
+            if(forest != null && tree.maxBins > 0){
+                System.err.println("-bins can't be used with a forest\n");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+            if(forest != null && boosted != null){
+                System.err.println("Choose either a forest or boosting, not both\n");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+
+            if(boosted != null && (tree.minSamplesSplit != 2 || tree.minSamplesLeaf != 1
+                                   || tree.minImpurityDecrease != 0 || tree.maxLeaves != 0)){
+                System.err.println("Boosting only takes -depth as a stopping rule\n");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+            if(depth > 0){
+                if(boosted != null)
+                    boosted.maxDepth = depth;
+                else
+                    tree.maxDepth = depth;
+            }
+            if(devFilename != null && (forest != null || boosted != null)){
+                System.err.println("-dev only prunes a single tree\n");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+
+            if((outOfCore || online) && (weightColumn != null || balance)){
+                System.err.println("-weight and -balance need the training file in memory (not -ooc or -online)\n");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+
+            if(outOfCore && (forest != null || boosted != null || tree.maxLeaves > 0)){
+                System.err.println("-ooc only trains a single tree, without -leaves\n");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+
+            if(online && (forest != null || boosted != null || outOfCore || devFilename != null
+                          || printStats || tree.minSamplesSplit != 2 || tree.numThreads != 1)){
+                System.err.println("-online only takes -criterion, -bins, -depth, -minleaf, -mingain and -leaves\n");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+
+            if(printStats){
+                tree.metrics = new Metrics();
+                tree.metrics.register();
+            }
+            if(!online && !outOfCore){
+                trainData = tree.parseColumnarDataFile(trainingFilename, true);
+                if(weightColumn != null){
+                    try {
+                        trainData.takeWeights(weightColumn);
+                    } catch(IllegalArgumentException e) {
+                        System.err.println(e.getMessage() +"\n");
+                        System.err.println(USAGE);
+                        System.exit(1);
+                    }
+                }
+                if(balance)
+                    trainData.balanceClasses();
+                if(boosted != null && (trainData.categories != null || trainData.hasMissing())){
+                    System.err.println("-boost needs numeric features with no missing values\n");
+                    System.err.println(USAGE);
+                    System.exit(1);
+                }
+            }
+            // The -dev file is read after the training file, to code its
+            // categories the same way.
+            if(devFilename != null)
+                tree.pruneData = tree.parseColumnarDataFile(devFilename, true,
+                    trainData != null ? trainData.categories : null);
+            if(online){
+                HoeffdingTree hoeffding = new HoeffdingTree(tree);
+                if(tree.maxLeaves > 0)
+                    hoeffding.maxLeaves = tree.maxLeaves;
+                try {
+                    hoeffding.train(trainingFilename);
+                } catch(NumberFormatException e) {
+                    System.err.println(e.getMessage());
+                    System.err.println("-online needs numeric features with no missing values\n");
+                    System.err.println(USAGE);
+                    System.exit(1);
+                }
+                hoeffding.saveModel(modelFilename);
+            } else if(outOfCore){
+                try(ColumnFile columns = tree.openColumnFile(trainingFilename)){
+                    tree.train(columns);
+                } catch(NumberFormatException e) {
+                    System.err.println(e.getMessage());
+                    System.err.println("-ooc needs numeric features with no missing values\n");
+                    System.err.println(USAGE);
+                    System.exit(1);
+                }
+                tree.saveModel(modelFilename);
+            } else if(forest != null){
+                forest.train(trainData);
+                forest.saveModel(modelFilename);
+            } else if(boosted != null){
+                if(tree.maxBins > 0)
+                    boosted.maxBins = tree.maxBins;
+                boosted.train(trainData);
+                boosted.saveModel(modelFilename);
+            } else {
+                tree.train(trainData);
+                tree.saveModel(modelFilename);
+            }
+            if(printStats){
+                System.err.println(tree.metrics.trainingSummary());
+                if(boosted == null)
+                    System.err.println(tree.stats);
+            }
 
         // Prediction mode.
         } else if(args[0].equals("-predict")){
             testingFilename = args[1];
             modelFilename = args[2];
+            boolean compile = false;
+            boolean proba = false;
+            int topLabels = 0;
+            double smoothing = 0;
+
+            for(int i = 3; i < args.length; i++){
+                if(args[i].equals("-compile")){
+                    compile = true;
+                } else if(args[i].equals("-stats")){
+                    printStats = true;
+                } else if(args[i].equals("-proba")){
+                    proba = true;
+                } else if(args[i].equals("-top") && i+1 < args.length){
+                    topLabels = Integer.parseInt(args[++i]);
+                } else if(args[i].equals("-smooth") && i+1 < args.length){
+                    smoothing = Double.parseDouble(args[++i]);
+                } else {
+                    System.err.println("Unrecognized option: "+ args[i] +"\n");
+                    System.err.println(USAGE);
+                    System.exit(1);
+                }
+            }
 
-            testData = tree.parseDataFile(testingFilename, true);
-            tree.loadModel(modelFilename);
+            // A tree or a forest, depending on the file.
+            ModelFile modelFile = ModelFile.load(modelFilename);
+            Classifier model = loadClassifier(modelFile);
+            if(compile && !(model instanceof DecisionTree && ((DecisionTree) model).compileBytecode()))
+                System.err.println("Not compiling "+ modelFilename +" (only single trees of up to "
+                    + BytecodeTree.MAX_CODE_BYTES +" bytes of bytecode, with no categorical"
+                    +" splits); walking it instead");
 
-            // Print out each testing observation and its predicted label.
-            System.out.println(testData.columnNamesAsCSV() +
-                ",predicted_label");
-            for(Observation obs : testData.observations)
-                System.out.println(obs +","+ tree.predict(obs));
+            // Print out each testing observation and its predicted label,
+            // a chunk at a time.
+            if(topLabels < 0 || topLabels > model.labelNames().size() || !(smoothing >= 0)){
+                System.err.println("-top takes 0 to "+ model.labelNames().size()
+                    +" labels and -smooth a count of at least 0\n");
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+            PredictionPipeline pipeline = new PredictionPipeline(model, modelFile.columnNames.size() - 1);
+            pipeline.writeProba = proba;
+            pipeline.topLabels = topLabels;
+            pipeline.smoothing = smoothing;
+            if(printStats){
+                pipeline.metrics = new Metrics();
+                pipeline.metrics.register();
+            }
+            try {
+                pipeline.run(testingFilename, System.out);
+            } catch(IOException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+            if(printStats)
+                System.err.println(pipeline.metrics.predictionSummary());
+
+        // Serving mode.
+        } else if(args[0].equals("-serve")){
+            modelFilename = args[1];
+            int port = Integer.parseInt(args[2]);
+            int numThreads = Runtime.getRuntime().availableProcessors();
+            boolean compile = false;
+
+            for(int i = 3; i < args.length; i++){
+                if(args[i].equals("-threads") && i+1 < args.length){
+                    numThreads = Integer.parseInt(args[++i]);
+                } else if(args[i].equals("-compile")){
+                    compile = true;
+                } else {
+                    System.err.println("Unrecognized option: "+ args[i] +"\n");
+                    System.err.println(USAGE);
+                    System.exit(1);
+                }
+            }
+
+            PredictionServer server = new PredictionServer(modelFilename, compile);
+            server.start(port, numThreads);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(server.stats())));
+            System.err.println("Serving "+ modelFilename +" on http://localhost:"+ server.port() +"/predict");
+
+        // Cross-validation mode.
+        } else if(args[0].equals("-cv")){
+            trainingFilename = args[1];
+            CrossValidation cv = new CrossValidation();
+            cv.numFolds = Integer.parseInt(args[2]);
+            cv.numThreads = Runtime.getRuntime().availableProcessors();
+
+            for(int i = 3; i < args.length; i++){
+                if(args[i].equals("-threads") && i+1 < args.length){
+                    cv.numThreads = Integer.parseInt(args[++i]);
+                } else if(args[i].equals("-seed") && i+1 < args.length){
+                    cv.seed = Long.parseLong(args[++i]);
+                } else if(args[i].equals("-search") && i+1 < args.length){
+                    cv.numSamples = Integer.parseInt(args[++i]);
+                } else if(args[i].equals("-criterion") && i+1 < args.length){
+                    cv.criteria = args[++i].split(",");
+                    try {
+                        for(String name : cv.criteria)
+                            SplitCriterion.forName(name);
+                    } catch(IllegalArgumentException e) {
+                        System.err.println(e.getMessage() +"\n");
+                        System.err.println(USAGE);
+                        System.exit(1);
+                    }
+                } else if(args[i].equals("-bins") && i+1 < args.length){
+                    cv.bins = parseInts(args[++i]);
+                } else if(args[i].equals("-depth") && i+1 < args.length){
+                    cv.depths = parseInts(args[++i]);
+                } else if(args[i].equals("-minsplit") && i+1 < args.length){
+                    cv.minSplits = parseInts(args[++i]);
+                } else if(args[i].equals("-minleaf") && i+1 < args.length){
+                    cv.minLeaves = parseInts(args[++i]);
+                } else if(args[i].equals("-mingain") && i+1 < args.length){
+                    String[] values = args[++i].split(",");
+                    cv.minGains = new double[values.length];
+                    for(int v = 0; v < values.length; v++)
+                        cv.minGains[v] = Double.parseDouble(values[v]);
+                } else if(args[i].equals("-leaves") && i+1 < args.length){
+                    cv.leaves = parseInts(args[++i]);
+                } else if(args[i].equals("-weight") && i+1 < args.length){
+                    weightColumn = args[++i];
+                } else if(args[i].equals("-balance")){
+                    balance = true;
+                } else {
+                    System.err.println("Unrecognized option: "+ args[i] +"\n");
+                    System.err.println(USAGE);
+                    System.exit(1);
+                }
+            }
+
+            trainData = tree.parseColumnarDataFile(trainingFilename, true);
+            if(weightColumn != null){
+                try {
+                    trainData.takeWeights(weightColumn);
+                } catch(IllegalArgumentException e) {
+                    System.err.println(e.getMessage() +"\n");
+                    System.err.println(USAGE);
+                    System.exit(1);
+                }
+            }
+            if(balance)
+                trainData.balanceClasses();
+            cv.printLeaderboard(cv.run(trainData), System.out);
 
         // Unknown mode.
         } else {
@@ -0,0 +1,349 @@
+import java.util.ArrayList;
+
+/**
+ * A decision tree stored as flat arrays (one slot per node) instead of as
+ * linked Node objects. This is the layout saved in model files, and it can be
+ * filled straight from a file without creating any objects per node.
+ *
+ * Nodes are numbered in pre-order, so the root is node 0, and a left child
+ * always directly follows its parent. Walking the tree is then a tight loop
+ * over a handful of primitive arrays, which stays in cache far better than
+ * chasing Node pointers and HashMaps.
+ *
+ * A regression tree (one round of GradientBoostedTrees) has numLabels = 1:
+ * its `distribution` holds each node's real-valued prediction instead of
+ * label counts, and leafLabel is unused.
+ *
+ * Trees that split on categorical features, or that send rows missing a
+ * feature (NaN) to the left, also have `categories` and `missingLeft`; both
+ * stay null for plain numeric trees, which keep the tight loop.
+ */
+public class FlatTree {
+    public int numNodes;
+    public int numLabels;
+
+    public int[] feature;       // the feature a node splits on; -1 for leaves
+    public double[] threshold;  // the split threshold (internal nodes)
+    public int[] left;          // the node for feature value <= threshold; -1 for leaves
+    public int[] right;         // the node for feature value > threshold; -1 for leaves
+    public int[] leafLabel;     // the most common label id in each node
+    public double[] distribution; // numNodes x numLabels label counts, row per node
+                                  // (for a regression tree, the node values)
+    public int[] n;             // the number of training rows in each node
+    public boolean[] missingLeft; // NaN values go left, per node; null if they never do
+    public long[][] categories; // a categorical split's codes going left, per node; null if none
+
+    /**
+     * Allocates the arrays of a tree with the given number of nodes.
+     *
+     * @param numNodes  The number of nodes.
+     * @param numLabels The number of label ids.
+     */
+    public FlatTree(int numNodes, int numLabels) {
+        this.numNodes = numNodes;
+        this.numLabels = numLabels;
+        feature = new int[numNodes];
+        threshold = new double[numNodes];
+        left = new int[numNodes];
+        right = new int[numNodes];
+        leafLabel = new int[numNodes];
+        distribution = new double[numNodes * numLabels];
+        n = new int[numNodes];
+    }
+
+    /**
+     * Runs one row through the tree.
+     *
+     * @param x The feature values of the row, in training column order.
+     * @return The label id predicted for the row.
+     */
+    public int predict(double[] x) {
+        return leafLabel[leafOf(x)];
+    }
+
+    /**
+     * Finds the leaf a row ends up in.
+     *
+     * @param x The feature values of the row, in training column order.
+     * @return The index of the leaf node.
+     */
+    public int leafOf(double[] x) {
+        int node = 0;
+        int f;
+        if (missingLeft == null && categories == null) {
+            while ((f = feature[node]) >= 0) {
+                node = x[f] <= threshold[node] ? left[node] : right[node];
+            }
+            return node;
+        }
+        while ((f = feature[node]) >= 0) {
+            node = goesLeft(node, x[f]) ? left[node] : right[node];
+        }
+        return node;
+    }
+
+    /**
+     * Finds the leaf a row of a block stored column by column ends up in.
+     *
+     * @param columns The feature values, columns[feature][row].
+     * @param row     The row to walk.
+     * @return The index of the leaf node.
+     */
+    public int leafOf(double[][] columns, int row) {
+        int node = 0;
+        int f;
+        if (missingLeft == null && categories == null) {
+            while ((f = feature[node]) >= 0) {
+                node = columns[f][row] <= threshold[node] ? left[node] : right[node];
+            }
+            return node;
+        }
+        while ((f = feature[node]) >= 0) {
+            node = goesLeft(node, columns[f][row]) ? left[node] : right[node];
+        }
+        return node;
+    }
+
+    /**
+     * Adds the label probabilities of a leaf, times `scale`, to
+     * out[offset...offset+numLabels): (c_k + smoothing) / (n + K * smoothing)
+     * for label counts c_k summing to n, and K labels. `smoothing` is the
+     * Laplace (add-alpha) estimate: 0 gives the plain fractions, 1 keeps a
+     * label that no training row in the leaf had from getting probability 0.
+     *
+     * @param leaf      The leaf node.
+     * @param smoothing The count added to each label (>= 0).
+     * @param scale     What to multiply the probabilities by (e.g. 1 / the
+     *                  number of trees, to average a forest).
+     * @param out       Where to add them.
+     * @param offset    The index of label 0 in `out`.
+     */
+    public void addProba(int leaf, double smoothing, double scale, double[] out, int offset) {
+        int base = leaf * numLabels;
+        double n = numLabels * smoothing;
+        for (int k = 0; k < numLabels; k++) {
+            n += distribution[base + k];
+        }
+        for (int k = 0; k < numLabels; k++) {
+            out[offset + k] += scale * (distribution[base + k] + smoothing) / n;
+        }
+    }
+
+    /**
+     * The batch version of addProba(): adds the label probabilities of the
+     * first `numRows` rows, row by row, to out[row * numLabels + k]. Nothing
+     * is allocated.
+     *
+     * @param columns   The feature values, columns[feature][row].
+     * @param numRows   The number of rows.
+     * @param smoothing The count added to each label (see addProba()).
+     * @param scale     What to multiply the probabilities by.
+     * @param out       Where to add them; at least numRows * numLabels long.
+     */
+    public void addProbaBatch(double[][] columns, int numRows, double smoothing, double scale,
+                              double[] out) {
+        for (int row = 0; row < numRows; row++) {
+            addProba(leafOf(columns, row), smoothing, scale, out, row * numLabels);
+        }
+    }
+
+    /**
+     * The general version of the `value <= threshold` test, for trees with
+     * categorical splits or missing values going left.
+     */
+    boolean goesLeft(int node, double value) {
+        if (value != value) {
+            return missingLeft != null && missingLeft[node];
+        }
+        if (categories != null && categories[node] != null) {
+            return DecisionTree.inCategories(categories[node], value);
+        }
+        return value <= threshold[node];
+    }
+
+    /**
+     * Predicts a whole block of rows stored column by column (as in
+     * DecisionTree.ColumnarDataset), with no call or boxing per row.
+     *
+     * @param columns The feature values, columns[feature][row].
+     * @param out     Filled with the label id predicted for each row; its
+     *                length is the number of rows to predict.
+     */
+    public void predictBatch(double[][] columns, int[] out) {
+        predictBatch(columns, out.length, out);
+    }
+
+    /**
+     * Predicts the first `numRows` rows of a block (for reused buffers that
+     * are only partly full).
+     *
+     * @param columns The feature values, columns[feature][row].
+     * @param numRows The number of rows to predict.
+     * @param out     Filled with the label id predicted for each row.
+     */
+    public void predictBatch(double[][] columns, int numRows, int[] out) {
+        leafBatch(columns, numRows, out);
+        for (int i = 0; i < numRows; i++) {
+            out[i] = leafLabel[out[i]];
+        }
+    }
+
+    /**
+     * The batch version of leafOf().
+     *
+     * Each row is walked from the root to its leaf before the next one
+     * starts. Walking the whole block down one level per pass was measured
+     * to be about twice as slow: keeping every row's current node in memory
+     * between passes costs more than it saves.
+     *
+     * @param columns The feature values, columns[feature][row].
+     * @param leaves  Filled with the leaf node each row ends up in; its length
+     *                is the number of rows.
+     */
+    public void leafBatch(double[][] columns, int[] leaves) {
+        leafBatch(columns, leaves.length, leaves);
+    }
+
+    /**
+     * The batch version of leafOf() for the first `numRows` rows.
+     *
+     * @param columns The feature values, columns[feature][row].
+     * @param numRows The number of rows to walk.
+     * @param leaves  Filled with the leaf node each row ends up in.
+     */
+    public void leafBatch(double[][] columns, int numRows, int[] leaves) {
+        int[] feature = this.feature;
+        double[] threshold = this.threshold;
+        int[] left = this.left;
+        int[] right = this.right;
+
+        if (missingLeft != null || categories != null) {
+            for (int row = 0; row < numRows; row++) {
+                int node = 0;
+                int f;
+                while ((f = feature[node]) >= 0) {
+                    node = goesLeft(node, columns[f][row]) ? left[node] : right[node];
+                }
+                leaves[row] = node;
+            }
+            return;
+        }
+        for (int row = 0; row < numRows; row++) {
+            int node = 0;
+            int f;
+            while ((f = feature[node]) >= 0) {
+                node = columns[f][row] <= threshold[node] ? left[node] : right[node];
+            }
+            leaves[row] = node;
+        }
+    }
+
+    /**
+     * Flattens a tree of Nodes.
+     *
+     * @param root       The root of the tree.
+     * @param labelNames The label of each label id.
+     * @return The same tree as flat arrays.
+     */
+    public static FlatTree compile(DecisionTree.Node root, ArrayList<String> labelNames) {
+        FlatTree flat = new FlatTree(countNodes(root), labelNames.size());
+        flat.fill(root, 0);
+        return flat;
+    }
+
+    /**
+     * Flattens a regression tree, whose Nodes hold a `value` rather than a
+     * label distribution.
+     *
+     * @param root The root of the tree.
+     * @return The same tree as flat arrays, with numLabels = 1.
+     */
+    public static FlatTree compileRegression(DecisionTree.Node root) {
+        FlatTree flat = new FlatTree(countNodes(root), 1);
+        flat.fillValues(root, 0);
+        return flat;
+    }
+
+    /**
+     * @return The number of nodes in the subtree rooted at `node`.
+     */
+    static int countNodes(DecisionTree.Node node) {
+        if (node.isLeafNode()) {
+            return 1;
+        }
+        return 1 + countNodes(node.lessThanEqualChild) + countNodes(node.greaterThanChild);
+    }
+
+    /**
+     * Copies the subtree rooted at `node` into the arrays, starting at slot
+     * `index`.
+     *
+     * @return The next free slot.
+     */
+    int fill(DecisionTree.Node node, int index) {
+        n[index] = node.n;
+        int best = 0;
+        System.arraycopy(node.labelCounts, 0, distribution, index * numLabels, numLabels);
+        for (int k = 1; k < numLabels; k++) {
+            if (distribution[index * numLabels + k] > distribution[index * numLabels + best]) {
+                best = k;
+            }
+        }
+        leafLabel[index] = best;
+
+        if (node.isLeafNode()) {
+            feature[index] = -1;
+            left[index] = -1;
+            right[index] = -1;
+            return index + 1;
+        }
+
+        feature[index] = node.featureIndex;
+        threshold[index] = node.threshold;
+        setSplit(index, node);
+        left[index] = index + 1;
+        int next = fill(node.lessThanEqualChild, index + 1);
+        right[index] = next;
+        return fill(node.greaterThanChild, next);
+    }
+
+    /**
+     * Copies a node's categories and missing value side, allocating the
+     * arrays for them the first time one is needed.
+     */
+    void setSplit(int index, DecisionTree.Node node) {
+        if (node.missingGoesLeft) {
+            if (missingLeft == null) {
+                missingLeft = new boolean[numNodes];
+            }
+            missingLeft[index] = true;
+        }
+        if (node.categories != null) {
+            if (categories == null) {
+                categories = new long[numNodes][];
+            }
+            categories[index] = node.categories;
+        }
+    }
+
+    /**
+     * The regression version of fill().
+     */
+    int fillValues(DecisionTree.Node node, int index) {
+        n[index] = node.n;
+        distribution[index] = node.value;
+        if (node.isLeafNode()) {
+            feature[index] = -1;
+            left[index] = -1;
+            right[index] = -1;
+            return index + 1;
+        }
+
+        feature[index] = node.featureIndex;
+        threshold[index] = node.threshold;
+        left[index] = index + 1;
+        int next = fillValues(node.lessThanEqualChild, index + 1);
+        right[index] = next;
+        return fillValues(node.greaterThanChild, next);
+    }
+}
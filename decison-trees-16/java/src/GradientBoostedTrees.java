@@ -0,0 +1,473 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Gradient boosted trees with log-loss, for two or more labels.
+ *
+ * The model keeps a real-valued score per output: one score (the log-odds of
+ * labelNames[1]) for two labels, or one per label (a softmax) for more. Each
+ * round fits one shallow regression tree per output to the gradient of the
+ * log-loss, and adds its leaf values to the scores.
+ *
+ * The regression trees are grown from histograms, like the binned mode of
+ * DecisionTree. The training data is binned once and the same bins are used
+ * by every round. A node's histogram holds, per feature and bin, the sum of
+ * the gradients g and hessians h of its rows and their count, so finding a
+ * split is a sweep over the bins. As in build(BinnedDataset), only the
+ * smaller child of a split is scanned; the other's histogram is the parent's
+ * minus the smaller's.
+ *
+ * A split is scored by the Newton (hessian-weighted) variance reduction
+ *
+ *      G_L^2 / (H_L + lambda) + G_R^2 / (H_R + lambda) - G^2 / (H + lambda)
+ *
+ * which is plain variance reduction of the residuals when every h is 1. A
+ * leaf predicts -G / (H + lambda), times the learning rate.
+ */
+public class GradientBoostedTrees implements Classifier {
+    // The number of boosting rounds.
+    int numRounds = 100;
+    // The depth of each regression tree (a depth of 3 gives up to 8 leaves).
+    int maxDepth = 3;
+    // The factor each tree's leaf values are shrunk by.
+    double learningRate = 0.1;
+    // The L2 penalty on leaf values; keeps leaves with tiny hessians sane.
+    double lambda = 1;
+    // The most bins per feature (2-256).
+    int maxBins = 255;
+
+    // Makes the BinnedDataset and the Nodes.
+    DecisionTree builder;
+
+    // the header and label vocabulary of the training data
+    ArrayList<String> columnNames;
+    ArrayList<String> labelNames;
+    // 1 for two labels (the log-odds of label id 1), else one per label
+    int numOutputs;
+    // Tree t adds to the score of output t % numOutputs. The first
+    // numOutputs trees are single leaves holding the starting scores; then
+    // come numOutputs trees per round.
+    FlatTree[] trees;
+
+    /**
+     * @param builder The tree that makes the binned dataset and the Nodes.
+     */
+    public GradientBoostedTrees(DecisionTree builder) {
+        this.builder = builder;
+    }
+
+    /**
+     * A boosted model read from a model file.
+     *
+     * @param model A BOOSTED model.
+     */
+    public GradientBoostedTrees(ModelFile model) {
+        columnNames = model.columnNames;
+        labelNames = model.labelNames;
+        numOutputs = labelNames.size() == 2 ? 1 : labelNames.size();
+        trees = model.trees;
+    }
+
+    /**
+     * The arrays shared by all rounds: the binned data, the rows (partitioned
+     * in place by each tree, like BinnedWorkspace) and spare histograms.
+     */
+    class Workspace {
+        DecisionTree.BinnedDataset binned;
+        int[] rows;
+        int[] histOffsets;      // where each feature's bins start in a histogram
+        int histSize;
+        ArrayDeque<double[]> spare = new ArrayDeque<double[]>();
+
+        Workspace(DecisionTree.BinnedDataset binned) {
+            this.binned = binned;
+            int numFeatures = binned.data.numFeatures();
+            rows = new int[binned.data.numRows];
+            histOffsets = new int[numFeatures];
+            for (int f = 0; f < numFeatures; f++) {
+                histOffsets[f] = histSize;
+                histSize += 3 * binned.numBins(f);
+            }
+        }
+
+        double[] takeHistogram() {
+            double[] hist = spare.poll();
+            if (hist == null) {
+                return new double[histSize];
+            }
+            Arrays.fill(hist, 0);
+            return hist;
+        }
+
+        void giveBack(double[] hist) {
+            if (hist != null) {
+                spare.push(hist);
+            }
+        }
+    }
+
+    /**
+     * Boosts `numRounds` rounds on a columnar dataset.
+     *
+     * @param data A columnar dataset with at least two labels.
+     */
+    public void train(DecisionTree.ColumnarDataset data) {
+        columnNames = data.columnNames;
+        labelNames = data.labelNames;
+        int numLabels = data.numLabels();
+        if (numLabels < 2) {
+            throw new IllegalArgumentException("boosting needs at least two labels");
+        }
+        if (data.categories != null || data.hasMissing()) {
+            throw new IllegalArgumentException("boosting needs numeric features with no missing values");
+        }
+        numOutputs = numLabels == 2 ? 1 : numLabels;
+        int n = data.numRows;
+
+        Metrics metrics = builder.metrics;
+        if (metrics != null) {
+            metrics.beginTraining(data);
+        }
+        Metrics.PhaseEvent event = Metrics.begin(metrics, Metrics.Phase.BIN);
+        Workspace ws = new Workspace(builder.new BinnedDataset(data, maxBins));
+        Metrics.end(metrics, event, n);
+        event = Metrics.begin(metrics, Metrics.Phase.BUILD);
+        double[][] scores = new double[numOutputs][n];
+        double[][] gradients = new double[numOutputs][n];
+        double[][] hessians = new double[numOutputs][n];
+        trees = new FlatTree[numOutputs * (numRounds + 1)];
+
+        // Start every row at the log of the label frequencies.
+        double[] counts = new double[numLabels];
+        double total = 0;
+        for (int row = 0; row < n; row++) {
+            counts[data.labels[row]] += data.weight(row);
+            total += data.weight(row);
+        }
+        for (int k = 0; k < numOutputs; k++) {
+            double start = numOutputs == 1
+                ? Math.log((counts[1] + 1) / (counts[0] + 1))
+                : Math.log((counts[k] + 1) / (total + numLabels));
+            DecisionTree.Node leaf = builder.new Node(null, n);
+            leaf.value = start;
+            trees[k] = FlatTree.compileRegression(leaf);
+            Arrays.fill(scores[k], start);
+        }
+
+        for (int round = 0; round < numRounds; round++) {
+            computeGradients(scores, data.labels, gradients, hessians);
+            if (data.weights != null) {
+                // A row of weight w counts as w rows in every sum.
+                for (int k = 0; k < numOutputs; k++) {
+                    for (int row = 0; row < n; row++) {
+                        gradients[k][row] *= data.weights[row];
+                        hessians[k][row] *= data.weights[row];
+                    }
+                }
+            }
+            for (int k = 0; k < numOutputs; k++) {
+                for (int i = 0; i < n; i++) {
+                    ws.rows[i] = i;
+                }
+                double[] hist = null;
+                if (maxDepth > 0) {
+                    hist = ws.takeHistogram();
+                    fillHistogram(ws, gradients[k], hessians[k], 0, n, hist);
+                }
+                DecisionTree.Node root = grow(ws, gradients[k], hessians[k], scores[k], 0, n, 0, hist);
+                trees[numOutputs * (round + 1) + k] = FlatTree.compileRegression(root);
+            }
+        }
+        Metrics.end(metrics, event, n);
+    }
+
+    /**
+     * The gradient and hessian of the log-loss with respect to each score.
+     * With one output, p = sigmoid(score); with more, p = softmax(scores).
+     * Either way g = p - y and h = p * (1 - p).
+     */
+    void computeGradients(double[][] scores, int[] labels, double[][] gradients,
+                          double[][] hessians) {
+        int n = labels.length;
+        if (numOutputs == 1) {
+            for (int row = 0; row < n; row++) {
+                double p = 1 / (1 + Math.exp(-scores[0][row]));
+                gradients[0][row] = p - (labels[row] == 1 ? 1 : 0);
+                hessians[0][row] = p * (1 - p);
+            }
+            return;
+        }
+
+        for (int row = 0; row < n; row++) {
+            double max = Double.NEGATIVE_INFINITY;
+            for (int k = 0; k < numOutputs; k++) {
+                max = Math.max(max, scores[k][row]);
+            }
+            double sum = 0;
+            for (int k = 0; k < numOutputs; k++) {
+                sum += Math.exp(scores[k][row] - max);
+            }
+            for (int k = 0; k < numOutputs; k++) {
+                double p = Math.exp(scores[k][row] - max) / sum;
+                gradients[k][row] = p - (labels[row] == k ? 1 : 0);
+                hessians[k][row] = p * (1 - p);
+            }
+        }
+    }
+
+    /**
+     * Grows a regression tree on the rows in [from, to), and adds each
+     * leaf's value to the scores of its rows.
+     *
+     * @param hist The node's histograms, or null at the last level (a leaf
+     *             only needs its sums, so no histograms are filled for it).
+     * @return A Node representing a subtree or leaf.
+     */
+    DecisionTree.Node grow(Workspace ws, double[] g, double[] h, double[] scores,
+                           int from, int to, int depth, double[] hist) {
+        Metrics metrics = builder.metrics;
+        if (metrics != null) {
+            metrics.node(depth);
+        }
+        double sumG = 0;
+        double sumH = 0;
+        for (int i = from; i < to; i++) {
+            sumG += g[ws.rows[i]];
+            sumH += h[ws.rows[i]];
+        }
+        double value = -sumG / (sumH + lambda) * learningRate;
+
+        int bestFeature = -1;
+        int bestBin = 0;
+        double bestGain = 0;
+        if (hist != null && to - from >= 2) {
+            double parentScore = sumG * sumG / (sumH + lambda);
+            DecisionTree.BinnedDataset binned = ws.binned;
+            for (int f = 0; f < ws.histOffsets.length; f++) {
+                int offset = ws.histOffsets[f];
+                double leftG = 0;
+                double leftH = 0;
+                double nLeft = 0;
+                for (int b = 0; b < binned.numBins(f) - 1; b++) {
+                    int base = offset + 3 * b;
+                    if (hist[base + 2] == 0) {
+                        continue;
+                    }
+                    leftG += hist[base];
+                    leftH += hist[base + 1];
+                    nLeft += hist[base + 2];
+                    if (nLeft == to - from) {
+                        break;
+                    }
+                    double rightG = sumG - leftG;
+                    double rightH = sumH - leftH;
+                    double gain = leftG * leftG / (leftH + lambda)
+                                + rightG * rightG / (rightH + lambda) - parentScore;
+                    if (gain > bestGain + DecisionTree.GAIN_EPSILON) {
+                        bestGain = gain;
+                        bestFeature = f;
+                        bestBin = b;
+                    }
+                }
+            }
+        }
+
+        if (bestFeature < 0) {
+            ws.giveBack(hist);
+            for (int i = from; i < to; i++) {
+                scores[ws.rows[i]] += value;
+            }
+            DecisionTree.Node leaf = builder.new Node(null, to - from);
+            leaf.value = value;
+            if (metrics != null) {
+                metrics.leaf(depth);
+            }
+            return leaf;
+        }
+
+        // Partition the rows in place on the code of the split bin.
+        byte[] codes = ws.binned.codes[bestFeature];
+        int mid = from;
+        for (int i = from; i < to; i++) {
+            int row = ws.rows[i];
+            if ((codes[row] & 0xFF) <= bestBin) {
+                ws.rows[i] = ws.rows[mid];
+                ws.rows[mid++] = row;
+            }
+        }
+
+        double[] leftHist = null;
+        double[] rightHist = null;
+        if (depth + 1 < maxDepth) {
+            // Scan the smaller child; the larger one gets parent - smaller.
+            boolean leftIsSmaller = mid - from <= to - mid;
+            double[] smallHist = ws.takeHistogram();
+            if (leftIsSmaller) {
+                fillHistogram(ws, g, h, from, mid, smallHist);
+            } else {
+                fillHistogram(ws, g, h, mid, to, smallHist);
+            }
+            for (int i = 0; i < hist.length; i++) {
+                hist[i] -= smallHist[i];
+            }
+            leftHist = leftIsSmaller ? smallHist : hist;
+            rightHist = leftIsSmaller ? hist : smallHist;
+        } else {
+            ws.giveBack(hist);
+        }
+
+        DecisionTree.Node lessThanEqualChild = grow(ws, g, h, scores, from, mid, depth + 1, leftHist);
+        DecisionTree.Node greaterThanChild = grow(ws, g, h, scores, mid, to, depth + 1, rightHist);
+        DecisionTree.Node node = builder.new Node(null, to - from, bestFeature,
+            ws.binned.cuts[bestFeature][bestBin], lessThanEqualChild, greaterThanChild);
+        node.value = value;
+        return node;
+    }
+
+    /**
+     * Adds the gradient, hessian and count of the rows in [from, to) to each
+     * feature's histogram.
+     */
+    void fillHistogram(Workspace ws, double[] g, double[] h, int from, int to, double[] hist) {
+        int[] rows = ws.rows;
+        for (int f = 0; f < ws.histOffsets.length; f++) {
+            byte[] codes = ws.binned.codes[f];
+            int offset = ws.histOffsets[f];
+            for (int i = from; i < to; i++) {
+                int row = rows[i];
+                int base = offset + 3 * (codes[row] & 0xFF);
+                hist[base] += g[row];
+                hist[base + 1] += h[row];
+                hist[base + 2]++;
+            }
+        }
+    }
+
+    /**
+     * Adds up the scores of a block of rows, one tree at a time.
+     *
+     * @param columns The feature values, columns[feature][row].
+     * @param numRows The number of rows.
+     * @param leaves  Scratch space for numRows leaf ids.
+     * @return The scores, numRows x numOutputs, row by row.
+     */
+    double[] scoreBatch(double[][] columns, int numRows, int[] leaves) {
+        double[] scores = new double[numRows * numOutputs];
+        for (int t = 0; t < trees.length; t++) {
+            FlatTree tree = trees[t];
+            int k = t % numOutputs;
+            tree.leafBatch(columns, numRows, leaves);
+            for (int row = 0; row < numRows; row++) {
+                scores[row * numOutputs + k] += tree.distribution[leaves[row]];
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * @return The label id with the highest score among
+     *         scores[offset...offset+numOutputs).
+     */
+    int labelOf(double[] scores, int offset) {
+        if (numOutputs == 1) {
+            return scores[offset] > 0 ? 1 : 0;
+        }
+        return RandomForest.argmax(scores, offset, numOutputs);
+    }
+
+    /**
+     * Runs one row through every tree.
+     *
+     * @param x The feature values of the row, in training column order.
+     * @return The predicted label id.
+     */
+    public int predict(double[] x) {
+        double[] scores = new double[numOutputs];
+        for (int t = 0; t < trees.length; t++) {
+            scores[t % numOutputs] += trees[t].distribution[trees[t].leafOf(x)];
+        }
+        return labelOf(scores, 0);
+    }
+
+    @Override
+    public void predictBatch(double[][] columns, int numRows, int[] out) {
+        double[] scores = scoreBatch(columns, numRows, out);
+        for (int row = 0; row < numRows; row++) {
+            out[row] = labelOf(scores, row * numOutputs);
+        }
+    }
+
+    /**
+     * The sigmoid (two labels) or softmax of the row's scores. Leaves hold
+     * scores, not counts, so `smoothing` is ignored.
+     */
+    @Override
+    public void predictProba(double[] x, double smoothing, double[] out) {
+        Arrays.fill(out, 0, labelNames.size(), 0);
+        for (int t = 0; t < trees.length; t++) {
+            // With one output its score goes in slot 1, the log-odds of label 1.
+            out[numOutputs == 1 ? 1 : t % numOutputs] += trees[t].distribution[trees[t].leafOf(x)];
+        }
+        scoresToProba(out, 0);
+    }
+
+    @Override
+    public void predictProbaBatch(double[][] columns, int numRows, double smoothing, double[] out) {
+        int numLabels = labelNames.size();
+        Arrays.fill(out, 0, numRows * numLabels, 0);
+        for (int t = 0; t < trees.length; t++) {
+            FlatTree tree = trees[t];
+            int k = numOutputs == 1 ? 1 : t % numOutputs;
+            for (int row = 0; row < numRows; row++) {
+                out[row * numLabels + k] += tree.distribution[tree.leafOf(columns, row)];
+            }
+        }
+        for (int row = 0; row < numRows; row++) {
+            scoresToProba(out, row * numLabels);
+        }
+    }
+
+    /**
+     * Turns one row's scores, in out[offset...offset+numLabels), into
+     * probabilities in place: with two labels the score in slot 1 is the
+     * log-odds of label 1; with more, a softmax of all of them.
+     */
+    void scoresToProba(double[] out, int offset) {
+        if (numOutputs == 1) {
+            double p = 1 / (1 + Math.exp(-out[offset + 1]));
+            out[offset] = 1 - p;
+            out[offset + 1] = p;
+            return;
+        }
+        double max = Double.NEGATIVE_INFINITY;
+        for (int k = 0; k < numOutputs; k++) {
+            max = Math.max(max, out[offset + k]);
+        }
+        double sum = 0;
+        for (int k = 0; k < numOutputs; k++) {
+            out[offset + k] = Math.exp(out[offset + k] - max);
+            sum += out[offset + k];
+        }
+        for (int k = 0; k < numOutputs; k++) {
+            out[offset + k] /= sum;
+        }
+    }
+
+    @Override
+    public ArrayList<String> labelNames() {
+        return labelNames;
+    }
+
+    /**
+     * Saves every tree to one BOOSTED model file (see ModelFile).
+     *
+     * @param filename The name of the file to save the model to.
+     * @throws IOException
+     */
+    public void saveModel(String filename) throws IOException {
+        ArrayList<String> header = columnNames != null ? columnNames : new ArrayList<String>();
+        new ModelFile(ModelFile.BOOSTED, header, labelNames, trees).save(filename);
+    }
+}
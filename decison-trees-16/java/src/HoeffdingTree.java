@@ -0,0 +1,467 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A decision tree learned online, one labeled row at a time (a Hoeffding
+ * tree, as in VFDT), so that a stream of rows can be learned from as it
+ * arrives instead of retraining on all of it.
+ *
+ * Each leaf keeps the label counts of every feature's bins (the histograms of
+ * the histogram mode) for the rows that reached it since it was made, and
+ * never the rows themselves. Every `gracePeriod` rows it sweeps them for the
+ * best split, and splits once the best feature beats the runner-up by more
+ * than the Hoeffding bound
+ *
+ *      epsilon = sqrt(R^2 ln(1/delta) / 2n)
+ *
+ * where R is the highest score the criterion can give and n the rows seen:
+ * with probability 1 - delta it is then the feature a batch learner would
+ * have picked on all the rows. It also splits when epsilon drops below
+ * `tieThreshold`, as the two are then as good as each other. The bins of each
+ * feature are cut from the first `warmupRows` rows.
+ *
+ * An update walks down the tree and looks up one bin per feature, however
+ * many rows have been seen, and memory grows with the number of leaves only,
+ * which stops at `maxLeaves`.
+ *
+ * update() is synchronized; predict() can be called from any number of
+ * threads meanwhile, without locking. A split builds the new node and its
+ * leaves first and then swaps them in with one volatile write, and a leaf
+ * publishes its prediction in a volatile field, so a reader sees the tree as
+ * it was either before or after an update.
+ */
+public class HoeffdingTree implements Classifier {
+    // The chance of splitting on another feature than a batch learner would.
+    double delta = 1e-7;
+    // The number of rows a leaf sees between looking for a split.
+    int gracePeriod = 200;
+    // Split anyway once the bound is below this: the best splits are tied.
+    double tieThreshold = 0.05;
+    // The number of rows the bins are cut from.
+    int warmupRows = 1000;
+    // Leaves stop splitting once there are this many.
+    int maxLeaves = 1000;
+
+    // Where the criterion, -bins (256 if not set), -depth, -minleaf and
+    // -mingain come from.
+    DecisionTree builder;
+
+    // the header and label vocabulary of the rows seen so far; labelNames is
+    // replaced rather than changed when a label is added, for predict()
+    ArrayList<String> columnNames;
+    volatile ArrayList<String> labelNames = new ArrayList<String>();
+    HashMap<String, Integer> labelIds = new HashMap<String, Integer>();
+
+    volatile OnlineNode root = new OnlineNode(0);
+    int numLeaves = 1;
+    int numFeatures = -1;       // set by the first row
+
+    // Until the bins are cut: the rows seen so far.
+    double[][] warmup;
+    int[] warmupLabels;
+    int numWarmup;
+
+    // After: the bins of each feature, as in BinnedDataset.
+    double[][] cuts;
+    int[] binStarts;            // by feature: the index of its first bin of all
+    int numBins;                // the number of bins of all features
+
+    /**
+     * A node of the tree. A leaf until it is split, when it is replaced in
+     * its parent by a new internal node; the children of an internal node are
+     * only ever replaced that way.
+     */
+    static class OnlineNode {
+        //------Only for Internal Nodes:--------
+        int featureIndex;
+        double threshold;
+        volatile OnlineNode lessThanEqualChild;
+        volatile OnlineNode greaterThanChild;
+
+        double[] labelCounts;       // of the rows that reached it (seeded by the parent's split)
+        volatile int prediction = -1;   // the label id with the most rows
+
+        //------Only for Leaves:--------
+        int depth;
+        double[] hist;              // [bin of all features * numLabels + label id]
+        double[] histCounts;        // the label counts of the rows in `hist`
+        int numLabels;              // the labels `hist` has room for
+        long seen;                  // the rows in `hist`
+        long lastChecked;           // `seen` the last time a split was looked for
+
+        OnlineNode(int depth) {
+            this.depth = depth;
+            labelCounts = new double[0];
+            histCounts = new double[0];
+        }
+
+        boolean isLeafNode() {
+            return lessThanEqualChild == null;
+        }
+
+        /**
+         * Counts a row of label `labelId` and updates the prediction.
+         */
+        void count(int labelId, double weight) {
+            if (labelId >= labelCounts.length) {
+                labelCounts = Arrays.copyOf(labelCounts, labelId + 1);
+            }
+            labelCounts[labelId] += weight;
+            if (prediction < 0 || labelCounts[labelId] > labelCounts[prediction]) {
+                prediction = labelId;
+            }
+        }
+
+        /**
+         * Makes room in the histograms for `labels` labels.
+         */
+        void growHistograms(int numBins, int labels) {
+            if (hist != null && labels <= numLabels) {
+                return;
+            }
+            double[] grown = new double[numBins * labels];
+            for (int b = 0; hist != null && b < numBins; b++) {
+                System.arraycopy(hist, b * numLabels, grown, b * labels, numLabels);
+            }
+            hist = grown;
+            histCounts = Arrays.copyOf(histCounts, labels);
+            numLabels = labels;
+        }
+    }
+
+    /**
+     * @param builder The tree whose settings (criterion, bins, stopping
+     *                rules) are used to grow this one.
+     */
+    public HoeffdingTree(DecisionTree builder) {
+        this.builder = builder;
+    }
+
+    /**
+     * Learns from one labeled row.
+     *
+     * @param features The feature values of the row.
+     * @param label    Its label; a label not seen before is added.
+     */
+    public synchronized void update(double[] features, String label) {
+        if (numFeatures < 0) {
+            numFeatures = features.length;
+            warmup = new double[warmupRows][];
+            warmupLabels = new int[warmupRows];
+        } else if (features.length != numFeatures) {
+            throw new IllegalArgumentException("Expected "+ numFeatures +" features, got "+ features.length);
+        }
+        int labelId = labelId(label);
+
+        if (cuts == null) {
+            warmup[numWarmup] = features.clone();
+            warmupLabels[numWarmup++] = labelId;
+            root.count(labelId, 1);
+            if (numWarmup == warmupRows) {
+                cutBins();
+            }
+            return;
+        }
+
+        OnlineNode parent = null;
+        OnlineNode node = root;
+        while (!node.isLeafNode()) {
+            parent = node;
+            node = features[node.featureIndex] <= node.threshold
+                ? node.lessThanEqualChild : node.greaterThanChild;
+        }
+        node.count(labelId, 1);
+        addToHistograms(node, features, labelId);
+        if (node.seen - node.lastChecked >= gracePeriod) {
+            node.lastChecked = node.seen;
+            trySplit(node, parent);
+        }
+    }
+
+    /**
+     * Learns from one labeled observation.
+     *
+     * @param observation An Observation with a label.
+     */
+    public void update(DecisionTree.Observation observation) {
+        double[] features = new double[observation.features.size()];
+        for (int i = 0; i < features.length; i++) {
+            features[i] = observation.features.get(i);
+        }
+        update(features, observation.label);
+    }
+
+    /**
+     * Learns from every row of a data file, streamed a chunk at a time.
+     *
+     * @param filename A comma separated data file with a header and the
+     *                 label in the final column.
+     * @throws IOException
+     */
+    public void train(String filename) throws IOException {
+        try (CsvColumnReader reader = new CsvColumnReader(filename, true)) {
+            // Neither handles missing values (nor categories, which need readAll()).
+            reader.allowMissing = false;
+            if (columnNames == null) {
+                columnNames = reader.columnNames;
+            }
+            int chunkSize = 4096;
+            double[][] columns = new double[reader.numFeatures][chunkSize];
+            int[] labels = new int[chunkSize];
+            double[] row = new double[reader.numFeatures];
+            int numRead;
+            while ((numRead = reader.readChunk(columns, labels, 0, chunkSize)) > 0) {
+                for (int i = 0; i < numRead; i++) {
+                    for (int f = 0; f < row.length; f++) {
+                        row[f] = columns[f][i];
+                    }
+                    update(row, reader.labelNames.get(labels[i]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks up the id of a label, adding it the first time it is seen.
+     */
+    int labelId(String label) {
+        Integer id = labelIds.get(label);
+        if (id == null) {
+            ArrayList<String> names = new ArrayList<String>(labelNames);
+            id = DecisionTree.internLabel(label, labelIds, names);
+            labelNames = names;
+        }
+        return id;
+    }
+
+    /**
+     * Cuts the bins of each feature from the warm-up rows, then adds those
+     * rows to the root's histograms; the root is still the only node.
+     */
+    void cutBins() {
+        int maxBins = builder.maxBins > 0 ? builder.maxBins : 256;
+        cuts = new double[numFeatures][];
+        binStarts = new int[numFeatures];
+        double[] column = new double[numWarmup];
+        for (int f = 0; f < numFeatures; f++) {
+            for (int row = 0; row < numWarmup; row++) {
+                column[row] = warmup[row][f];
+            }
+            cuts[f] = DecisionTree.BinnedDataset.findCuts(column, numWarmup, maxBins);
+            binStarts[f] = numBins;
+            numBins += cuts[f].length + 1;
+        }
+        for (int row = 0; row < numWarmup; row++) {
+            addToHistograms(root, warmup[row], warmupLabels[row]);
+        }
+        warmup = null;
+        warmupLabels = null;
+        root.lastChecked = root.seen;
+        trySplit(root, null);
+    }
+
+    void addToHistograms(OnlineNode leaf, double[] features, int labelId) {
+        leaf.growHistograms(numBins, labelNames.size());
+        int numLabels = leaf.numLabels;
+        for (int f = 0; f < numFeatures; f++) {
+            int bin = binStarts[f] + DecisionTree.BinnedDataset.binOf(cuts[f], features[f]);
+            leaf.hist[bin * numLabels + labelId]++;
+        }
+        leaf.histCounts[labelId]++;
+        leaf.seen++;
+    }
+
+    /**
+     * Splits a leaf if the Hoeffding bound says its best split is the one
+     * to make (and the stopping rules let it).
+     *
+     * @param leaf   The leaf.
+     * @param parent Its parent, or null for the root.
+     */
+    void trySplit(OnlineNode leaf, OnlineNode parent) {
+        if (numLeaves >= maxLeaves || (builder.maxDepth > 0 && leaf.depth >= builder.maxDepth)) {
+            return;
+        }
+        int numLabels = leaf.numLabels;
+        double[] leftCounts = new double[numLabels];
+        double[] rightCounts = new double[numLabels];
+        DecisionTree.FeatureInfo best = builder.new FeatureInfo(0, 0, 0);
+        DecisionTree.FeatureInfo candidate = builder.new FeatureInfo(0, 0, 0);
+        double secondBest = 0;
+        for (int f = 0; f < numFeatures; f++) {
+            candidate.clear();
+            builder.sweepBins(leaf.hist, binStarts[f] * numLabels, cuts[f].length + 1, cuts[f],
+                              leaf.histCounts, leftCounts, rightCounts, f, candidate);
+            if (candidate.evalMeasure > best.evalMeasure) {
+                secondBest = best.evalMeasure;
+                best.evalMeasure = candidate.evalMeasure;
+                best.featureIndex = candidate.featureIndex;
+                best.threshold = candidate.threshold;
+            } else if (candidate.evalMeasure > secondBest) {
+                secondBest = candidate.evalMeasure;
+            }
+        }
+        if (best.evalMeasure <= DecisionTree.GAIN_EPSILON || best.evalMeasure < builder.minImpurityDecrease) {
+            return;
+        }
+
+        double range = builder.criterion.range(labelNames.size());
+        double epsilon = Math.sqrt(range * range * Math.log(1 / delta) / (2.0 * leaf.seen));
+        if (best.evalMeasure - secondBest > epsilon || epsilon < tieThreshold) {
+            split(leaf, parent, best);
+        }
+    }
+
+    /**
+     * Replaces a leaf by an internal node with two new leaves. Each leaf
+     * starts out predicting from its side of the split's label counts.
+     */
+    void split(OnlineNode leaf, OnlineNode parent, DecisionTree.FeatureInfo best) {
+        int f = best.featureIndex;
+        int splitBin = DecisionTree.BinnedDataset.binOf(cuts[f], best.threshold);
+        OnlineNode left = new OnlineNode(leaf.depth + 1);
+        OnlineNode right = new OnlineNode(leaf.depth + 1);
+        for (int b = 0; b <= cuts[f].length; b++) {
+            OnlineNode side = b <= splitBin ? left : right;
+            for (int k = 0; k < leaf.numLabels; k++) {
+                double count = leaf.hist[(binStarts[f] + b) * leaf.numLabels + k];
+                if (count > 0) {
+                    side.count(k, count);
+                }
+            }
+        }
+
+        OnlineNode node = new OnlineNode(leaf.depth);
+        node.featureIndex = f;
+        node.threshold = best.threshold;
+        node.labelCounts = leaf.labelCounts;
+        node.prediction = leaf.prediction;
+        node.lessThanEqualChild = left;
+        node.greaterThanChild = right;
+        if (parent == null) {
+            root = node;
+        } else if (parent.lessThanEqualChild == leaf) {
+            parent.lessThanEqualChild = node;
+        } else {
+            parent.greaterThanChild = node;
+        }
+        numLeaves++;
+    }
+
+    /**
+     * @return The label id predicted for one row, or -1 if no row has been
+     *         learned from yet.
+     */
+    public int predictId(double[] x) {
+        return leafOf(x).prediction;
+    }
+
+    OnlineNode leafOf(double[] x) {
+        OnlineNode node = root;
+        while (!node.isLeafNode()) {
+            node = x[node.featureIndex] <= node.threshold
+                ? node.lessThanEqualChild : node.greaterThanChild;
+        }
+        return node;
+    }
+
+    /**
+     * @return The label predicted for one row, or null if no row has been
+     *         learned from yet.
+     */
+    public String predict(double[] x) {
+        int id = predictId(x);
+        // read after the id: a label is added before any leaf predicts it
+        ArrayList<String> names = labelNames;
+        return id < 0 ? null : names.get(id);
+    }
+
+    @Override
+    public void predictBatch(double[][] columns, int numRows, int[] out) {
+        double[] x = new double[columns.length];
+        for (int row = 0; row < numRows; row++) {
+            for (int f = 0; f < x.length; f++) {
+                x[f] = columns[f][row];
+            }
+            out[row] = predictId(x);
+        }
+    }
+
+    /**
+     * The (smoothed) label fractions of the row's leaf. A label the leaf has
+     * not seen yet gets smoothing / (n + K * smoothing); with no smoothing
+     * and no rows learned at all, every label gets 0.
+     */
+    @Override
+    public void predictProba(double[] x, double smoothing, double[] out) {
+        leafProba(leafOf(x), labelNames.size(), smoothing, out, 0);
+    }
+
+    @Override
+    public void predictProbaBatch(double[][] columns, int numRows, double smoothing, double[] out) {
+        // read once: labels may be added meanwhile, which would move the rows
+        int numLabels = labelNames.size();
+        double[] x = new double[columns.length];
+        for (int row = 0; row < numRows; row++) {
+            for (int f = 0; f < x.length; f++) {
+                x[f] = columns[f][row];
+            }
+            leafProba(leafOf(x), numLabels, smoothing, out, row * numLabels);
+        }
+    }
+
+    static void leafProba(OnlineNode leaf, int numLabels, double smoothing, double[] out, int offset) {
+        double[] counts = leaf.labelCounts;
+        int seen = Math.min(counts.length, numLabels);
+        double n = numLabels * smoothing;
+        for (int k = 0; k < seen; k++) {
+            n += counts[k];
+        }
+        for (int k = 0; k < numLabels; k++) {
+            double count = k < seen ? counts[k] : 0;
+            out[offset + k] = n > 0 ? (count + smoothing) / n : 0;
+        }
+    }
+
+    @Override
+    public ArrayList<String> labelNames() {
+        return labelNames;
+    }
+
+    /**
+     * Copies the tree as it is now into DecisionTree Nodes.
+     */
+    synchronized DecisionTree.Node snapshot() {
+        return snapshot(root);
+    }
+
+    DecisionTree.Node snapshot(OnlineNode node) {
+        double n = 0;
+        for (double count : node.labelCounts) {
+            n += count;
+        }
+        DecisionTree.Node copy = builder.new Node(Arrays.copyOf(node.labelCounts, labelNames.size()), (int) n);
+        if (!node.isLeafNode()) {
+            copy.featureIndex = node.featureIndex;
+            copy.threshold = node.threshold;
+            copy.lessThanEqualChild = snapshot(node.lessThanEqualChild);
+            copy.greaterThanChild = snapshot(node.greaterThanChild);
+        }
+        return copy;
+    }
+
+    /**
+     * Saves the tree as it is now, as a single-tree model that -predict
+     * reads like any other.
+     *
+     * @param filename The name of the file to write.
+     * @throws IOException
+     */
+    public void saveModel(String filename) throws IOException {
+        DecisionTree.Node copy = snapshot();
+        FlatTree flat = FlatTree.compile(copy, labelNames);
+        new ModelFile(columnNames, labelNames, flat).save(filename);
+    }
+}
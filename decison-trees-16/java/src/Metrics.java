@@ -0,0 +1,500 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Where training and prediction spend their time, for -stats, JMX and JFR.
+ *
+ * Instrumentation is off unless a DecisionTree (or PredictionPipeline) is
+ * given a Metrics object: every hook is behind a `metrics != null` check,
+ * made once per node, per feature sweep or per chunk of rows, never per row,
+ * and System.nanoTime() is only called when it is on.
+ *
+ * The counters can be updated from any number of threads. Times are summed
+ * over the threads doing the work, so with -threads they can add up to more
+ * than the wall clock time.
+ *
+ * The coarse steps (parsing, sorting, binning, building, pruning and each
+ * predicted chunk) are also JFR events, which are recorded whenever a flight
+ * recording is running, with or without a Metrics object.
+ */
+public class Metrics implements MetricsMBean {
+    /** The parts of training (and prediction) that are timed. */
+    public enum Phase {
+        PARSE("parse"),
+        SORT("presort"),
+        BIN("binning"),
+        BUILD("building (all)"),        // the whole of each build
+        SEARCH("threshold search"),
+        EVALUATE("split evaluation"),   // label counts, stopping rules, picking a split
+        PARTITION("partitioning"),      // including the children's histograms
+        PRUNE("pruning");
+
+        final String description;
+
+        Phase(String description) {
+            this.description = description;
+        }
+    }
+
+    // Deeper nodes are all counted in the last slot.
+    static final int MAX_DEPTH = 256;
+    static final String OBJECT_NAME = "DecisionTree:type=Metrics";
+
+    final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+    final AtomicLongArray nodesPerDepth = new AtomicLongArray(MAX_DEPTH);
+    final AtomicLongArray leavesPerDepth = new AtomicLongArray(MAX_DEPTH);
+    final AtomicLongArray rowsPerDepth = new AtomicLongArray(MAX_DEPTH);
+
+    volatile String[] featureNames = new String[0];
+    volatile AtomicLongArray featureNanos = new AtomicLongArray(0);
+    volatile AtomicLongArray featureRows = new AtomicLongArray(0);
+
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LongAdder predictedRows = new LongAdder();
+
+    public Metrics() {
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Sizes the per-feature counts for a dataset, unless they already fit
+     * it. Call before building on it.
+     *
+     * @param data The training data.
+     */
+    public void beginTraining(DecisionTree.ColumnarDataset data) {
+        beginTraining(data.columnNames, data.numFeatures());
+    }
+
+    /**
+     * Same as beginTraining(ColumnarDataset), for data that isn't one (e.g.
+     * a ColumnFile).
+     *
+     * @param columnNames The header of the training data (or null).
+     * @param numFeatures The number of features.
+     */
+    public void beginTraining(List<String> columnNames, int numFeatures) {
+        if (featureNames.length == numFeatures) {
+            return;
+        }
+        String[] names = new String[numFeatures];
+        for (int f = 0; f < numFeatures; f++) {
+            names[f] = columnNames != null ? columnNames.get(f) : "feature "+ f;
+        }
+        featureNanos = new AtomicLongArray(numFeatures);
+        featureRows = new AtomicLongArray(numFeatures);
+        featureNames = names;
+    }
+
+    /** Adds time to a phase. */
+    void add(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()].add(nanos);
+    }
+
+    /** Counts a node (leaf or not) at some depth. */
+    void node(int depth) {
+        nodesPerDepth.incrementAndGet(Math.min(depth, MAX_DEPTH - 1));
+    }
+
+    /** Counts a leaf at some depth. */
+    void leaf(int depth) {
+        leavesPerDepth.incrementAndGet(Math.min(depth, MAX_DEPTH - 1));
+    }
+
+    /** Counts rows read while searching or histogramming nodes at a depth. */
+    void scanned(int depth, long rows) {
+        rowsPerDepth.addAndGet(Math.min(depth, MAX_DEPTH - 1), rows);
+    }
+
+    /** Times one feature's split search over a node of `rows` rows. */
+    void searched(int featureIndex, long rows, long nanos) {
+        AtomicLongArray featureNanos = this.featureNanos;
+        if (featureIndex < featureNanos.length()) {
+            featureNanos.addAndGet(featureIndex, nanos);
+            featureRows.addAndGet(featureIndex, rows);
+        }
+        add(Phase.SEARCH, nanos);
+    }
+
+    /** Times one predicted batch of rows. */
+    void predicted(int rows, long nanos) {
+        predictedRows.add(rows);
+        latency.record(nanos);
+    }
+
+    /**
+     * Starts a coarse phase: begins its JFR event and, if `metrics` is not
+     * null, its timer.
+     */
+    static PhaseEvent begin(Metrics metrics, Phase phase) {
+        PhaseEvent event = new PhaseEvent(phase);
+        event.begin();
+        if (metrics != null) {
+            event.startNanos = System.nanoTime();
+        }
+        return event;
+    }
+
+    /**
+     * Ends a phase started by begin().
+     *
+     * @param rows The number of rows the phase worked on.
+     */
+    static void end(Metrics metrics, PhaseEvent event, long rows) {
+        event.rows = rows;
+        event.commit();
+        if (metrics != null) {
+            metrics.add(event.timed, System.nanoTime() - event.startNanos);
+        }
+    }
+
+    /**
+     * Registers this object with the platform MBean server as
+     * DecisionTree:type=Metrics, replacing any earlier one.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            throw new IllegalStateException("couldn't register "+ OBJECT_NAME, e);
+        }
+    }
+
+    @Override
+    public double getParseMillis() {
+        return millis(Phase.PARSE);
+    }
+
+    @Override
+    public double getSortMillis() {
+        return millis(Phase.SORT);
+    }
+
+    @Override
+    public double getBinMillis() {
+        return millis(Phase.BIN);
+    }
+
+    @Override
+    public double getBuildMillis() {
+        return millis(Phase.BUILD);
+    }
+
+    @Override
+    public double getSearchMillis() {
+        return millis(Phase.SEARCH);
+    }
+
+    @Override
+    public double getEvaluateMillis() {
+        return millis(Phase.EVALUATE);
+    }
+
+    @Override
+    public double getPartitionMillis() {
+        return millis(Phase.PARTITION);
+    }
+
+    @Override
+    public double getPruneMillis() {
+        return millis(Phase.PRUNE);
+    }
+
+    public double millis(Phase phase) {
+        return phaseNanos[phase.ordinal()].sum() / 1e6;
+    }
+
+    @Override
+    public long getNodes() {
+        return sum(nodesPerDepth);
+    }
+
+    @Override
+    public long getLeaves() {
+        return sum(leavesPerDepth);
+    }
+
+    @Override
+    public long[] getNodesPerDepth() {
+        return toArray(nodesPerDepth);
+    }
+
+    @Override
+    public long[] getLeavesPerDepth() {
+        return toArray(leavesPerDepth);
+    }
+
+    @Override
+    public long[] getRowsScannedPerDepth() {
+        return toArray(rowsPerDepth);
+    }
+
+    @Override
+    public String[] getFeatureNames() {
+        return featureNames.clone();
+    }
+
+    @Override
+    public double[] getFeatureSearchMillis() {
+        AtomicLongArray featureNanos = this.featureNanos;
+        double[] millis = new double[featureNanos.length()];
+        for (int f = 0; f < millis.length; f++) {
+            millis[f] = featureNanos.get(f) / 1e6;
+        }
+        return millis;
+    }
+
+    @Override
+    public long[] getFeatureRowsSearched() {
+        AtomicLongArray featureRows = this.featureRows;
+        long[] rows = new long[featureRows.length()];
+        for (int f = 0; f < rows.length; f++) {
+            rows[f] = featureRows.get(f);
+        }
+        return rows;
+    }
+
+    @Override
+    public long getPredictedRows() {
+        return predictedRows.sum();
+    }
+
+    @Override
+    public long getPredictionBatches() {
+        return latency.count();
+    }
+
+    @Override
+    public double getPredictionLatencyP50Micros() {
+        return latency.percentile(0.50) / 1e3;
+    }
+
+    @Override
+    public double getPredictionLatencyP90Micros() {
+        return latency.percentile(0.90) / 1e3;
+    }
+
+    @Override
+    public double getPredictionLatencyP99Micros() {
+        return latency.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getPredictionLatencyMaxMicros() {
+        return latency.max.get() / 1e3;
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder nanos : phaseNanos) {
+            nanos.reset();
+        }
+        for (int i = 0; i < MAX_DEPTH; i++) {
+            nodesPerDepth.set(i, 0);
+            leavesPerDepth.set(i, 0);
+            rowsPerDepth.set(i, 0);
+        }
+        featureNanos = new AtomicLongArray(featureNames.length);
+        featureRows = new AtomicLongArray(featureNames.length);
+        latency.reset();
+        predictedRows.reset();
+    }
+
+    /**
+     * @return What training recorded, as a table.
+     */
+    public String trainingSummary() {
+        StringBuilder out = new StringBuilder();
+        out.append("time (ms, summed over threads):");
+        for (Phase phase : Phase.values()) {
+            out.append(String.format("%n   %-18s %10.1f", phase.description, millis(phase)));
+        }
+
+        out.append(String.format("%n%d nodes, %d leaves%n", getNodes(), getLeaves()));
+        out.append(String.format("   %5s %10s %10s %14s", "depth", "nodes", "leaves", "rows scanned"));
+        long[] nodes = getNodesPerDepth();
+        long[] leaves = getLeavesPerDepth();
+        long[] rows = getRowsScannedPerDepth();
+        for (int d = 0; d < nodes.length; d++) {
+            out.append(String.format("%n   %5s %10d %10d %14d", d == MAX_DEPTH - 1 ? d +"+" : d,
+                                     nodes[d], d < leaves.length ? leaves[d] : 0,
+                                     d < rows.length ? rows[d] : 0));
+        }
+
+        String[] names = getFeatureNames();
+        double[] millis = getFeatureSearchMillis();
+        long[] searched = getFeatureRowsSearched();
+        out.append(String.format("%nsplit search by feature:%n   %-24s %10s %14s",
+                                 "feature", "ms", "rows"));
+        for (int f = 0; f < names.length; f++) {
+            out.append(String.format("%n   %-24s %10.1f %14d", names[f], millis[f], searched[f]));
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return What prediction recorded.
+     */
+    public String predictionSummary() {
+        long rows = getPredictedRows();
+        long batches = getPredictionBatches();
+        double nanosPerRow = rows == 0 ? 0 : latency.total.sum() / (double) rows;
+        return String.format("predicted %d rows in %d batches, %.1f ns per row%n"
+                             +"batch latency (us): p50 %.1f, p90 %.1f, p99 %.1f, max %.1f",
+                             rows, batches, nanosPerRow,
+                             getPredictionLatencyP50Micros(), getPredictionLatencyP90Micros(),
+                             getPredictionLatencyP99Micros(), getPredictionLatencyMaxMicros());
+    }
+
+    static long sum(AtomicLongArray counts) {
+        long sum = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            sum += counts.get(i);
+        }
+        return sum;
+    }
+
+    /** @return The counts, without the trailing zeros. */
+    static long[] toArray(AtomicLongArray counts) {
+        long[] array = new long[counts.length()];
+        int length = 0;
+        for (int i = 0; i < array.length; i++) {
+            array[i] = counts.get(i);
+            if (array[i] != 0) {
+                length = i + 1;
+            }
+        }
+        return Arrays.copyOf(array, length);
+    }
+
+    /**
+     * Latencies in nanoseconds, counted in log-linear buckets: 16 per power
+     * of two, so a percentile is off by at most 1/16 (6%). Fixed size, no
+     * allocation, safe from any thread.
+     */
+    static class LatencyHistogram {
+        static final int SUB_BITS = 4;
+        static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        final AtomicLongArray buckets = new AtomicLongArray(SUB_BUCKETS * (64 - SUB_BITS + 1));
+        final AtomicLong max = new AtomicLong();
+        final LongAdder total = new LongAdder();
+
+        void record(long nanos) {
+            long value = Math.max(nanos, 0);
+            buckets.incrementAndGet(bucketOf(value));
+            max.accumulateAndGet(value, Math::max);
+            total.add(value);
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - SUB_BITS;
+            int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+            return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+        }
+
+        /** @return The biggest value that falls in a bucket. */
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = bucket / SUB_BUCKETS - 1;
+            int sub = bucket % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+        }
+
+        long count() {
+            return sum(buckets);
+        }
+
+        /**
+         * @param q The quantile, from 0 to 1.
+         * @return The q-th quantile of the recorded values, or 0 if there
+         *         are none.
+         */
+        long percentile(double q) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * count));
+            long seen = 0;
+            for (int b = 0; b < buckets.length(); b++) {
+                seen += buckets.get(b);
+                if (seen >= rank) {
+                    return Math.min(upperBound(b), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        void reset() {
+            for (int b = 0; b < buckets.length(); b++) {
+                buckets.set(b, 0);
+            }
+            max.set(0);
+            total.reset();
+        }
+    }
+
+    /**
+     * A step of training, as a JFR event.
+     */
+    @Name("decisiontree.TrainingPhase")
+    @Label("Training Phase")
+    @Category("Decision Tree")
+    @Description("Parsing, sorting, binning, building or pruning")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Rows")
+        long rows;
+
+        // Not recorded by JFR (transient), only used by Metrics.
+        transient Phase timed;
+        transient long startNanos;
+
+        PhaseEvent(Phase timed) {
+            this.timed = timed;
+            this.phase = timed.description;
+        }
+    }
+
+    /**
+     * A chunk of -predict, as a JFR event.
+     */
+    @Name("decisiontree.PredictionBatch")
+    @Label("Prediction Batch")
+    @Category("Decision Tree")
+    @Description("Predicting one chunk of rows")
+    static class PredictionEvent extends Event {
+        @Label("Rows")
+        long rows;
+    }
+}
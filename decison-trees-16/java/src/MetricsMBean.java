@@ -0,0 +1,34 @@
+/**
+ * The JMX view of Metrics (registered as DecisionTree:type=Metrics). Times
+ * are in milliseconds, summed over threads.
+ */
+public interface MetricsMBean {
+    double getParseMillis();
+    double getSortMillis();
+    double getBinMillis();
+    double getBuildMillis();
+    double getSearchMillis();
+    double getEvaluateMillis();
+    double getPartitionMillis();
+    double getPruneMillis();
+
+    long getNodes();
+    long getLeaves();
+    long[] getNodesPerDepth();
+    long[] getLeavesPerDepth();
+    long[] getRowsScannedPerDepth();
+
+    String[] getFeatureNames();
+    double[] getFeatureSearchMillis();
+    long[] getFeatureRowsSearched();
+
+    long getPredictedRows();
+    long getPredictionBatches();
+    double getPredictionLatencyP50Micros();
+    double getPredictionLatencyP90Micros();
+    double getPredictionLatencyP99Micros();
+    double getPredictionLatencyMaxMicros();
+
+    /** Zeroes every count. */
+    void reset();
+}
@@ -0,0 +1,374 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Reads and writes the binary model files made by DecisionTree.saveModel().
+ *
+ * The file is little-endian and laid out so that it can be memory-mapped and
+ * copied into FlatTree arrays in bulk, without parsing anything per node:
+ *
+ * <pre>
+ *   "DTRE"                      magic
+ *   int version                 FORMAT_VERSION
+ *   int kind                    VOTE or BOOSTED
+ *   int numColumns, then per column:  int length, UTF-8 bytes
+ *   int numLabels,  then per label:   int length, UTF-8 bytes
+ *   (version 3) int numFeatures, then per feature:
+ *                 int numCategories (-1 if numeric), then per category:
+ *                 int length, UTF-8 bytes
+ *   int numTrees,   then per tree:    int numNodes, int width
+ *   (padding to a multiple of 8 bytes)
+ *   per tree:
+ *     int[numNodes] feature, left, right, leafLabel, n
+ *     (padding to a multiple of 8 bytes)
+ *     double[numNodes] threshold
+ *     double[numNodes * width] distribution
+ *     (version 3) int[numNodes] flags: MISSING_LEFT | CATEGORICAL
+ *                 per CATEGORICAL node: int numWords, long[numWords]
+ *                 (padding to a multiple of 8 bytes)
+ * </pre>
+ *
+ * A file can hold more than one tree (e.g. a forest) sharing the same
+ * columns and labels. `width` is a tree's numLabels: the number of labels
+ * for classification trees, 1 for the regression trees of a boosted model.
+ *
+ * Models with no categorical features and no missing values going left are
+ * still written as version 2, so older builds can read them. Version 1 files
+ * (no kind, no widths) are still read, as VOTE models.
+ */
+public class ModelFile {
+    static final byte[] MAGIC = {'D', 'T', 'R', 'E'};
+    static final int FORMAT_VERSION = 3;
+
+    // The per node flags of version 3.
+    static final int MISSING_LEFT = 1;      // rows missing the feature go left
+    static final int CATEGORICAL = 2;       // the node splits on a set of categories
+
+    // The kinds of model: how the trees' outputs are combined.
+    public static final int VOTE = 0;       // a tree, or a forest adding up leaf distributions
+    public static final int BOOSTED = 1;    // GradientBoostedTrees adding up leaf values
+
+    public int kind;
+    public ArrayList<String> columnNames;   // the header of the training file
+    public ArrayList<String> labelNames;    // the label of each label id
+    public FlatTree[] trees;
+    // The category names of each feature (a null entry for a numeric
+    // feature), as in DecisionTree.ColumnarDataset; null if all are numeric.
+    public ArrayList<ArrayList<String>> categories;
+
+    /**
+     * Constructor for a VOTE model. Sets the data members.
+     *
+     * @param columnNames The header of the training file.
+     * @param labelNames  The label of each label id.
+     * @param trees       The trees of the model.
+     */
+    public ModelFile(ArrayList<String> columnNames, ArrayList<String> labelNames,
+                     FlatTree... trees) {
+        this(VOTE, columnNames, labelNames, trees);
+    }
+
+    /**
+     * Constructor. Sets the data members.
+     *
+     * @param kind        VOTE or BOOSTED.
+     * @param columnNames The header of the training file.
+     * @param labelNames  The label of each label id.
+     * @param trees       The trees of the model.
+     */
+    public ModelFile(int kind, ArrayList<String> columnNames, ArrayList<String> labelNames,
+                     FlatTree... trees) {
+        this.kind = kind;
+        this.columnNames = columnNames;
+        this.labelNames = labelNames;
+        this.trees = trees;
+    }
+
+    /**
+     * Writes this model to a file, replacing it if it exists.
+     *
+     * @param filename The name of the file to write.
+     * @throws IOException
+     */
+    public void save(String filename) throws IOException {
+        ArrayList<byte[]> strings = new ArrayList<byte[]>();
+        for (String name : columnNames) {
+            strings.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+        for (String name : labelNames) {
+            strings.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+        boolean extended = categories != null;
+        for (FlatTree tree : trees) {
+            extended |= tree.missingLeft != null || tree.categories != null;
+        }
+        int numFeatures = columnNames.size() - 1;
+        if (extended) {
+            for (int f = 0; f < numFeatures; f++) {
+                if (categories != null && categories.get(f) != null) {
+                    for (String name : categories.get(f)) {
+                        strings.add(name.getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            }
+        }
+
+        long size = MAGIC.length + 4 + 4 + 4 + 4 + 4 + 8L * trees.length;
+        for (byte[] string : strings) {
+            size += 4 + string.length;
+        }
+        if (extended) {
+            size += 4 + 4L * numFeatures;
+        }
+        size = align(size);
+        for (FlatTree tree : trees) {
+            size = align(size + 5L * 4 * tree.numNodes);
+            size += 8L * tree.numNodes + 8L * tree.numNodes * tree.numLabels;
+            if (extended) {
+                size += 4L * tree.numNodes;
+                if (tree.categories != null) {
+                    for (long[] words : tree.categories) {
+                        if (words != null) {
+                            size += 4 + 8L * words.length;
+                        }
+                    }
+                }
+                size = align(size);
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filename),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.put(MAGIC);
+            buffer.putInt(extended ? FORMAT_VERSION : 2);
+            buffer.putInt(kind);
+            buffer.putInt(columnNames.size());
+            for (int i = 0; i < columnNames.size(); i++) {
+                putString(buffer, strings.get(i));
+            }
+            buffer.putInt(labelNames.size());
+            for (int i = 0; i < labelNames.size(); i++) {
+                putString(buffer, strings.get(columnNames.size() + i));
+            }
+            if (extended) {
+                int next = columnNames.size() + labelNames.size();
+                buffer.putInt(numFeatures);
+                for (int f = 0; f < numFeatures; f++) {
+                    if (categories == null || categories.get(f) == null) {
+                        buffer.putInt(-1);
+                        continue;
+                    }
+                    buffer.putInt(categories.get(f).size());
+                    for (int c = 0; c < categories.get(f).size(); c++) {
+                        putString(buffer, strings.get(next++));
+                    }
+                }
+            }
+            buffer.putInt(trees.length);
+            for (FlatTree tree : trees) {
+                buffer.putInt(tree.numNodes);
+                buffer.putInt(tree.numLabels);
+            }
+            pad(buffer);
+
+            for (FlatTree tree : trees) {
+                putInts(buffer, tree.feature);
+                putInts(buffer, tree.left);
+                putInts(buffer, tree.right);
+                putInts(buffer, tree.leafLabel);
+                putInts(buffer, tree.n);
+                pad(buffer);
+                putDoubles(buffer, tree.threshold);
+                putDoubles(buffer, tree.distribution);
+                if (extended) {
+                    putSplits(buffer, tree);
+                }
+            }
+            buffer.force();
+        }
+    }
+
+    /**
+     * Memory-maps a model file and copies its arrays out in bulk.
+     *
+     * @param filename The name of the file to read.
+     * @return The model in the file.
+     * @throws IOException If the file can't be read or isn't a model file.
+     */
+    public static ModelFile load(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(filename +" is not a decision tree model file");
+            }
+            int version = buffer.getInt();
+            if (version < 1 || version > FORMAT_VERSION) {
+                throw new IOException(filename +" has unsupported model version "+ version);
+            }
+            int kind = version == 1 ? VOTE : buffer.getInt();
+
+            ArrayList<String> columnNames = getStrings(buffer);
+            ArrayList<String> labelNames = getStrings(buffer);
+            ArrayList<ArrayList<String>> categories = null;
+            if (version >= 3) {
+                int numFeatures = buffer.getInt();
+                categories = new ArrayList<ArrayList<String>>(numFeatures);
+                boolean anyCategorical = false;
+                for (int f = 0; f < numFeatures; f++) {
+                    if (buffer.getInt(buffer.position()) < 0) {
+                        buffer.getInt();
+                        categories.add(null);
+                    } else {
+                        categories.add(getStrings(buffer));
+                        anyCategorical = true;
+                    }
+                }
+                if (!anyCategorical) {
+                    categories = null;
+                }
+            }
+            FlatTree[] trees = new FlatTree[buffer.getInt()];
+            for (int t = 0; t < trees.length; t++) {
+                int numNodes = buffer.getInt();
+                int width = version == 1 ? labelNames.size() : buffer.getInt();
+                trees[t] = new FlatTree(numNodes, width);
+            }
+            skipPadding(buffer);
+
+            for (FlatTree tree : trees) {
+                getInts(buffer, tree.feature);
+                getInts(buffer, tree.left);
+                getInts(buffer, tree.right);
+                getInts(buffer, tree.leafLabel);
+                getInts(buffer, tree.n);
+                skipPadding(buffer);
+                getDoubles(buffer, tree.threshold);
+                getDoubles(buffer, tree.distribution);
+                if (version >= 3) {
+                    getSplits(buffer, tree);
+                }
+            }
+            ModelFile model = new ModelFile(kind, columnNames, labelNames, trees);
+            model.categories = categories;
+            return model;
+        }
+    }
+
+    /**
+     * Writes a tree's per node flags and category sets (version 3).
+     */
+    static void putSplits(ByteBuffer buffer, FlatTree tree) {
+        int[] flags = new int[tree.numNodes];
+        for (int node = 0; node < tree.numNodes; node++) {
+            if (tree.missingLeft != null && tree.missingLeft[node]) {
+                flags[node] |= MISSING_LEFT;
+            }
+            if (tree.categories != null && tree.categories[node] != null) {
+                flags[node] |= CATEGORICAL;
+            }
+        }
+        putInts(buffer, flags);
+        for (int node = 0; node < tree.numNodes; node++) {
+            if ((flags[node] & CATEGORICAL) != 0) {
+                buffer.putInt(tree.categories[node].length);
+                for (long word : tree.categories[node]) {
+                    buffer.putLong(word);
+                }
+            }
+        }
+        pad(buffer);
+    }
+
+    /**
+     * Reads what putSplits() wrote, leaving the arrays null if not needed.
+     */
+    static void getSplits(ByteBuffer buffer, FlatTree tree) {
+        int[] flags = new int[tree.numNodes];
+        getInts(buffer, flags);
+        for (int node = 0; node < tree.numNodes; node++) {
+            if ((flags[node] & MISSING_LEFT) != 0) {
+                if (tree.missingLeft == null) {
+                    tree.missingLeft = new boolean[tree.numNodes];
+                }
+                tree.missingLeft[node] = true;
+            }
+            if ((flags[node] & CATEGORICAL) != 0) {
+                if (tree.categories == null) {
+                    tree.categories = new long[tree.numNodes][];
+                }
+                long[] words = new long[buffer.getInt()];
+                for (int w = 0; w < words.length; w++) {
+                    words[w] = buffer.getLong();
+                }
+                tree.categories[node] = words;
+            }
+        }
+        skipPadding(buffer);
+    }
+
+    static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    static void pad(ByteBuffer buffer) {
+        while (buffer.position() % 8 != 0) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    static void skipPadding(ByteBuffer buffer) {
+        buffer.position((int) align(buffer.position()));
+    }
+
+    static void putString(ByteBuffer buffer, byte[] string) {
+        buffer.putInt(string.length);
+        buffer.put(string);
+    }
+
+    static ArrayList<String> getStrings(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        ArrayList<String> strings = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            strings.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        return strings;
+    }
+
+    static void putInts(ByteBuffer buffer, int[] values) {
+        buffer.asIntBuffer().put(values);
+        buffer.position(buffer.position() + 4 * values.length);
+    }
+
+    static void getInts(ByteBuffer buffer, int[] values) {
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * values.length);
+    }
+
+    static void putDoubles(ByteBuffer buffer, double[] values) {
+        buffer.asDoubleBuffer().put(values);
+        buffer.position(buffer.position() + 8 * values.length);
+    }
+
+    static void getDoubles(ByteBuffer buffer, double[] values) {
+        buffer.asDoubleBuffer().get(values);
+        buffer.position(buffer.position() + 8 * values.length);
+    }
+}
@@ -0,0 +1,272 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The -predict mode as a three stage pipeline, so memory use doesn't grow
+ * with the size of the testing file:
+ *
+ *      reader thread  -- reads a chunk of rows into columns
+ *      scorer thread  -- predicts the chunk with Classifier.predictBatch()
+ *                        (and predictProbaBatch(), for -proba or -top)
+ *      calling thread -- writes the chunk with its predicted labels
+ *
+ * The stages hand chunks to each other through bounded queues, and written
+ * chunks go back to the reader to be refilled, so only NUM_CHUNKS chunks ever
+ * exist. There is one thread per stage and the queues are FIFO, so rows are
+ * written in the order they were read.
+ */
+public class PredictionPipeline {
+    static final int CHUNK_ROWS = 4096;
+    static final int NUM_CHUNKS = 4;
+    // println() used to end each row with this
+    static final String NEWLINE = System.lineSeparator();
+
+    /**
+     * A block of rows moving through the pipeline.
+     */
+    static class Chunk {
+        double[][] columns;
+        int[] labels;
+        int[] predictions;
+        double[] proba;         // numRows x numLabels; null without probabilities
+        String[][] missingText; // the text of the fields read as NaN (see CsvColumnReader)
+        int numRows;
+        String[] labelNames;    // the file's labels seen up to this chunk
+        boolean last;           // no rows; marks the end of the file
+
+        Chunk(int numFeatures, int probaLabels) {
+            columns = new double[numFeatures][CHUNK_ROWS];
+            labels = new int[CHUNK_ROWS];
+            predictions = new int[CHUNK_ROWS];
+            missingText = new String[numFeatures][];
+            if (probaLabels > 0) {
+                proba = new double[CHUNK_ROWS * probaLabels];
+            }
+        }
+    }
+
+    Classifier model;
+    // The number of features the model was trained on; -1 if not known.
+    int numFeatures;
+    // Whether the testing file has the label column.
+    boolean hasLabel;
+    BlockingQueue<Chunk> empty = new ArrayBlockingQueue<Chunk>(NUM_CHUNKS);
+    BlockingQueue<Chunk> read = new ArrayBlockingQueue<Chunk>(NUM_CHUNKS);
+    BlockingQueue<Chunk> scored = new ArrayBlockingQueue<Chunk>(NUM_CHUNKS);
+    volatile Exception failure;
+    // Times each chunk's predictions, for -stats; null leaves it untimed.
+    Metrics metrics;
+    // Write a proba_<label> column per label (-proba).
+    boolean writeProba;
+    // Write the `topLabels` most probable labels and their probabilities (-top).
+    int topLabels;
+    // The Laplace smoothing of the probabilities (-smooth).
+    double smoothing;
+
+    /**
+     * @param model       A trained (or loaded) tree or forest to predict with.
+     * @param numFeatures The number of features it was trained on (see
+     *                    ModelFile.columnNames), or -1 if not known, in which
+     *                    case testing files must have the label column.
+     */
+    public PredictionPipeline(Classifier model, int numFeatures) {
+        this.model = model;
+        this.numFeatures = numFeatures;
+    }
+
+    /**
+     * Predicts every row of a testing file and writes the file back out with
+     * a predicted_label column, exactly as the -predict mode always has, then
+     * the probability columns asked for by `writeProba` and `topLabels`.
+     *
+     * @param testingFilename A file with a header and one observation per line;
+     *                        the last column may be the (true) label, which
+     *                        is told from the number of columns.
+     * @param out             Where to write the results.
+     * @throws IOException If the file can't be read, or doesn't have the
+     *                     model's number of features.
+     */
+    public void run(String testingFilename, OutputStream out) throws IOException {
+        CsvColumnReader reader = new CsvColumnReader(testingFilename, true);
+        if (numFeatures >= 0 && reader.numFeatures != numFeatures) {
+            // The label column is optional: without it, every column is a feature.
+            reader.close();
+            if (reader.columnNames.size() != numFeatures) {
+                throw new IOException(testingFilename +" has "+ reader.columnNames.size()
+                    +" columns, but the model takes "+ numFeatures +" features (and an optional label)");
+            }
+            reader = new CsvColumnReader(testingFilename, false);
+        }
+        hasLabel = reader.hasLabel;
+        reader.useCategories(model.categories());
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+
+        ArrayList<String> labelNames = model.labelNames();
+        int probaLabels = writeProba || topLabels > 0 ? labelNames.size() : 0;
+        for (int i = 0; i < NUM_CHUNKS; i++) {
+            empty.add(new Chunk(reader.numFeatures, probaLabels));
+        }
+        CsvColumnReader chunkReader = reader;
+        Thread readerThread = new Thread(() -> readChunks(chunkReader), "predict-reader");
+        Thread scorerThread = new Thread(this::scoreChunks, "predict-scorer");
+        readerThread.setDaemon(true);
+        scorerThread.setDaemon(true);
+        readerThread.start();
+        scorerThread.start();
+
+        try {
+            writer.write(String.join(",", reader.columnNames));
+            writer.write(",predicted_label");
+            if (writeProba) {
+                for (String label : labelNames) {
+                    writer.write(",proba_"+ label);
+                }
+            }
+            for (int i = 1; i <= topLabels; i++) {
+                writer.write(",top"+ i +"_label,top"+ i +"_proba");
+            }
+            writer.write(NEWLINE);
+            while (true) {
+                Chunk chunk = scored.take();
+                if (chunk.last) {
+                    break;
+                }
+                writeChunk(chunk, writer);
+                empty.put(chunk);
+            }
+            writer.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while predicting", e);
+        } finally {
+            reader.close();
+        }
+
+        if (failure != null) {
+            throw failure instanceof IOException ? (IOException) failure
+                                                 : new IOException(failure);
+        }
+    }
+
+    /**
+     * The reader stage. Ends by passing on a `last` chunk, also on failure.
+     */
+    void readChunks(CsvColumnReader reader) {
+        String[] labelNames = new String[0];
+        try {
+            while (true) {
+                Chunk chunk = empty.take();
+                reader.missingText = chunk.missingText;
+                chunk.numRows = reader.readChunk(chunk.columns, chunk.labels, 0, CHUNK_ROWS);
+                if (chunk.numRows == 0) {
+                    break;
+                }
+                // The writer only ever sees a copy, as the reader keeps adding.
+                if (labelNames.length != reader.labelNames.size()) {
+                    labelNames = reader.labelNames.toArray(new String[0]);
+                }
+                chunk.labelNames = labelNames;
+                read.put(chunk);
+            }
+        } catch (Exception e) {
+            failure = e;
+        }
+        endOfFile(read);
+    }
+
+    /**
+     * The scorer stage.
+     */
+    void scoreChunks() {
+        try {
+            while (true) {
+                Chunk chunk = read.take();
+                if (chunk.last) {
+                    break;
+                }
+                Metrics.PredictionEvent event = new Metrics.PredictionEvent();
+                event.begin();
+                long start = metrics != null ? System.nanoTime() : 0;
+                model.predictBatch(chunk.columns, chunk.numRows, chunk.predictions);
+                if (chunk.proba != null) {
+                    model.predictProbaBatch(chunk.columns, chunk.numRows, smoothing, chunk.proba);
+                }
+                if (metrics != null) {
+                    metrics.predicted(chunk.numRows, System.nanoTime() - start);
+                }
+                event.rows = chunk.numRows;
+                event.commit();
+                scored.put(chunk);
+            }
+        } catch (Exception e) {
+            failure = e;
+        }
+        endOfFile(scored);
+    }
+
+    void endOfFile(BlockingQueue<Chunk> next) {
+        Chunk last = new Chunk(0, 0);
+        last.last = true;
+        try {
+            next.put(last);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes each row the way Observation.toString() does, followed by its
+     * predicted label and probabilities. Categorical features are written as
+     * their category. A field that was read as missing, or as a category the
+     * model never saw, is written as it was in the file.
+     */
+    void writeChunk(Chunk chunk, Writer writer) throws IOException {
+        int numFeatures = chunk.columns.length;
+        ArrayList<String> labelNames = model.labelNames();
+        ArrayList<ArrayList<String>> categories = model.categories();
+        int numLabels = labelNames.size();
+        int[] top = new int[topLabels];
+        for (int row = 0; row < chunk.numRows; row++) {
+            for (int f = 0; f < numFeatures; f++) {
+                double value = chunk.columns[f][row];
+                if (value != value) {
+                    writer.write(chunk.missingText[f][row]);
+                } else if (categories != null && f < categories.size() && categories.get(f) != null) {
+                    writer.write(categories.get(f).get((int) value));
+                } else {
+                    writer.write(Double.toString(value));
+                }
+                writer.write(',');
+            }
+            if (hasLabel) {
+                writer.write(chunk.labelNames[chunk.labels[row]]);
+                writer.write(',');
+            }
+            writer.write(labelNames.get(chunk.predictions[row]));
+            int offset = row * numLabels;
+            if (writeProba) {
+                for (int k = 0; k < numLabels; k++) {
+                    writer.write(',');
+                    writer.write(Double.toString(chunk.proba[offset + k]));
+                }
+            }
+            if (top.length > 0) {
+                Classifier.topLabels(chunk.proba, offset, numLabels, top);
+                for (int k : top) {
+                    writer.write(',');
+                    writer.write(labelNames.get(k));
+                    writer.write(',');
+                    writer.write(Double.toString(chunk.proba[offset + k]));
+                }
+            }
+            writer.write(NEWLINE);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The -serve mode: loads a model once and scores batches of rows sent to it
+ * over HTTP, so a small scoring job doesn't pay for starting a JVM and
+ * loading the model.
+ *
+ * <pre>
+ *   POST /predict   a batch of rows; answers with one prediction per row
+ *   GET  /labels    the model's labels, one per line, in label id order
+ *   GET  /stats     requests, rows, throughput and latency percentiles
+ * </pre>
+ *
+ * A batch is either CSV (a header, then one row per line, with or without
+ * the label column, as for -predict), answered with one label per line, or,
+ * with Content-Type application/octet-stream, little-endian binary:
+ *
+ * <pre>
+ *   int numRows, int numFeatures
+ *   per feature:  double[numRows] values
+ * </pre>
+ *
+ * answered with an int label id per row (little-endian, see /labels).
+ *
+ * The loaded model is never changed, so the request threads share it without
+ * locking. The model file is checked every second; when it has changed (and
+ * then held still for a second, so it isn't read half written), the new model
+ * is loaded on the side and swapped in with one atomic write. Requests
+ * already running finish on the model they started with, and later ones get
+ * the new one, so scoring never stops for the swap.
+ */
+public class PredictionServer {
+    // How often the model file is checked for changes.
+    static final long WATCH_MILLIS = 1000;
+
+    /**
+     * A model as loaded from the file; replaced whole, never changed.
+     */
+    static class LoadedModel {
+        final Classifier model;
+        final int numFeatures;
+        final long lastModified;
+        final long size;
+        final int version;      // 1 for the first model loaded, then +1 per swap
+
+        LoadedModel(Classifier model, int numFeatures, long lastModified, long size, int version) {
+            this.model = model;
+            this.numFeatures = numFeatures;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.version = version;
+        }
+    }
+
+    String modelFilename;
+    boolean compile;
+    final AtomicReference<LoadedModel> loaded = new AtomicReference<LoadedModel>();
+    // Times each request, from reading its body to writing the answer.
+    final Metrics metrics = new Metrics();
+    final LongAdder requests = new LongAdder();
+    final LongAdder failedRequests = new LongAdder();
+    final long startNanos = System.nanoTime();
+
+    HttpServer server;
+    ExecutorService executor;
+    ScheduledExecutorService watcher;
+    // The model file as the watcher last saw it change (only used by it).
+    long changedModified = -1;
+    long changedSize = -1;
+
+    /**
+     * Loads the model.
+     *
+     * @param modelFilename The model file to serve, and to watch for changes.
+     * @param compile       If true, compile single trees to bytecode (as
+     *                      -predict -compile does).
+     * @throws IOException If the model can't be loaded.
+     */
+    public PredictionServer(String modelFilename, boolean compile) throws IOException {
+        this.modelFilename = modelFilename;
+        this.compile = compile;
+        loaded.set(load(1));
+    }
+
+    LoadedModel load(int version) throws IOException {
+        Path path = Paths.get(modelFilename);
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        long size = Files.size(path);
+        ModelFile file = ModelFile.load(modelFilename);
+        Classifier model = DecisionTree.loadClassifier(file);
+        if (compile && model instanceof DecisionTree) {
+            ((DecisionTree) model).compileBytecode();
+        }
+        return new LoadedModel(model, file.columnNames.size() - 1, lastModified, size, version);
+    }
+
+    /**
+     * Starts answering requests on the loopback address, and watching the
+     * model file.
+     *
+     * @param port       The port to listen on (0 picks a free one).
+     * @param numThreads The number of threads handling requests.
+     * @throws IOException If the port can't be bound.
+     */
+    public void start(int port, int numThreads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/predict", this::handlePredict);
+        server.createContext("/labels", this::handleLabels);
+        server.createContext("/stats", this::handleStats);
+        executor = Executors.newFixedThreadPool(numThreads);
+        server.setExecutor(executor);
+        server.start();
+
+        watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "model-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watcher.scheduleWithFixedDelay(this::checkModelFile, WATCH_MILLIS, WATCH_MILLIS,
+                                       TimeUnit.MILLISECONDS);
+        metrics.register();
+    }
+
+    /**
+     * @return The port the server listens on.
+     */
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        watcher.shutdownNow();
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    /**
+     * Swaps in the model file if it changed since it was loaded and then
+     * stayed the same for one check, so a file still being written isn't
+     * loaded. A file that can't be loaded is tried again next time; the old
+     * model is served meanwhile.
+     */
+    void checkModelFile() {
+        LoadedModel current = loaded.get();
+        try {
+            Path path = Paths.get(modelFilename);
+            long lastModified = Files.getLastModifiedTime(path).toMillis();
+            long size = Files.size(path);
+            if (lastModified == current.lastModified && size == current.size) {
+                return;
+            }
+            if (lastModified != changedModified || size != changedSize) {
+                changedModified = lastModified;
+                changedSize = size;
+                return;
+            }
+            LoadedModel next = load(current.version + 1);
+            loaded.set(next);
+            System.err.println("Loaded "+ modelFilename +" (version "+ next.version +")");
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Not loading "+ modelFilename +" yet: "+ e);
+        }
+    }
+
+    void handlePredict(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            send(exchange, 405, "POST a batch of rows to /predict\n");
+            return;
+        }
+        long start = System.nanoTime();
+        // One model for the whole batch, even if a swap happens meanwhile.
+        LoadedModel current = loaded.get();
+        String type = exchange.getRequestHeaders().getFirst("Content-Type");
+        boolean binary = type != null && type.startsWith("application/octet-stream");
+        byte[] answer;
+        int numRows;
+        try {
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            Batch batch = binary ? readBinary(body, current) : readCsv(body, current);
+            numRows = batch.numRows;
+            int[] predictions = new int[numRows];
+            current.model.predictBatch(batch.columns, numRows, predictions);
+            answer = binary ? binaryAnswer(predictions) : csvAnswer(predictions, current);
+        } catch (IOException | RuntimeException e) {
+            failedRequests.increment();
+            send(exchange, 400, e.getMessage() +"\n");
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type",
+            binary ? "application/octet-stream" : "text/plain; charset=utf-8");
+        exchange.getResponseHeaders().set("X-Model-Version", Integer.toString(current.version));
+        send(exchange, 200, answer);
+        requests.increment();
+        metrics.predicted(numRows, System.nanoTime() - start);
+    }
+
+    /**
+     * The rows of one request, column by column.
+     */
+    static class Batch {
+        double[][] columns;
+        int numRows;
+    }
+
+    Batch readCsv(byte[] body, LoadedModel current) throws IOException {
+        // The label column is optional: look at the header to see if it's there.
+        int headerColumns = 1;
+        int numLines = 0;
+        for (byte b : body) {
+            if (b == '\n') {
+                numLines++;
+            } else if (b == ',' && numLines == 0) {
+                headerColumns++;
+            }
+        }
+        boolean hasLabel = headerColumns > current.numFeatures;
+        try (CsvColumnReader reader = new CsvColumnReader(body, "request", hasLabel)) {
+            if (reader.numFeatures != current.numFeatures) {
+                throw new IOException("expected "+ current.numFeatures +" features, got "+ reader.numFeatures);
+            }
+            reader.useCategories(current.model.categories());
+            Batch batch = new Batch();
+            int capacity = numLines + 1;
+            batch.columns = new double[reader.numFeatures][capacity];
+            batch.numRows = reader.readChunk(batch.columns, new int[capacity], 0, capacity);
+            return batch;
+        }
+    }
+
+    Batch readBinary(byte[] body, LoadedModel current) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+        if (body.length < 8) {
+            throw new IOException("a binary batch starts with int numRows, int numFeatures");
+        }
+        Batch batch = new Batch();
+        batch.numRows = buffer.getInt();
+        int numFeatures = buffer.getInt();
+        if (numFeatures != current.numFeatures) {
+            throw new IOException("expected "+ current.numFeatures +" features, got "+ numFeatures);
+        }
+        if (batch.numRows < 0 || body.length != 8 + 8L * batch.numRows * numFeatures) {
+            throw new IOException("expected "+ batch.numRows +" rows of "+ numFeatures +" doubles");
+        }
+        batch.columns = new double[numFeatures][batch.numRows];
+        for (int f = 0; f < numFeatures; f++) {
+            ModelFile.getDoubles(buffer, batch.columns[f]);
+        }
+        return batch;
+    }
+
+    static byte[] binaryAnswer(int[] predictions) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * predictions.length).order(ByteOrder.LITTLE_ENDIAN);
+        ModelFile.putInts(buffer, predictions);
+        return buffer.array();
+    }
+
+    static byte[] csvAnswer(int[] predictions, LoadedModel current) {
+        ArrayList<String> labelNames = current.model.labelNames();
+        StringBuilder out = new StringBuilder(predictions.length * 8);
+        for (int prediction : predictions) {
+            out.append(labelNames.get(prediction)).append('\n');
+        }
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    void handleLabels(HttpExchange exchange) throws IOException {
+        LoadedModel current = loaded.get();
+        exchange.getResponseHeaders().set("X-Model-Version", Integer.toString(current.version));
+        send(exchange, 200, String.join("\n", current.model.labelNames()) +"\n");
+    }
+
+    void handleStats(HttpExchange exchange) throws IOException {
+        send(exchange, 200, stats() +"\n");
+    }
+
+    /**
+     * @return The requests and rows answered so far, per second since the
+     *         server started, and the request latency percentiles.
+     */
+    public String stats() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long numRequests = requests.sum();
+        long rows = metrics.getPredictedRows();
+        return String.format("model %s (version %d)%n"
+                             +"%d requests (%d failed), %d rows in %.1f s: %.1f requests/s, %.0f rows/s%n"
+                             +"request latency (us): p50 %.1f, p90 %.1f, p99 %.1f, max %.1f",
+                             modelFilename, loaded.get().version,
+                             numRequests, failedRequests.sum(), rows, seconds,
+                             numRequests / seconds, rows / seconds,
+                             metrics.getPredictionLatencyP50Micros(), metrics.getPredictionLatencyP90Micros(),
+                             metrics.getPredictionLatencyP99Micros(), metrics.getPredictionLatencyMaxMicros());
+    }
+
+    static void send(HttpExchange exchange, int status, String text) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        send(exchange, status, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
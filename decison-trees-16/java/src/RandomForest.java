@@ -0,0 +1,238 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * A random forest: many decision trees, each grown on a bootstrap sample of
+ * the training rows and searching only a random subset of the features at
+ * each node. It predicts by adding up every tree's leaf distribution.
+ *
+ * All trees share one read-only ColumnarDataset, sorted by each feature once.
+ * A tree's bootstrap sample is a weight per row (the number of times the row
+ * was drawn), so no rows are copied, and the trees are grown in parallel, one
+ * per thread.
+ *
+ * Each tree gets its own seed, drawn in order from `seed` before any tree is
+ * grown, and everything random about the tree comes from it. The same seed
+ * therefore gives the same forest on any number of threads.
+ */
+public class RandomForest implements Classifier {
+    // The number of trees to grow.
+    int numTrees = 100;
+    // The number of features searched at each node; 0 means sqrt(features).
+    int featuresPerNode = 0;
+    // Where all the randomness comes from.
+    long seed = 1;
+
+    // Grows each tree, with its split criterion and number of threads.
+    DecisionTree builder;
+
+    // the header and label vocabulary of the training data
+    ArrayList<String> columnNames;
+    ArrayList<String> labelNames;
+    ArrayList<ArrayList<String>> categories;
+    FlatTree[] trees;
+
+    /**
+     * @param builder The tree whose settings (criterion, number of threads)
+     *                are used to grow the forest.
+     */
+    public RandomForest(DecisionTree builder) {
+        this.builder = builder;
+    }
+
+    /**
+     * A forest read from a model file.
+     *
+     * @param model A model with one or more trees.
+     */
+    public RandomForest(ModelFile model) {
+        columnNames = model.columnNames;
+        labelNames = model.labelNames;
+        categories = model.categories;
+        trees = model.trees;
+    }
+
+    /**
+     * Grows `numTrees` trees on a columnar dataset.
+     *
+     * @param data A columnar dataset with labels.
+     */
+    public void train(DecisionTree.ColumnarDataset data) {
+        columnNames = data.columnNames;
+        labelNames = data.labelNames;
+        categories = data.categories;
+        Metrics metrics = builder.metrics;
+        if (metrics != null) {
+            metrics.beginTraining(data);
+        }
+        int numFeatures = data.numFeatures();
+        int perNode = featuresPerNode > 0 ? featuresPerNode
+                                          : Math.max(1, (int) Math.sqrt(numFeatures));
+
+        SplittableRandom seeds = new SplittableRandom(seed);
+        long[] treeSeeds = new long[numTrees];
+        for (int t = 0; t < numTrees; t++) {
+            treeSeeds[t] = seeds.nextLong();
+        }
+        trees = new FlatTree[numTrees];
+
+        if (builder.numThreads <= 1) {
+            Metrics.PhaseEvent event = Metrics.begin(metrics, Metrics.Phase.SORT);
+            int[][] presorted = DecisionTree.presort(data, null);
+            Metrics.end(metrics, event, data.numRows);
+            for (int t = 0; t < numTrees; t++) {
+                trees[t] = growTree(data, presorted, perNode, treeSeeds[t]);
+            }
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(builder.numThreads);
+        try {
+            Metrics.PhaseEvent event = Metrics.begin(metrics, Metrics.Phase.SORT);
+            int[][] presorted = pool.invoke(ForkJoinTask.adapt(() -> DecisionTree.presort(data, pool)));
+            Metrics.end(metrics, event, data.numRows);
+            ArrayList<ForkJoinTask<?>> grows = new ArrayList<ForkJoinTask<?>>();
+            for (int t = 0; t < numTrees; t++) {
+                int treeIndex = t;
+                grows.add(pool.submit(() -> {
+                    trees[treeIndex] = growTree(data, presorted, perNode, treeSeeds[treeIndex]);
+                }));
+            }
+            for (ForkJoinTask<?> grow : grows) {
+                grow.join();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Grows one tree on a bootstrap sample: n rows drawn with replacement,
+     * kept as the number of times each row was drawn (which the tree weighs
+     * by the row's own weight, if the data has weights).
+     */
+    FlatTree growTree(DecisionTree.ColumnarDataset data, int[][] presorted,
+                      int perNode, long treeSeed) {
+        SplittableRandom random = new SplittableRandom(treeSeed);
+        int n = data.numRows;
+        double[] draws = new double[n];
+        for (int i = 0; i < n; i++) {
+            draws[random.nextInt(n)]++;
+        }
+        Metrics.PhaseEvent event = Metrics.begin(builder.metrics, Metrics.Phase.BUILD);
+        DecisionTree.Node root = builder.build(data, presorted, draws, perNode, random);
+        Metrics.end(builder.metrics, event, data.numRows);
+        return FlatTree.compile(root, labelNames);
+    }
+
+    /**
+     * Runs one row through every tree.
+     *
+     * @param x The feature values of the row, in training column order.
+     * @return The label id with the highest summed leaf probability.
+     */
+    public int predict(double[] x) {
+        int numLabels = labelNames.size();
+        double[] votes = new double[numLabels];
+        for (FlatTree tree : trees) {
+            addVotes(tree, tree.leafOf(x), votes, 0);
+        }
+        return argmax(votes, 0, numLabels);
+    }
+
+    /**
+     * Predicts a block of rows one tree at a time, so each tree's arrays are
+     * walked for the whole block while they are in cache.
+     *
+     * @param columns The feature values, columns[feature][row].
+     * @param numRows The number of rows to predict.
+     * @param out     Filled with the label id predicted for each row.
+     */
+    @Override
+    public void predictBatch(double[][] columns, int numRows, int[] out) {
+        int numLabels = labelNames.size();
+        double[] votes = new double[numRows * numLabels];
+        // `out` holds each tree's leaves until the votes are counted.
+        int[] leaves = out;
+        for (FlatTree tree : trees) {
+            tree.leafBatch(columns, numRows, leaves);
+            for (int row = 0; row < numRows; row++) {
+                addVotes(tree, leaves[row], votes, row * numLabels);
+            }
+        }
+        for (int row = 0; row < numRows; row++) {
+            out[row] = argmax(votes, row * numLabels, numLabels);
+        }
+    }
+
+    /**
+     * Adds a leaf's label distribution, as probabilities, to
+     * votes[offset...]. The counts are divided by their sum rather than by
+     * the leaf's n, which is rounded down when rows have fractional weights.
+     */
+    static void addVotes(FlatTree tree, int leaf, double[] votes, int offset) {
+        tree.addProba(leaf, 0, 1, votes, offset);
+    }
+
+    /**
+     * The mean of the trees' (smoothed) leaf probabilities.
+     */
+    @Override
+    public void predictProba(double[] x, double smoothing, double[] out) {
+        Arrays.fill(out, 0, labelNames.size(), 0);
+        double scale = 1.0 / trees.length;
+        for (FlatTree tree : trees) {
+            tree.addProba(tree.leafOf(x), smoothing, scale, out, 0);
+        }
+    }
+
+    @Override
+    public void predictProbaBatch(double[][] columns, int numRows, double smoothing, double[] out) {
+        Arrays.fill(out, 0, numRows * labelNames.size(), 0);
+        double scale = 1.0 / trees.length;
+        for (FlatTree tree : trees) {
+            tree.addProbaBatch(columns, numRows, smoothing, scale, out);
+        }
+    }
+
+    /**
+     * @return The label id (0 to numLabels-1) with the most votes in
+     *         votes[offset...]; the smallest id wins a tie.
+     */
+    static int argmax(double[] votes, int offset, int numLabels) {
+        int best = 0;
+        for (int k = 1; k < numLabels; k++) {
+            if (votes[offset + k] > votes[offset + best]) {
+                best = k;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public ArrayList<String> labelNames() {
+        return labelNames;
+    }
+
+    @Override
+    public ArrayList<ArrayList<String>> categories() {
+        return categories;
+    }
+
+    /**
+     * Saves every tree of the forest to one model file (see ModelFile).
+     *
+     * @param filename The name of the file to save the model to.
+     * @throws IOException
+     */
+    public void saveModel(String filename) throws IOException {
+        ArrayList<String> header = columnNames != null ? columnNames : new ArrayList<String>();
+        ModelFile model = new ModelFile(header, labelNames, trees);
+        model.categories = categories;
+        model.save(filename);
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * How good a split is, computed from label counts alone.
+ *
+ * Every criterion here scores a node by summing a per-label term, g(count),
+ * over its labels: x*ln(x) for entropy, x*x for Gini. When one row moves from
+ * the right split to the left split only its own label's terms change, so a
+ * threshold sweep keeps
+ *
+ *      leftSum  += g(leftCount + 1)  - g(leftCount)
+ *      rightSum += g(rightCount - 1) - g(rightCount)
+ *
+ * and scores each candidate from the two sums in O(1), whatever the number of
+ * rows or labels. Higher scores are better and 0 means no improvement.
+ *
+ * The thresholds of one feature are compared by score(); the best of each
+ * feature is then turned by rank() into what features are compared by. The
+ * two only differ for the gain ratio.
+ */
+public abstract class SplitCriterion {
+    static final double LOG_2 = Math.log(2);
+
+    /** The information gain of the split, in bits (ID3). */
+    public static final SplitCriterion INFO_GAIN = new InfoGain();
+    /** The information gain divided by the split's own entropy (C4.5). */
+    public static final SplitCriterion GAIN_RATIO = new GainRatio();
+    /** The decrease in Gini impurity (CART). */
+    public static final SplitCriterion GINI = new Gini();
+
+    /**
+     * @param name One of infogain, gainratio or gini.
+     * @return The criterion of that name.
+     * @throws IllegalArgumentException If there is no such criterion.
+     */
+    public static SplitCriterion forName(String name) {
+        switch (name) {
+        case "infogain":
+            return INFO_GAIN;
+        case "gainratio":
+            return GAIN_RATIO;
+        case "gini":
+            return GINI;
+        default:
+            throw new IllegalArgumentException("Unknown split criterion: "+ name);
+        }
+    }
+
+    /**
+     * @param count The number of rows of one label in a node.
+     * @return This criterion's term for the label, g(count).
+     */
+    public abstract double term(double count);
+
+    /**
+     * Scores a split from the summed terms of the parent and both children.
+     *
+     * @param n         The number of rows in the parent.
+     * @param nLeft     The number of rows in the left split (> 0).
+     * @param nRight    The number of rows in the right split (> 0).
+     * @param parentSum The sum of term() over the parent's label counts.
+     * @param leftSum   The sum of term() over the left split's label counts.
+     * @param rightSum  The sum of term() over the right split's label counts.
+     * @return The score of the split (before rounding noise is removed).
+     */
+    public abstract double score(double n, double nLeft, double nRight,
+                                 double parentSum, double leftSum, double rightSum);
+
+    /**
+     * Turns the score() of a feature's best split into the score the
+     * features are compared by.
+     *
+     * @param score  The split's score().
+     * @param n      The number of rows in the parent.
+     * @param nLeft  The number of rows in the left split.
+     * @param nRight The number of rows in the right split.
+     * @return The score to compare with other features' splits; score itself
+     *         unless the criterion says otherwise.
+     */
+    public double rank(double score, double n, double nLeft, double nRight) {
+        return score;
+    }
+
+    /**
+     * @param numLabels The number of labels.
+     * @return The highest rank() any split can get (R in the Hoeffding bound
+     *         of HoeffdingTree).
+     */
+    public abstract double range(int numLabels);
+
+    /**
+     * Scores a split given each side's label counts (the non-incremental way,
+     * for when there is only one split to score).
+     *
+     * @param leftCounts  The count of each label id on the left of the split.
+     * @param rightCounts The count of each label id on the right of the split.
+     * @return The rank() of the split, or 0 if either side is empty or the
+     *         score is within rounding of 0.
+     */
+    public double evaluate(double[] leftCounts, double[] rightCounts) {
+        double nLeft = 0;
+        double nRight = 0;
+        double leftSum = 0;
+        double rightSum = 0;
+        double parentSum = 0;
+        for (int k = 0; k < leftCounts.length; k++) {
+            nLeft += leftCounts[k];
+            nRight += rightCounts[k];
+            leftSum += term(leftCounts[k]);
+            rightSum += term(rightCounts[k]);
+            parentSum += term(leftCounts[k] + rightCounts[k]);
+        }
+
+        if (nLeft == 0 || nRight == 0) {
+            return 0;
+        }
+        double n = nLeft + nRight;
+        double score = rank(score(n, nLeft, nRight, parentSum, leftSum, rightSum), n, nLeft, nRight);
+        return score > DecisionTree.GAIN_EPSILON ? score : 0;
+    }
+
+    /**
+     * @return x * ln(x), with 0 * ln(0) taken to be 0.
+     */
+    static double xLogX(double x) {
+        return x <= 0 ? 0 : x * Math.log(x);
+    }
+
+    /**
+     * The entropy of a node with label counts c_k is
+     * (n*ln(n) - sum(c_k*ln(c_k))) / (n*ln(2)), so the weighted entropy of a
+     * split only needs n and the sum of x*ln(x).
+     */
+    static class InfoGain extends SplitCriterion {
+        @Override
+        public double term(double count) {
+            return xLogX(count);
+        }
+
+        @Override
+        public double score(double n, double nLeft, double nRight,
+                            double parentSum, double leftSum, double rightSum) {
+            double parentImpurity = xLogX(n) - parentSum;
+            double childImpurity = (xLogX(nLeft) - leftSum) + (xLogX(nRight) - rightSum);
+            return (parentImpurity - childImpurity) / (n * LOG_2);
+        }
+
+        @Override
+        public double range(int numLabels) {
+            // the entropy of an even split over every label
+            return Math.log(Math.max(numLabels, 2)) / LOG_2;
+        }
+
+        @Override
+        public String toString() {
+            return "infogain";
+        }
+    }
+
+    /**
+     * C4.5's gain ratio: information gain over the entropy of the split
+     * sizes, which stops features with many distinct values from winning
+     * just by chopping off a handful of rows.
+     *
+     * As in Quinlan's C4.5 for continuous features, a feature's threshold is
+     * picked by information gain (score() is InfoGain's), and only then is
+     * the ratio taken, to compare features. Picking thresholds by the ratio
+     * favours cutting off a few rows at a time, where the split's own
+     * entropy is tiny, and grows needlessly deep trees.
+     */
+    static class GainRatio extends InfoGain {
+        @Override
+        public double rank(double gain, double n, double nLeft, double nRight) {
+            if (gain <= DecisionTree.GAIN_EPSILON) {
+                return 0;
+            }
+            double splitInfo = (xLogX(n) - xLogX(nLeft) - xLogX(nRight)) / (n * LOG_2);
+            return gain / splitInfo;
+        }
+
+        @Override
+        public double range(int numLabels) {
+            // the gain can't be more than the entropy of the split itself
+            return 1;
+        }
+
+        @Override
+        public String toString() {
+            return "gainratio";
+        }
+    }
+
+    /**
+     * The Gini impurity of a node is 1 - sum(c_k^2) / n^2; weighted by its
+     * size that is n - sum(c_k^2) / n. The score is the weighted impurity
+     * removed by the split, per row of the parent.
+     */
+    static class Gini extends SplitCriterion {
+        @Override
+        public double term(double count) {
+            return count * count;
+        }
+
+        @Override
+        public double score(double n, double nLeft, double nRight,
+                            double parentSum, double leftSum, double rightSum) {
+            double parentImpurity = n - parentSum / n;
+            double childImpurity = (nLeft - leftSum / nLeft) + (nRight - rightSum / nRight);
+            return (parentImpurity - childImpurity) / n;
+        }
+
+        @Override
+        public double range(int numLabels) {
+            return 1 - 1.0 / Math.max(numLabels, 2);
+        }
+
+        @Override
+        public String toString() {
+            return "gini";
+        }
+    }
+}